@@ -0,0 +1,66 @@
+package com.justinschultz.benchmarks;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.justinschultz.pusherclient.PusherEnvelope;
+
+/**
+ * Scans the event, channel and data fields of a Pusher message, with and
+ * without unescaping the data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnvelopeParseBenchmark {
+	@Param({ "128", "1024", "16384" })
+	public int payloadSize;
+
+	private byte[] payload;
+
+	@Setup
+	public void setUp() {
+		payload = Payloads.channelEvent("market-1", "price-updated", payloadSize).getBytes(Payloads.UTF8);
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole) throws Exception {
+		PusherEnvelope envelope = PusherEnvelope.parse(payload, 0, payload.length);
+		blackhole.consume(envelope.getEvent());
+		blackhole.consume(envelope.getChannel());
+	}
+
+	@Benchmark
+	public String parseData() throws Exception {
+		return PusherEnvelope.parse(payload, 0, payload.length).getData();
+	}
+}
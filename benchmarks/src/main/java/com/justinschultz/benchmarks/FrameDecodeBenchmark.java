@@ -0,0 +1,91 @@
+package com.justinschultz.benchmarks;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.justinschultz.websocket.WebSocketConnection;
+import com.justinschultz.websocket.WebSocketEventHandler;
+import com.justinschultz.websocket.WebSocketMessage;
+import com.justinschultz.websocket.WebSocketReceiver;
+
+/**
+ * Runs a WebSocketReceiver over an in-memory stream of text frames, which
+ * covers frame decoding and the per-message copy handed to the handler.
+ * Results are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameDecodeBenchmark {
+	private static final int FRAMES = 256;
+
+	@Param({ "128", "1024", "16384" })
+	public int payloadSize;
+
+	private byte[] stream;
+	private WebSocketConnection websocket;
+	private Blackhole sink;
+
+	@Setup
+	public void setUp(Blackhole blackhole) throws Exception {
+		sink = blackhole;
+
+		String[] messages = new String[FRAMES];
+		for (int i = 0; i < FRAMES; i++) {
+			messages[i] = Payloads.channelEvent("market-" + (i % 16), "price-updated", payloadSize);
+		}
+		stream = Payloads.serverFrames(messages);
+
+		websocket = new WebSocketConnection(new URI("ws://localhost/app/benchmark"));
+		websocket.setEventHandler(new WebSocketEventHandler() {
+			public void onOpen() {
+			}
+
+			public void onMessage(WebSocketMessage message) {
+				sink.consume(message.getLength());
+				message.release();
+			}
+
+			public void onClose() {
+			}
+		});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void decode() {
+		new WebSocketReceiver(new ByteArrayInputStream(stream), websocket).run();
+	}
+}
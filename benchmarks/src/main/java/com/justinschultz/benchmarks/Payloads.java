@@ -0,0 +1,76 @@
+package com.justinschultz.benchmarks;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.nio.charset.Charset;
+
+import com.justinschultz.websocket.WebSocketFrame;
+
+/**
+ * Builds Pusher messages and WebSocket frames shaped like live traffic:
+ * the event data is a JSON object carried as an escaped string.
+ */
+final class Payloads {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Payloads() {
+	}
+
+	/**
+	 * Returns a channel event of roughly the given size in bytes.
+	 */
+	static String channelEvent(String channel, String event, int size) {
+		StringBuilder data = new StringBuilder();
+		data.append("{\\\"symbol\\\":\\\"EURUSD\\\",\\\"bid\\\":1.08312,\\\"ask\\\":1.08327,\\\"ts\\\":1349712345678");
+		data.append(",\\\"note\\\":\\\"");
+
+		String head = "{\"event\":\"" + event + "\",\"channel\":\"" + channel + "\",\"data\":\"";
+		String tail = "\\\"}\"}";
+		int padding = size - head.length() - data.length() - tail.length();
+		for (int i = 0; i < padding; i++) {
+			data.append((char) ('a' + i % 26));
+		}
+		return head + data + tail;
+	}
+
+	/**
+	 * Encodes the messages as unmasked server-to-client text frames, back
+	 * to back in one stream.
+	 */
+	static byte[] serverFrames(String[] messages) {
+		byte[][] frames = new byte[messages.length][];
+		int total = 0;
+		for (int i = 0; i < messages.length; i++) {
+			byte[] payload = messages[i].getBytes(UTF8);
+			frames[i] = WebSocketFrame.encode(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_TEXT, payload, 0,
+					payload.length, false, 0);
+			total += frames[i].length;
+		}
+
+		byte[] stream = new byte[total];
+		int pos = 0;
+		for (byte[] frame : frames) {
+			System.arraycopy(frame, 0, stream, pos, frame.length);
+			pos += frame.length;
+		}
+		return stream;
+	}
+}
@@ -0,0 +1,158 @@
+package com.justinschultz.benchmarks;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.justinschultz.pusherclient.ChannelListener;
+import com.justinschultz.pusherclient.Pusher;
+import com.justinschultz.pusherclient.PusherListener;
+import com.justinschultz.websocket.WebSocket;
+import com.justinschultz.websocket.WebSocketEventHandler;
+import com.justinschultz.websocket.WebSocketException;
+import com.justinschultz.websocket.WebSocketFactory;
+import com.justinschultz.websocket.WebSocketMessage;
+import com.justinschultz.websocket.WebSocketSendFuture;
+
+/**
+ * Feeds received messages to a connected Pusher through a WebSocket that
+ * never touches the network, spreading the events over many subscribed
+ * channels. Covers envelope parsing, channel lookup and listener calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PusherDispatchBenchmark {
+	private static final int DISTINCT_MESSAGES = 1024;
+
+	@Param({ "1", "100", "10000" })
+	public int channels;
+
+	@Param({ "1", "2" })
+	public int listenersPerChannel;
+
+	@Param({ "256", "4096" })
+	public int payloadSize;
+
+	private Pusher pusher;
+	private WebSocketEventHandler handler;
+	private byte[][] messages;
+	private int next;
+	private Blackhole sink;
+
+	@Setup
+	public void setUp(Blackhole blackhole) throws Exception {
+		sink = blackhole;
+
+		pusher = new Pusher("benchmark");
+		pusher.setWebSocketFactory(new WebSocketFactory() {
+			public WebSocket createWebSocket(URI url) {
+				return new OfflineWebSocket();
+			}
+		});
+		pusher.setPusherListener(new PusherListener() {
+			public void onConnect(String socketId) {
+			}
+
+			public void onMessage(String message) {
+			}
+
+			public void onDisconnect() {
+			}
+		});
+
+		ChannelListener listener = new ChannelListener() {
+			public void onMessage(String message) {
+				sink.consume(message);
+			}
+		};
+		for (int c = 0; c < channels; c++) {
+			Pusher.Channel channel = pusher.subscribe("market-" + c);
+			for (int l = 0; l < listenersPerChannel; l++) {
+				channel.bind("price-updated", listener);
+			}
+		}
+
+		pusher.connect();
+		handler.onMessage(new WebSocketMessage(
+				"{\"event\":\"pusher:connection_established\",\"data\":\"{\\\"socket_id\\\":\\\"1.1\\\"}\"}"));
+
+		messages = new byte[DISTINCT_MESSAGES][];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = Payloads.channelEvent("market-" + (i % channels), "price-updated", payloadSize).getBytes(
+					Payloads.UTF8);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		pusher.disconnect();
+	}
+
+	@Benchmark
+	public void dispatch() {
+		byte[] message = messages[next++ & (DISTINCT_MESSAGES - 1)];
+		handler.onMessage(new WebSocketMessage(message));
+	}
+
+	private class OfflineWebSocket implements WebSocket {
+		private boolean connected = false;
+
+		public void setEventHandler(WebSocketEventHandler eventHandler) {
+			handler = eventHandler;
+		}
+
+		public WebSocketEventHandler getEventHandler() {
+			return handler;
+		}
+
+		public void connect() {
+			connected = true;
+		}
+
+		public void send(String data) {
+		}
+
+		public WebSocketSendFuture sendAsync(String data) throws WebSocketException {
+			return WebSocketSendFuture.completed();
+		}
+
+		public void close() {
+			connected = false;
+		}
+
+		public boolean isConnected() {
+			return connected;
+		}
+	}
+}
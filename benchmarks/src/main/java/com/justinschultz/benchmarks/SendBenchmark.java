@@ -0,0 +1,183 @@
+package com.justinschultz.benchmarks;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.justinschultz.websocket.WebSocketConnection;
+import com.justinschultz.websocket.WebSocketEventHandler;
+import com.justinschultz.websocket.WebSocketException;
+import com.justinschultz.websocket.WebSocketFrame;
+import com.justinschultz.websocket.WebSocketFrameDecoder;
+import com.justinschultz.websocket.WebSocketHandshake;
+import com.justinschultz.websocket.WebSocketMessage;
+import com.justinschultz.websocket.WebSocketSendFuture;
+import com.justinschultz.websocket.WebSocketSendPolicy;
+
+/**
+ * Sends text messages on a WebSocketConnection connected to an in-process
+ * loopback server that completes the handshake, decodes and discards the
+ * frames and answers the closing handshake. With a queue capacity the
+ * asynchronous send pipeline is used, so the result is the rate the sender
+ * thread keeps up with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendBenchmark {
+	@Param({ "128", "1024", "16384" })
+	public int payloadSize;
+
+	@Param({ "0", "1024" })
+	public int queueCapacity;
+
+	private ServerSocket server;
+	private Thread sink;
+	private WebSocketConnection websocket;
+	private WebSocketSendFuture last;
+	private String message;
+
+	@Setup
+	public void setUp() throws Exception {
+		server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		sink = new Thread(new Runnable() {
+			public void run() {
+				try {
+					drain(server.accept());
+				} catch (IOException ioe) {
+					// the client went away without a closing handshake
+				}
+			}
+		}, "SendBenchmark-sink");
+		sink.setDaemon(true);
+		sink.start();
+
+		websocket = new WebSocketConnection(new URI("ws://127.0.0.1:" + server.getLocalPort() + "/app/benchmark"));
+		websocket.setEventHandler(new WebSocketEventHandler() {
+			public void onOpen() {
+			}
+
+			public void onMessage(WebSocketMessage message) {
+			}
+
+			public void onClose() {
+			}
+		});
+		if (queueCapacity > 0) {
+			websocket.setSendQueue(queueCapacity, WebSocketSendPolicy.BLOCK);
+		}
+		websocket.connect();
+
+		message = Payloads.channelEvent("private-orders", "client-order", payloadSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		// let the sender flush its queue before the closing handshake
+		if (last != null) {
+			last.get(5, TimeUnit.SECONDS);
+		}
+		websocket.close();
+		sink.join(5000);
+		server.close();
+	}
+
+	@Benchmark
+	public WebSocketSendFuture send() throws Exception {
+		if (queueCapacity > 0) {
+			last = websocket.sendAsync(message);
+			return last;
+		}
+		websocket.send(message);
+		return null;
+	}
+
+	private static void drain(final Socket socket) throws IOException {
+		InputStream input = socket.getInputStream();
+		final OutputStream output = socket.getOutputStream();
+
+		StringBuilder request = new StringBuilder();
+		while (request.indexOf("\r\n\r\n") == -1) {
+			int b = input.read();
+			if (b == -1) {
+				socket.close();
+				return;
+			}
+			request.append((char) b);
+		}
+
+		String key = null;
+		for (String line : request.toString().split("\r\n")) {
+			if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+				key = line.substring(line.indexOf(':') + 1).trim();
+			}
+		}
+		output.write(("HTTP/1.1 101 Switching Protocols\r\n" + "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + WebSocketHandshake.acceptKey(key) + "\r\n\r\n").getBytes("US-ASCII"));
+		output.flush();
+
+		final boolean[] closed = new boolean[1];
+		WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(new WebSocketFrameDecoder.FrameHandler() {
+			public void onMessage(int opcode, byte[] data, int offset, int length) {
+			}
+
+			public void onControlFrame(int opcode, byte[] data, int offset, int length) throws WebSocketException {
+				if (opcode != WebSocketFrame.OPCODE_CLOSE) {
+					return;
+				}
+				closed[0] = true;
+				try {
+					output.write(WebSocketFrame.encode(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_CLOSE, data,
+							offset, length, false, 0));
+					output.flush();
+				} catch (IOException ioe) {
+					// the client does not wait for the reply
+				}
+			}
+		});
+
+		try {
+			while (!closed[0] && decoder.read(input) != -1) {
+			}
+		} catch (WebSocketException wse) {
+			throw new IOException(wse.getMessage());
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Authorizes channels through an HTTP endpoint, many channels per request.
+ * Requests made close together, such as the resubscribes after a
+ * reconnect, are collected for up to one TimerWheel tick, or until
+ * maxBatch have queued, and posted as one JSON body:
+ *
+ * <pre>
+ * {"requests":[{"socket_id":"..","channel_name":"..","channel_data":".."}, ...]}
+ * </pre>
+ *
+ * The endpoint answers with one entry per request, in the same order:
+ *
+ * <pre>
+ * {"responses":[{"auth":"..","channel_data":".."}, {"error":".."}, ...]}
+ * </pre>
+ *
+ * channel_data in a response is optional and replaces the requested one.
+ * AuthTestServer in the test sources implements the endpoint.
+ */
+public class BatchingChannelAuthorizer implements ChannelAuthorizer {
+	public static final int DEFAULT_MAX_BATCH = 100;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final URL endpoint;
+	private final int maxBatch;
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+	private volatile int timeoutMillis = 10000;
+
+	private List<Request> pending = new ArrayList<Request>();
+	private boolean flushScheduled = false;
+
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			List<Request> batch;
+			synchronized (BatchingChannelAuthorizer.this) {
+				flushScheduled = false;
+				batch = takePending();
+			}
+			if (batch != null) {
+				post(batch);
+			}
+		}
+	};
+
+	private final Runnable flushOnWorker = new Runnable() {
+		public void run() {
+			TimerWheel.execute(flush);
+		}
+	};
+
+	public BatchingChannelAuthorizer(URL endpoint) {
+		this(endpoint, DEFAULT_MAX_BATCH);
+	}
+
+	public BatchingChannelAuthorizer(URL endpoint, int maxBatch) {
+		this.endpoint = endpoint;
+		this.maxBatch = Math.max(1, maxBatch);
+	}
+
+	/**
+	 * Adds a header to every request, e.g. a session cookie.
+	 */
+	public synchronized void setHeader(String name, String value) {
+		headers.put(name, value);
+	}
+
+	/**
+	 * Connect and read timeout for each request, 10s by default.
+	 */
+	public void setTimeout(int millis) {
+		timeoutMillis = millis;
+	}
+
+	public void authorize(String socketId, String channelName, String channelData, Callback callback) {
+		final List<Request> full;
+		boolean schedule = false;
+		synchronized (this) {
+			pending.add(new Request(socketId, channelName, channelData, callback));
+			full = pending.size() >= maxBatch ? takePending() : null;
+			if (full == null && !flushScheduled) {
+				flushScheduled = true;
+				schedule = true;
+			}
+		}
+
+		if (full != null) {
+			TimerWheel.execute(new Runnable() {
+				public void run() {
+					post(full);
+				}
+			});
+		} else if (schedule) {
+			TimerWheel.getDefault().schedule(flushOnWorker, 1);
+		}
+	}
+
+	private List<Request> takePending() {
+		if (pending.isEmpty()) {
+			return null;
+		}
+		List<Request> batch = pending;
+		pending = new ArrayList<Request>();
+		return batch;
+	}
+
+	private void post(List<Request> batch) {
+		JSONArray responses;
+		try {
+			JSONArray requests = new JSONArray();
+			for (Request request : batch) {
+				JSONObject entry = new JSONObject();
+				entry.put("socket_id", request.socketId);
+				entry.put("channel_name", request.channelName);
+				if (request.channelData != null) {
+					entry.put("channel_data", request.channelData);
+				}
+				requests.put(entry);
+			}
+			byte[] body = new JSONObject().put("requests", requests).toString().getBytes(UTF8);
+			responses = new JSONObject(exchange(body)).getJSONArray("responses");
+		} catch (Exception e) {
+			for (Request request : batch) {
+				request.callback.onFailure(e);
+			}
+			return;
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			Request request = batch.get(i);
+			JSONObject response = responses.optJSONObject(i);
+			String auth = response != null ? response.optString("auth", null) : null;
+			if (auth == null) {
+				String error = response != null ? response.optString("error", "not authorized") : "no response";
+				request.callback.onFailure(new IOException(request.channelName + ": " + error));
+			} else {
+				request.callback.onAuthorized(auth, response.optString("channel_data", null));
+			}
+		}
+	}
+
+	private String exchange(byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setConnectTimeout(timeoutMillis);
+			connection.setReadTimeout(timeoutMillis);
+			connection.setFixedLengthStreamingMode(body.length);
+			connection.setRequestProperty("Content-Type", "application/json");
+			synchronized (this) {
+				for (Map.Entry<String, String> header : headers.entrySet()) {
+					connection.setRequestProperty(header.getKey(), header.getValue());
+				}
+			}
+
+			OutputStream output = connection.getOutputStream();
+			output.write(body);
+			output.close();
+
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("auth endpoint answered HTTP " + status);
+			}
+
+			InputStream input = connection.getInputStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = input.read(buffer)) != -1) {
+				response.write(buffer, 0, n);
+			}
+			input.close();
+			return new String(response.toByteArray(), UTF8);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static final class Request {
+		final String socketId;
+		final String channelName;
+		final String channelData;
+		final Callback callback;
+
+		Request(String socketId, String channelName, String channelData, Callback callback) {
+			this.socketId = socketId;
+			this.channelName = channelName;
+			this.channelData = channelData;
+			this.callback = callback;
+		}
+	}
+}
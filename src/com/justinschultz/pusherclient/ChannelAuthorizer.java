@@ -0,0 +1,47 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * Produces the auth signature for subscribing to a private or presence
+ * channel. Pusher calls it on every subscribe, including resubscribes
+ * after a reconnect, since the signature covers the connection's socket
+ * id. It may answer on another thread, and later.
+ */
+public interface ChannelAuthorizer {
+	/**
+	 * @param channelData
+	 *            the presence channel_data JSON, or null for private
+	 *            channels
+	 */
+	public void authorize(String socketId, String channelName, String channelData, Callback callback);
+
+	public interface Callback {
+		/**
+		 * @param channelData
+		 *            channel_data to send with the subscribe when the
+		 *            authorizer replaced the requested one, otherwise null
+		 */
+		public void onAuthorized(String auth, String channelData);
+
+		public void onFailure(Exception cause);
+	}
+}
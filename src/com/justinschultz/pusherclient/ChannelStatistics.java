@@ -0,0 +1,88 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * Dispatch counts and latency histograms for one channel, or for all
+ * channels of a client.
+ */
+public class ChannelStatistics implements ChannelStatisticsMBean {
+	private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+	private final LatencyHistogram listenerTime = new LatencyHistogram();
+
+	void record(long dispatchLatencyNanos, long listenerNanos) {
+		dispatchLatency.record(dispatchLatencyNanos);
+		listenerTime.record(listenerNanos);
+	}
+
+	public LatencyHistogram getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	public LatencyHistogram getListenerTime() {
+		return listenerTime;
+	}
+
+	public long getMessagesDispatched() {
+		return dispatchLatency.getCount();
+	}
+
+	public long getDispatchLatencyMeanNanos() {
+		return dispatchLatency.getMean();
+	}
+
+	public long getDispatchLatencyP50Nanos() {
+		return dispatchLatency.getPercentile(50);
+	}
+
+	public long getDispatchLatencyP99Nanos() {
+		return dispatchLatency.getPercentile(99);
+	}
+
+	public long getDispatchLatencyP999Nanos() {
+		return dispatchLatency.getPercentile(99.9);
+	}
+
+	public long getDispatchLatencyMaxNanos() {
+		return dispatchLatency.getMax();
+	}
+
+	public long getListenerTimeMeanNanos() {
+		return listenerTime.getMean();
+	}
+
+	public long getListenerTimeP50Nanos() {
+		return listenerTime.getPercentile(50);
+	}
+
+	public long getListenerTimeP99Nanos() {
+		return listenerTime.getPercentile(99);
+	}
+
+	public long getListenerTimeMaxNanos() {
+		return listenerTime.getMax();
+	}
+
+	public void reset() {
+		dispatchLatency.reset();
+		listenerTime.reset();
+	}
+}
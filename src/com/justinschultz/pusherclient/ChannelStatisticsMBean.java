@@ -0,0 +1,48 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * JMX view of a ChannelStatistics. Durations are in nanoseconds.
+ */
+public interface ChannelStatisticsMBean {
+	public long getMessagesDispatched();
+
+	public long getDispatchLatencyMeanNanos();
+
+	public long getDispatchLatencyP50Nanos();
+
+	public long getDispatchLatencyP99Nanos();
+
+	public long getDispatchLatencyP999Nanos();
+
+	public long getDispatchLatencyMaxNanos();
+
+	public long getListenerTimeMeanNanos();
+
+	public long getListenerTimeP50Nanos();
+
+	public long getListenerTimeP99Nanos();
+
+	public long getListenerTimeMaxNanos();
+
+	public void reset();
+}
@@ -0,0 +1,201 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.justinschultz.websocket.WebSocketException;
+
+/**
+ * A token bucket for the client events of one connection. Events go out
+ * immediately while tokens are left; after that they wait, one per key,
+ * and a newer event for the same key replaces the waiting one in place.
+ * A burst therefore collapses into the latest value per key, and memory
+ * is bounded by the number of keys rather than the number of events.
+ *
+ * Waiting events are sent from the shared TimerWheel's workers as tokens
+ * come back, in the order their keys first started waiting.
+ *
+ * No socket write happens under the limiter's lock. Events that got a
+ * token go through an outbox that one thread at a time writes out, so
+ * they still reach the socket in the order the tokens were granted.
+ */
+final class ClientEventLimiter {
+	private final Pusher owner;
+	private double tokensPerMilli;
+	private double burst;
+
+	private final LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+	private double tokens;
+	private long refilledAt = System.nanoTime();
+	private boolean drainScheduled = false;
+
+	// empty whenever no thread is sending
+	private final ArrayDeque<String> outbox = new ArrayDeque<String>();
+	private boolean sending = false;
+
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	private final Runnable drainOnWorker = new Runnable() {
+		public void run() {
+			TimerWheel.execute(drain);
+		}
+	};
+
+	ClientEventLimiter(Pusher owner, int eventsPerSecond, int burst) {
+		checkRate(eventsPerSecond);
+		this.owner = owner;
+		this.tokensPerMilli = eventsPerSecond / 1000.0;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+	}
+
+	void send(String key, String text) throws WebSocketException {
+		synchronized (this) {
+			if (!pending.isEmpty() || !acquire()) {
+				pending.put(key, text);
+				if (!drainScheduled) {
+					scheduleDrain();
+				}
+				return;
+			}
+			if (sending) {
+				outbox.add(text);
+				return;
+			}
+			sending = true;
+		}
+
+		try {
+			owner.sendText(text);
+		} finally {
+			sendOutbox();
+		}
+	}
+
+	/**
+	 * Changes the rate in place, keeping waiting events. Tokens earned at
+	 * the old rate are kept up to the new burst.
+	 */
+	synchronized void setRate(int eventsPerSecond, int burst) {
+		checkRate(eventsPerSecond);
+		refill();
+		this.tokensPerMilli = eventsPerSecond / 1000.0;
+		this.burst = Math.max(1, burst);
+		tokens = Math.min(this.burst, tokens);
+	}
+
+	/**
+	 * Sends every waiting event now, for when limiting is switched off.
+	 */
+	void flush() {
+		synchronized (this) {
+			outbox.addAll(pending.values());
+			pending.clear();
+			if (sending) {
+				return;
+			}
+			sending = true;
+		}
+		sendOutbox();
+	}
+
+	synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	private void drain() {
+		synchronized (this) {
+			drainScheduled = false;
+
+			Iterator<Map.Entry<String, String>> entries = pending.entrySet().iterator();
+			while (entries.hasNext() && acquire()) {
+				outbox.add(entries.next().getValue());
+				entries.remove();
+			}
+
+			if (!pending.isEmpty()) {
+				scheduleDrain();
+			}
+			if (sending || outbox.isEmpty()) {
+				return;
+			}
+			sending = true;
+		}
+		sendOutbox();
+	}
+
+	/**
+	 * Writes out the outbox on the thread that set sending, until it is
+	 * empty.
+	 */
+	private void sendOutbox() {
+		while (true) {
+			String text;
+			synchronized (this) {
+				text = outbox.poll();
+				if (text == null) {
+					sending = false;
+					return;
+				}
+			}
+			try {
+				owner.sendText(text);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void scheduleDrain() {
+		drainScheduled = true;
+		long wait = (long) Math.ceil((1 - tokens) / tokensPerMilli);
+		TimerWheel.getDefault().schedule(drainOnWorker, Math.max(1, wait));
+	}
+
+	private static void checkRate(int eventsPerSecond) {
+		if (eventsPerSecond <= 0) {
+			throw new IllegalArgumentException("eventsPerSecond must be positive: " + eventsPerSecond);
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilledAt) / 1000000.0 * tokensPerMilli);
+		refilledAt = now;
+	}
+
+	private boolean acquire() {
+		refill();
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,144 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.justinschultz.pusherclient.Pusher.Channel;
+import com.justinschultz.websocket.WebSocketMessage;
+
+/**
+ * Conflating delivery for one event of one channel. The receiving thread
+ * only puts the parsed message into a map by key, replacing any event for
+ * that key that has not been delivered yet, so it never waits for
+ * listeners. One task at a time on the executor delivers the waiting
+ * events, each the latest for its key.
+ *
+ * The queue keeps the message's buffer until the event is delivered or
+ * replaced, then hands it back to the pool. Memory is bounded by the
+ * number of keys.
+ *
+ * Conflation saves delivery, not parsing: the text is decoded and the key
+ * decoder runs on the receiving thread for every event, as the
+ * PusherListener sees them all. An event that is replaced never reaches
+ * the channel's listeners or the decoders of its typed bindings.
+ */
+final class ConflatingQueue implements Runnable {
+	private static final int BATCH_SIZE = 64;
+
+	private final Channel channel;
+	private final Executor executor;
+	private final Decoder<String> keyDecoder;
+
+	private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+	private boolean scheduled = false;
+
+	ConflatingQueue(Channel channel, Executor executor, Decoder<String> keyDecoder) {
+		this.channel = channel;
+		this.executor = executor;
+		this.keyDecoder = keyDecoder;
+	}
+
+	/**
+	 * Queues the event. The queue takes over the message and releases it;
+	 * the envelope and text must come from that message.
+	 */
+	void offer(Pusher receiver, PusherEnvelope envelope, WebSocketMessage message, String text) throws Exception {
+		String key = "";
+		if (keyDecoder != null) {
+			key = envelope.decodeData(keyDecoder);
+			if (key == null) {
+				key = "";
+			}
+		}
+
+		Pending event = new Pending(receiver, envelope, message, text);
+		Pending replaced;
+		boolean schedule;
+		synchronized (this) {
+			replaced = pending.put(key, event);
+			schedule = !scheduled;
+			scheduled = true;
+		}
+		if (replaced != null) {
+			replaced.message.release();
+		}
+		if (schedule) {
+			schedule();
+		}
+	}
+
+	public void run() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			Pending event;
+			synchronized (this) {
+				Iterator<Pending> events = pending.values().iterator();
+				if (!events.hasNext()) {
+					scheduled = false;
+					return;
+				}
+				event = events.next();
+				events.remove();
+			}
+
+			try {
+				event.receiver.notifyChannelEvent(channel, event.envelope, event.envelope.getEvent(), event.text);
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				event.message.release();
+			}
+		}
+
+		// yield the executor thread, as StripedDispatcher does
+		schedule();
+	}
+
+	private void schedule() {
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			// the events stay queued, and the message with them, so this is
+			// not thrown to the receiver; the next offer schedules again
+			synchronized (this) {
+				scheduled = false;
+			}
+			e.printStackTrace();
+		}
+	}
+
+	private static final class Pending {
+		final Pusher receiver;
+		final PusherEnvelope envelope;
+		final WebSocketMessage message;
+		final String text;
+
+		Pending(Pusher receiver, PusherEnvelope envelope, WebSocketMessage message, String text) {
+			this.receiver = receiver;
+			this.envelope = envelope;
+			this.message = message;
+			this.text = text;
+		}
+	}
+}
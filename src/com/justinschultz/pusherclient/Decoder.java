@@ -0,0 +1,33 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * Turns the data field of an event into a typed value. It receives the
+ * data as UTF-8 bytes straight from the received frame: the unescaped text
+ * when Pusher sent the data as a JSON string, otherwise the raw JSON.
+ *
+ * The array belongs to the message buffer and is reused once the event has
+ * been delivered, so a decoder must copy anything it keeps.
+ */
+public interface Decoder<T> {
+	public T decode(byte[] data, int offset, int length) throws Exception;
+}
@@ -0,0 +1,117 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Decoders for common types, and the ones used by bind(event, Class,
+ * listener). A class is decoded as a JSONObject handed to its public
+ * constructor taking one; decoders are cached per class so that listeners
+ * bound with the same class share the decoded value.
+ */
+public final class Decoders {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final Decoder<String> STRING = new Decoder<String>() {
+		public String decode(byte[] data, int offset, int length) {
+			return new String(data, offset, length, UTF8);
+		}
+	};
+
+	public static final Decoder<JSONObject> JSON_OBJECT = new Decoder<JSONObject>() {
+		public JSONObject decode(byte[] data, int offset, int length) throws Exception {
+			return new JSONObject(new String(data, offset, length, UTF8));
+		}
+	};
+
+	public static final Decoder<JSONArray> JSON_ARRAY = new Decoder<JSONArray>() {
+		public JSONArray decode(byte[] data, int offset, int length) throws Exception {
+			return new JSONArray(new String(data, offset, length, UTF8));
+		}
+	};
+
+	public static final Decoder<byte[]> BYTES = new Decoder<byte[]>() {
+		public byte[] decode(byte[] data, int offset, int length) {
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			return copy;
+		}
+	};
+
+	private static final ConcurrentHashMap<Class<?>, Decoder<?>> byClass = new ConcurrentHashMap<Class<?>, Decoder<?>>();
+
+	static {
+		byClass.put(String.class, STRING);
+		byClass.put(JSONObject.class, JSON_OBJECT);
+		byClass.put(JSONArray.class, JSON_ARRAY);
+		byClass.put(byte[].class, BYTES);
+	}
+
+	private Decoders() {
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the class is not one of the built in types and has no
+	 *             public constructor taking a JSONObject
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Decoder<T> forClass(Class<T> type) {
+		Decoder<?> decoder = byClass.get(type);
+		if (decoder == null) {
+			Decoder<?> created = new ConstructorDecoder<T>(type);
+			decoder = byClass.putIfAbsent(type, created);
+			if (decoder == null) {
+				decoder = created;
+			}
+		}
+		return (Decoder<T>) decoder;
+	}
+
+	private static final class ConstructorDecoder<T> implements Decoder<T> {
+		private final Constructor<T> constructor;
+
+		ConstructorDecoder(Class<T> type) {
+			try {
+				constructor = type.getConstructor(JSONObject.class);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException("no decoder for " + type.getName()
+						+ ": it needs a public constructor taking a JSONObject");
+			}
+		}
+
+		public T decode(byte[] data, int offset, int length) throws Exception {
+			try {
+				return constructor.newInstance(JSON_OBJECT.decode(data, offset, length));
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				throw cause instanceof Exception ? (Exception) cause : e;
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Listeners per event name. Each event maps to an immutable array that is
+ * replaced on bind/unbind, so the receiver thread reads it without locking
+ * while application threads change bindings. Typed listeners are grouped
+ * by decoder, so that each decoder runs once per event.
+ */
+class EventBindings {
+	private static final ChannelListener[] NONE = new ChannelListener[0];
+
+	private static final TypedBinding[] NO_BINDINGS = new TypedBinding[0];
+	private static final TypedListener<?>[] NO_TYPED = new TypedListener<?>[0];
+
+	private final ConcurrentHashMap<String, ChannelListener[]> listeners = new ConcurrentHashMap<String, ChannelListener[]>();
+	private final ConcurrentHashMap<String, TypedBinding[]> typed = new ConcurrentHashMap<String, TypedBinding[]>();
+
+	public synchronized void bind(String eventName, ChannelListener listener) {
+		ChannelListener[] current = listeners.get(eventName);
+		if (current == null) {
+			current = NONE;
+		}
+
+		ChannelListener[] updated = new ChannelListener[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = listener;
+		listeners.put(eventName, updated);
+	}
+
+	public synchronized boolean unbind(String eventName, ChannelListener listener) {
+		ChannelListener[] current = listeners.get(eventName);
+		if (current == null) {
+			return false;
+		}
+
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == listener) {
+				if (current.length == 1) {
+					listeners.remove(eventName);
+				} else {
+					ChannelListener[] updated = new ChannelListener[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, i);
+					System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+					listeners.put(eventName, updated);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized void bind(String eventName, Decoder<?> decoder, TypedListener<?> listener) {
+		TypedBinding[] current = typed.get(eventName);
+		if (current == null) {
+			current = NO_BINDINGS;
+		}
+
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].decoder == decoder) {
+				TypedBinding[] updated = current.clone();
+				updated[i] = current[i].with(listener);
+				typed.put(eventName, updated);
+				return;
+			}
+		}
+
+		TypedBinding[] updated = new TypedBinding[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = new TypedBinding(decoder, NO_TYPED).with(listener);
+		typed.put(eventName, updated);
+	}
+
+	public synchronized boolean unbindTyped(String eventName, TypedListener<?> listener) {
+		TypedBinding[] current = typed.get(eventName);
+		if (current == null) {
+			return false;
+		}
+
+		for (int i = 0; i < current.length; i++) {
+			TypedBinding binding = current[i].without(listener);
+			if (binding == current[i]) {
+				continue;
+			}
+
+			if (binding != null) {
+				TypedBinding[] updated = current.clone();
+				updated[i] = binding;
+				typed.put(eventName, updated);
+			} else if (current.length == 1) {
+				typed.remove(eventName);
+			} else {
+				TypedBinding[] updated = new TypedBinding[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				typed.put(eventName, updated);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized void unbindAll(String eventName) {
+		listeners.remove(eventName);
+		typed.remove(eventName);
+	}
+
+	/**
+	 * Returns the listeners for the event, or null if there are none. The
+	 * array must not be modified.
+	 */
+	public ChannelListener[] get(String eventName) {
+		return listeners.get(eventName);
+	}
+
+	/**
+	 * Returns the typed listeners for the event grouped by decoder, or null
+	 * if there are none. The array must not be modified.
+	 */
+	public TypedBinding[] getTyped(String eventName) {
+		return typed.get(eventName);
+	}
+
+	/**
+	 * The listeners bound to one event with the same decoder.
+	 */
+	static final class TypedBinding {
+		final Decoder<?> decoder;
+		private final TypedListener<?>[] listeners;
+
+		private TypedBinding(Decoder<?> decoder, TypedListener<?>[] listeners) {
+			this.decoder = decoder;
+			this.listeners = listeners;
+		}
+
+		@SuppressWarnings("unchecked")
+		void deliver(Object value) {
+			for (TypedListener<?> listener : listeners) {
+				((TypedListener<Object>) listener).onEvent(value);
+			}
+		}
+
+		private TypedBinding with(TypedListener<?> listener) {
+			TypedListener<?>[] updated = new TypedListener<?>[listeners.length + 1];
+			System.arraycopy(listeners, 0, updated, 0, listeners.length);
+			updated[listeners.length] = listener;
+			return new TypedBinding(decoder, updated);
+		}
+
+		/**
+		 * Returns this binding if the listener is not part of it, or null if
+		 * it was the only one.
+		 */
+		private TypedBinding without(TypedListener<?> listener) {
+			for (int i = 0; i < listeners.length; i++) {
+				if (listeners[i] == listener) {
+					if (listeners.length == 1) {
+						return null;
+					}
+					TypedListener<?>[] updated = new TypedListener<?>[listeners.length - 1];
+					System.arraycopy(listeners, 0, updated, 0, i);
+					System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+					return new TypedBinding(decoder, updated);
+				}
+			}
+			return this;
+		}
+	}
+}
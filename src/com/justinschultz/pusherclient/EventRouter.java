@@ -0,0 +1,227 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Listeners bound by channel and event patterns. A pattern is a name, a
+ * prefix followed by '*' (e.g. "orders-*" or "client-*"), or "*" alone.
+ *
+ * Bindings are compiled into a two level trie, channel names then event
+ * names, which is rebuilt on bind/unbind and published through a volatile
+ * field, so the receiving thread matches without locking. Matching walks
+ * the channel name once and the event name once per channel pattern that
+ * matched, however many patterns are bound.
+ */
+final class EventRouter {
+	private final List<Route> routes = new ArrayList<Route>();
+	private volatile Node compiled = null;
+
+	synchronized void bind(String channelPattern, String eventPattern, ChannelListener listener) {
+		check(channelPattern);
+		check(eventPattern);
+		routes.add(new Route(channelPattern, eventPattern, listener));
+		compile();
+	}
+
+	synchronized boolean unbind(String channelPattern, String eventPattern, ChannelListener listener) {
+		for (Iterator<Route> i = routes.iterator(); i.hasNext();) {
+			Route route = i.next();
+			if (route.listener == listener && route.channelPattern.equals(channelPattern)
+					&& route.eventPattern.equals(eventPattern)) {
+				i.remove();
+				compile();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void route(String channelName, String eventName, String text) {
+		Node node = compiled;
+		for (int i = 0; node != null; i++) {
+			if (node.prefix != null) {
+				notify((Node) node.prefix, eventName, text);
+			}
+			if (i == channelName.length()) {
+				if (node.exact != null) {
+					notify((Node) node.exact, eventName, text);
+				}
+				return;
+			}
+			node = node.child(channelName.charAt(i));
+		}
+	}
+
+	private static void notify(Node events, String eventName, String text) {
+		Node node = events;
+		for (int i = 0; node != null; i++) {
+			if (node.prefix != null) {
+				notify((ChannelListener[]) node.prefix, text);
+			}
+			if (i == eventName.length()) {
+				if (node.exact != null) {
+					notify((ChannelListener[]) node.exact, text);
+				}
+				return;
+			}
+			node = node.child(eventName.charAt(i));
+		}
+	}
+
+	private static void notify(ChannelListener[] listeners, String text) {
+		for (ChannelListener listener : listeners) {
+			listener.onMessage(text);
+		}
+	}
+
+	private static void check(String pattern) {
+		int star = pattern.indexOf('*');
+		if (star != -1 && star != pattern.length() - 1) {
+			throw new IllegalArgumentException("'*' is only supported at the end of a pattern: " + pattern);
+		}
+	}
+
+	private void compile() {
+		if (routes.isEmpty()) {
+			compiled = null;
+			return;
+		}
+
+		Map<String, Map<String, List<ChannelListener>>> byChannel = new LinkedHashMap<String, Map<String, List<ChannelListener>>>();
+		for (Route route : routes) {
+			Map<String, List<ChannelListener>> byEvent = byChannel.get(route.channelPattern);
+			if (byEvent == null) {
+				byEvent = new LinkedHashMap<String, List<ChannelListener>>();
+				byChannel.put(route.channelPattern, byEvent);
+			}
+			List<ChannelListener> listeners = byEvent.get(route.eventPattern);
+			if (listeners == null) {
+				listeners = new ArrayList<ChannelListener>();
+				byEvent.put(route.eventPattern, listeners);
+			}
+			listeners.add(route.listener);
+		}
+
+		Builder channels = new Builder();
+		for (Map.Entry<String, Map<String, List<ChannelListener>>> channel : byChannel.entrySet()) {
+			Builder events = new Builder();
+			for (Map.Entry<String, List<ChannelListener>> event : channel.getValue().entrySet()) {
+				List<ChannelListener> listeners = event.getValue();
+				events.put(event.getKey(), listeners.toArray(new ChannelListener[listeners.size()]));
+			}
+			channels.put(channel.getKey(), events.build());
+		}
+		compiled = channels.build();
+	}
+
+	/**
+	 * A compiled trie node. Children are kept in arrays sorted by label
+	 * and found by binary search; exact holds the value of a pattern that
+	 * ends here, prefix the value of one that ends here with '*'.
+	 */
+	private static final class Node {
+		final char[] labels;
+		final Node[] children;
+		final Object exact;
+		final Object prefix;
+
+		Node(char[] labels, Node[] children, Object exact, Object prefix) {
+			this.labels = labels;
+			this.children = children;
+			this.exact = exact;
+			this.prefix = prefix;
+		}
+
+		Node child(char c) {
+			int low = 0;
+			int high = labels.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				char label = labels[mid];
+				if (label < c) {
+					low = mid + 1;
+				} else if (label > c) {
+					high = mid - 1;
+				} else {
+					return children[mid];
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class Builder {
+		private final TreeMap<Character, Builder> children = new TreeMap<Character, Builder>();
+		private Object exact = null;
+		private Object prefix = null;
+
+		void put(String pattern, Object value) {
+			boolean isPrefix = pattern.endsWith("*");
+			int length = isPrefix ? pattern.length() - 1 : pattern.length();
+
+			Builder node = this;
+			for (int i = 0; i < length; i++) {
+				Character c = Character.valueOf(pattern.charAt(i));
+				Builder child = node.children.get(c);
+				if (child == null) {
+					child = new Builder();
+					node.children.put(c, child);
+				}
+				node = child;
+			}
+			if (isPrefix) {
+				node.prefix = value;
+			} else {
+				node.exact = value;
+			}
+		}
+
+		Node build() {
+			char[] labels = new char[children.size()];
+			Node[] nodes = new Node[children.size()];
+			int i = 0;
+			for (Map.Entry<Character, Builder> child : children.entrySet()) {
+				labels[i] = child.getKey().charValue();
+				nodes[i++] = child.getValue().build();
+			}
+			return new Node(labels, nodes, exact, prefix);
+		}
+	}
+
+	private static final class Route {
+		final String channelPattern;
+		final String eventPattern;
+		final ChannelListener listener;
+
+		Route(String channelPattern, String eventPattern, ChannelListener listener) {
+			this.channelPattern = channelPattern;
+			this.eventPattern = eventPattern;
+			this.listener = listener;
+		}
+	}
+}
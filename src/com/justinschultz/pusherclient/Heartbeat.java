@@ -0,0 +1,135 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import com.justinschultz.websocket.WebSocket;
+
+/**
+ * Keeps one connection alive as Pusher's protocol asks: once nothing has
+ * arrived for the activity timeout it sends pusher:ping, and if nothing
+ * arrives within the pong timeout either, the connection is taken to be
+ * half-open and closed so that the reconnect policy can take over.
+ *
+ * Received messages only record a timestamp. The check runs on the shared
+ * TimerWheel and is re-armed once per period, not once per message; the
+ * ping and the close write to the socket, so they run on its workers.
+ */
+final class Heartbeat implements Runnable {
+	private static final String PING = "{\"event\":\"pusher:ping\",\"data\":{}}";
+
+	private final WebSocket socket;
+	private final long activityNanos;
+	private final long pongNanos;
+
+	private volatile long lastActivity = System.nanoTime();
+	private volatile boolean stopped = false;
+	private volatile TimerWheel.Timeout timeout = null;
+
+	// only touched by the timer thread
+	private boolean awaitingPong = false;
+	private long pingSentAt;
+
+	Heartbeat(WebSocket socket, long activityMillis, long pongMillis) {
+		this.socket = socket;
+		this.activityNanos = activityMillis * 1000000L;
+		this.pongNanos = pongMillis * 1000000L;
+	}
+
+	void start() {
+		arm(activityNanos);
+	}
+
+	void stop() {
+		stopped = true;
+		TimerWheel.Timeout current = timeout;
+		if (current != null) {
+			current.cancel();
+		}
+	}
+
+	void onActivity() {
+		lastActivity = System.nanoTime();
+	}
+
+	public void run() {
+		if (stopped) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (awaitingPong) {
+			if (lastActivity - pingSentAt > 0) {
+				awaitingPong = false;
+			} else if (now - pingSentAt >= pongNanos) {
+				stopped = true;
+				TimerWheel.execute(new Runnable() {
+					public void run() {
+						close();
+					}
+				});
+				return;
+			} else {
+				arm(Math.min(pongNanos - (now - pingSentAt), activityNanos));
+				return;
+			}
+		}
+
+		long idle = now - lastActivity;
+		if (idle < activityNanos) {
+			arm(activityNanos - idle);
+			return;
+		}
+
+		awaitingPong = true;
+		pingSentAt = now;
+		TimerWheel.execute(new Runnable() {
+			public void run() {
+				ping();
+			}
+		});
+		// look again after the shorter period, so that a prompt pong
+		// restarts the activity timer instead of waiting out the deadline
+		arm(Math.min(pongNanos, activityNanos));
+	}
+
+	private void arm(long delayNanos) {
+		timeout = TimerWheel.getDefault().schedule(this, (delayNanos + 999999L) / 1000000L);
+		if (stopped) {
+			timeout.cancel();
+		}
+	}
+
+	private void ping() {
+		try {
+			socket.send(PING);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void close() {
+		try {
+			socket.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
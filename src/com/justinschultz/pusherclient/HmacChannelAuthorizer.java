@@ -0,0 +1,104 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs channel subscriptions locally with the app secret, as an auth
+ * endpoint would: key:hex(HMAC-SHA256(secret, socket_id:channel[:data])).
+ * Only for processes that may hold the secret, such as servers and tests.
+ *
+ * Each thread keeps its own initialized Mac, so signing a burst of
+ * resubscribes costs one doFinal() per channel and no key setup.
+ */
+public class HmacChannelAuthorizer implements ChannelAuthorizer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String key;
+	private final SecretKeySpec secret;
+
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return createMac();
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the secret cannot be used as an HMAC-SHA256 key
+	 */
+	public HmacChannelAuthorizer(String key, String secret) {
+		this.key = key;
+		this.secret = new SecretKeySpec(secret.getBytes(UTF8), ALGORITHM);
+		try {
+			macs.set(createMac());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException("unusable secret", e);
+		}
+	}
+
+	public String sign(String socketId, String channelName, String channelData) {
+		String subject = socketId + ":" + channelName;
+		if (channelData != null) {
+			subject += ":" + channelData;
+		}
+
+		byte[] digest = macs.get().doFinal(subject.getBytes(UTF8));
+		char[] auth = new char[key.length() + 1 + digest.length * 2];
+		key.getChars(0, key.length(), auth, 0);
+		int pos = key.length();
+		auth[pos++] = ':';
+		for (byte b : digest) {
+			auth[pos++] = HEX[(b >> 4) & 0x0f];
+			auth[pos++] = HEX[b & 0x0f];
+		}
+		return new String(auth);
+	}
+
+	public void authorize(String socketId, String channelName, String channelData, Callback callback) {
+		String auth;
+		try {
+			auth = sign(socketId, channelName, channelData);
+		} catch (RuntimeException e) {
+			callback.onFailure(e);
+			return;
+		}
+		callback.onAuthorized(auth, null);
+	}
+
+	private Mac createMac() throws GeneralSecurityException {
+		Mac mac = Mac.getInstance(ALGORITHM);
+		mac.init(secret);
+		return mac;
+	}
+}
@@ -0,0 +1,148 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * An open addressing map from int user id to user info, for presence
+ * members. Keys and values live in two parallel arrays with linear probing
+ * and no boxing; removal shifts later entries back instead of leaving
+ * tombstones, so lookups stay short however many members come and go.
+ *
+ * Not thread safe; PresenceChannel guards it.
+ */
+final class MemberMap {
+	private static final String NO_INFO = new String();
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] keys;
+	private String[] values;
+	private int mask;
+	private int size = 0;
+
+	MemberMap() {
+		allocate(MIN_CAPACITY);
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean contains(int key) {
+		return values[find(key)] != null;
+	}
+
+	/**
+	 * Returns the info stored for the key, or null if there is none.
+	 */
+	String get(int key) {
+		String value = values[find(key)];
+		return value == NO_INFO ? null : value;
+	}
+
+	/**
+	 * @return whether the key was added rather than updated
+	 */
+	boolean put(int key, String info) {
+		int slot = find(key);
+		boolean added = values[slot] == null;
+		keys[slot] = key;
+		values[slot] = info != null ? info : NO_INFO;
+		if (added && ++size > (mask + 1) * 3 / 4) {
+			resize((mask + 1) * 2);
+		}
+		return added;
+	}
+
+	boolean remove(int key) {
+		int slot = find(key);
+		if (values[slot] == null) {
+			return false;
+		}
+
+		// shift back entries that probed past the freed slot
+		int free = slot;
+		int next = (slot + 1) & mask;
+		while (values[next] != null) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				keys[free] = keys[next];
+				values[free] = values[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[free] = null;
+		size--;
+		return true;
+	}
+
+	void clear(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < expectedSize) {
+			capacity *= 2;
+		}
+		allocate(capacity);
+		size = 0;
+	}
+
+	int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	private int find(int key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		String[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new String[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,41 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * Changes to the members of a presence channel. Callbacks run on the
+ * thread that handles the channel's events.
+ */
+public interface PresenceListener {
+	/**
+	 * The subscription succeeded and the member set was replaced by the
+	 * server's list, which happens again after every resubscribe.
+	 */
+	public void onSubscribed(int memberCount);
+
+	/**
+	 * @param userInfo
+	 *            the member's user_info as JSON, or null
+	 */
+	public void onMemberAdded(int userId, String userInfo);
+
+	public void onMemberRemoved(int userId);
+}
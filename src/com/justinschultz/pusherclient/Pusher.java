@@ -21,40 +21,108 @@ package com.justinschultz.pusherclient;
  */
 
 import java.net.URI;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.justinschultz.pusherclient.EventBindings.TypedBinding;
 import com.justinschultz.websocket.WebSocket;
 import com.justinschultz.websocket.WebSocketConnection;
 import com.justinschultz.websocket.WebSocketEventHandler;
+import com.justinschultz.websocket.WebSocketException;
+import com.justinschultz.websocket.WebSocketFactory;
 import com.justinschultz.websocket.WebSocketMessage;
+import com.justinschultz.websocket.WebSocketMetrics;
 
 public class Pusher {
 	private static final String PUSHER_CLIENT = "java-android-client";
 	private final String VERSION = "1.11";
-	private final String HOST = "ws.pusherapp.com";
-	private final int WS_PORT = 80;
-	private final String PREFIX = "ws://";
+	private final int PROTOCOL = 7;
+	private static final String DEFAULT_HOST = "ws.pusherapp.com";
+	private static final int DEFAULT_WS_PORT = 80;
+	private static final String DEFAULT_SCHEME = "ws";
+	private static final long DEFAULT_ACTIVITY_TIMEOUT = 120000;
+	public static final long DEFAULT_PONG_TIMEOUT = 30000;
+	public static final int CLIENT_EVENT_LIMIT = 10;
+	/**
+	 * Delivered to a channel's listeners when its authorization fails. The
+	 * data carries "type" and "error"; the channel is subscribed again
+	 * after the next reconnect.
+	 */
+	public static final String SUBSCRIPTION_ERROR = "pusher:subscription_error";
+	private static final Object DECODE_FAILED = new Object();
+	private static final String PONG = "{\"event\":\"pusher:pong\",\"data\":{}}";
+
+	private final String scheme;
+	private final String host;
+	private final int port;
 
 	private WebSocket webSocket;
+	private WebSocketFactory webSocketFactory;
 	private String apiKey;
-	private final HashMap<String, Channel> channels;
+	private final ConcurrentHashMap<String, Channel> channels;
+	private final EventBindings globalEvents;
+	private final EventRouter router = new EventRouter();
 
 	private PusherListener pusherEventListener;
+	private PusherDispatcher dispatcher;
+	private volatile PusherMetrics metrics;
+
+	private ReconnectPolicy reconnectPolicy;
+	private volatile boolean disconnectRequested = false;
+	private volatile int reconnectAttempt = 0;
+	private volatile String socketId;
+
+	private volatile long activityTimeout = 0;
+	private volatile long pongTimeout = DEFAULT_PONG_TIMEOUT;
+	private volatile Heartbeat heartbeat;
+	private volatile ClientEventLimiter clientEventLimiter;
+	private volatile ChannelAuthorizer authorizer;
 
 	public Pusher(String key) {
+		this(key, DEFAULT_SCHEME, DEFAULT_HOST, DEFAULT_WS_PORT);
+	}
+
+	/**
+	 * Connects to a server other than Pusher's, e.g. a PusherTestServer on
+	 * localhost. The scheme is "ws" or "wss".
+	 */
+	public Pusher(String key, String scheme, String host, int port) {
 		apiKey = key;
-		channels = new HashMap<String, Channel>();
+		this.scheme = scheme;
+		this.host = host;
+		this.port = port;
+		channels = new ConcurrentHashMap<String, Channel>();
+		globalEvents = new EventBindings();
 	}
 
 	public void connect() {
-		String path = "/app/" + apiKey + "?client=" + PUSHER_CLIENT + "&version=" + VERSION;
+		disconnectRequested = false;
+		reconnectAttempt = 0;
+		open();
+	}
+
+	private boolean open() {
+		String path = "/app/" + apiKey + "?client=" + PUSHER_CLIENT + "&version=" + VERSION + "&protocol=" + PROTOCOL;
 
 		try {
-			URI url = new URI(PREFIX + HOST + ":" + WS_PORT + path);
-			webSocket = new WebSocketConnection(url);
-			webSocket.setEventHandler(new WebSocketEventHandler() {
+			URI url = new URI(scheme + "://" + host + ":" + port + path);
+			final WebSocket socket;
+			if (webSocketFactory != null) {
+				socket = webSocketFactory.createWebSocket(url);
+			} else {
+				WebSocketConnection connection = new WebSocketConnection(url);
+				if (metrics instanceof WebSocketMetrics) {
+					connection.setMetrics((WebSocketMetrics) metrics);
+				}
+				socket = connection;
+			}
+			webSocket = socket;
+			socket.setEventHandler(new WebSocketEventHandler() {
 				@Override
 				public void onOpen() {
 					// Pusher's onOpen is invoked after we've received a
@@ -63,37 +131,241 @@ public class Pusher {
 
 				@Override
 				public void onMessage(WebSocketMessage message) {
+					long receivedAt = metrics != null ? System.nanoTime() : 0;
+					boolean handedOff = false;
+					Heartbeat heartbeat = Pusher.this.heartbeat;
+					if (heartbeat != null) {
+						heartbeat.onActivity();
+					}
 					try {
-						JSONObject jsonMessage = new JSONObject(message.getText());
-						String event = jsonMessage.optString("event", null);
+						PusherEnvelope envelope;
+						try {
+							envelope = PusherEnvelope.parse(message.getData(),
+									message.getOffset(), message.getLength());
+						} catch (JSONException e) {
+							if (metrics != null) {
+								metrics.onParseFailure();
+							}
+							throw e;
+						}
 
-						if(event.equals("pusher:connection_established" ))
-						{
-							JSONObject data = new JSONObject(jsonMessage.getString("data"));
-							pusherEventListener.onConnect(data.getString("socket_id"));
+						if ("pusher:connection_established".equals(envelope.getEvent())) {
+							onConnectionEstablished(envelope, socket);
+						} else if ("pusher:ping".equals(envelope.getEvent())) {
+							socket.send(PONG);
+						}
+
+						if (dispatcher == null) {
+							handedOff = handleEvent(envelope, message, receivedAt);
 						} else {
-							pusherEventListener.onMessage(jsonMessage.toString());
-							dispatchChannelEvent(jsonMessage, event);
+							dispatchEvent(envelope, message, receivedAt);
+							handedOff = true;
 						}
 					} catch (Exception e) {
 						e.printStackTrace();
+					} finally {
+						// the envelope reads the message buffer, so it goes
+						// back to the pool only once the event is handled
+						if (!handedOff) {
+							message.release();
+						}
 					}
 				}
 
 				@Override
 				public void onClose() {
-					pusherEventListener.onDisconnect();
+					if (socket != webSocket) {
+						return;
+					}
+					onConnectionClosed();
+
+					if (dispatcher == null) {
+						pusherEventListener.onDisconnect();
+					} else {
+						dispatcher.dispatch(null, new PusherDispatcher.LifecycleTask() {
+							public void run() {
+								pusherEventListener.onDisconnect();
+							}
+						});
+					}
+
+					if (reconnectPolicy != null && !disconnectRequested) {
+						scheduleReconnect();
+					}
 				}
 			});
 
-			webSocket.connect();
-
+			socket.connect();
+			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private void onConnectionEstablished(PusherEnvelope envelope, WebSocket socket) throws Exception {
+		JSONObject data = envelope.getDataObject();
+		// a subscribe that raced with the previous connection closing can
+		// leave a channel marked subscribed, which resubscribeAll would skip
+		resetSubscriptions();
+		socketId = data.getString("socket_id");
+		reconnectAttempt = 0;
+		startHeartbeat(socket, data.optLong("activity_timeout", DEFAULT_ACTIVITY_TIMEOUT / 1000) * 1000);
+		resubscribeAll();
+	}
+
+	/**
+	 * Uses the shorter of the server's activity_timeout and the one set on
+	 * this client; a negative client setting turns heartbeats off.
+	 */
+	private void startHeartbeat(WebSocket socket, long serverTimeout) {
+		stopHeartbeat();
+		long timeout = activityTimeout;
+		if (timeout < 0) {
+			return;
+		}
+		if (timeout == 0 || (serverTimeout > 0 && serverTimeout < timeout)) {
+			timeout = serverTimeout > 0 ? serverTimeout : DEFAULT_ACTIVITY_TIMEOUT;
+		}
+		Heartbeat started = new Heartbeat(socket, timeout, pongTimeout);
+		heartbeat = started;
+		started.start();
+	}
+
+	private void stopHeartbeat() {
+		Heartbeat current = heartbeat;
+		if (current != null) {
+			heartbeat = null;
+			current.stop();
+		}
+	}
+
+	private void onConnectionClosed() {
+		stopHeartbeat();
+		socketId = null;
+		resetSubscriptions();
+	}
+
+	private void resetSubscriptions() {
+		for (Channel c : channels.values()) {
+			synchronized (c) {
+				if (c.owner == this) {
+					c.subscribed = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a subscribe for every known channel without waiting for the
+	 * replies, so that they go out back to back after a (re)connect.
+	 */
+	private void resubscribeAll() {
+		for (Channel c : channels.values()) {
+			sendSubscribeMessage(c);
+		}
+	}
+
+	private void scheduleReconnect() {
+		final ReconnectPolicy policy = reconnectPolicy;
+		if (policy == null || reconnectAttempt >= policy.getMaxAttempts()) {
+			return;
+		}
+
+		final int attempt = reconnectAttempt++;
+		ReconnectScheduler.schedule(new Runnable() {
+			public void run() {
+				if (disconnectRequested || isConnected()) {
+					return;
+				}
+				if (!ReconnectScheduler.tryAcquire()) {
+					reconnectAttempt--;
+					scheduleReconnect();
+					return;
+				}
+
+				if (metrics != null) {
+					metrics.onReconnect();
+				}
+
+				boolean connected;
+				try {
+					connected = open();
+				} finally {
+					ReconnectScheduler.release();
+				}
+				if (!connected && !disconnectRequested) {
+					scheduleReconnect();
+				}
+			}
+		}, policy.getDelayMillis(attempt));
+	}
+
+	private void dispatchEvent(final PusherEnvelope envelope, final WebSocketMessage message, final long receivedAt) {
+		Runnable task = new Runnable() {
+			public void run() {
+				boolean handedOff = false;
+				try {
+					handedOff = handleEvent(envelope, message, receivedAt);
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					if (!handedOff) {
+						message.release();
+					}
+				}
+			}
+		};
+		// pusher: and pusher_internal: events carry the connection,
+		// subscription and presence state, which must not be shed
+		String event = envelope.getEvent();
+		dispatcher.dispatch(envelope.getChannel(), isProtocolEvent(event) ? new LifecycleEvent(task) : task);
+	}
+
+	private static boolean isProtocolEvent(String event) {
+		return event != null && (event.startsWith("pusher:") || event.startsWith("pusher_internal:"));
+	}
+
+	private static final class LifecycleEvent implements PusherDispatcher.LifecycleTask {
+		private final Runnable task;
+
+		LifecycleEvent(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			task.run();
+		}
+	}
+
+	/**
+	 * @return true if a conflating queue took over the message, which then
+	 *         releases it
+	 */
+	private boolean handleEvent(PusherEnvelope envelope, WebSocketMessage message, long receivedAt) throws Exception {
+		PusherMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		String event = envelope.getEvent();
+		boolean handedOff = false;
+
+		if("pusher:connection_established".equals(event))
+		{
+			pusherEventListener.onConnect(envelope.getDataObject().getString("socket_id"));
+		} else {
+			String text = message.getText();
+			pusherEventListener.onMessage(text);
+			handedOff = dispatchChannelEvent(envelope, event, message, text);
+		}
+
+		if (metrics != null) {
+			metrics.onMessageDispatched(envelope.getChannel(), event, start - receivedAt, System.nanoTime() - start);
 		}
+		return handedOff;
 	}
 
 	public void disconnect() {
+		disconnectRequested = true;
+		stopHeartbeat();
 		try {
 			webSocket.close();
 		} catch (Exception e) {
@@ -109,91 +381,368 @@ public class Pusher {
 		pusherEventListener = listener;
 	}
 
-	public Channel subscribe(String channelName) {
-		Channel c = new Channel(channelName);
+	/**
+	 * Runs listener callbacks through the given dispatcher, e.g. a
+	 * StripedDispatcher, instead of on the receiving thread. Pass null to
+	 * go back to invoking listeners inline, which is the default.
+	 */
+	public void setDispatcher(PusherDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
 
-		if (webSocket != null && webSocket.isConnected()) {
-			try {
-				sendSubscribeMessage(c);
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
+	/**
+	 * Reconnects automatically with the given backoff when the connection
+	 * drops without disconnect() having been called. All subscribed
+	 * channels are resubscribed once the new connection is established.
+	 * Pass null to disable, which is the default.
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy) {
+		reconnectPolicy = policy;
+	}
 
-		channels.put(channelName, c);
-		return c;
+	/**
+	 * Records dispatch counts, latencies, parse failures and reconnects,
+	 * e.g. into a PusherStatistics. When the metrics also implement
+	 * WebSocketMetrics they are passed to the default WebSocketConnection;
+	 * a WebSocketFactory has to set them on its connections itself. Pass
+	 * null to disable, which is the default.
+	 */
+	public void setMetrics(PusherMetrics metrics) {
+		this.metrics = metrics;
 	}
 
-	public Channel subscribe(String channelName, String authToken) {
-		Channel c = new Channel(channelName);
+	/**
+	 * Sends pusher:ping after this long without a message from the server.
+	 * The server's activity_timeout is used when it is shorter, or when
+	 * this is 0, which is the default. A negative value disables pings.
+	 */
+	public void setActivityTimeout(long millis) {
+		activityTimeout = millis;
+	}
 
-		if (webSocket != null && webSocket.isConnected()) {
-			try {
-				sendSubscribeMessage(c, authToken);
-			} catch (Exception e) {
-				e.printStackTrace();
+	/**
+	 * How long to wait for any reply to a ping before the connection is
+	 * taken to be dead and closed, which lets the reconnect policy take
+	 * over. Defaults to DEFAULT_PONG_TIMEOUT.
+	 */
+	public void setPongTimeout(long millis) {
+		pongTimeout = millis;
+	}
+
+	/**
+	 * Limits client-* events on this connection to eventsPerSecond, after
+	 * an initial burst, so that bursty publishers stay under the server's
+	 * limit (CLIENT_EVENT_LIMIT per second on Pusher). Events beyond the
+	 * limit wait and are conflated by key, latest value wins; see
+	 * Channel.send(). Pass 0 to send without limiting, which is the
+	 * default. Changing the limit keeps waiting events; removing it sends
+	 * them at once.
+	 */
+	public synchronized void setClientEventLimit(int eventsPerSecond, int burst) {
+		ClientEventLimiter limiter = clientEventLimiter;
+		if (eventsPerSecond <= 0) {
+			clientEventLimiter = null;
+			if (limiter != null) {
+				limiter.flush();
 			}
+		} else if (limiter != null) {
+			limiter.setRate(eventsPerSecond, burst);
+		} else {
+			clientEventLimiter = new ClientEventLimiter(this, eventsPerSecond, burst);
 		}
+	}
 
-		channels.put(channelName, c);
-		return c;
+	/**
+	 * Authorizes private and presence channels subscribed without an auth
+	 * token, on every subscribe and resubscribe, e.g. with an
+	 * HmacChannelAuthorizer or a BatchingChannelAuthorizer. Presence
+	 * channels are authorized with channel_data {"user_id":userId}.
+	 */
+	public void setAuthorizer(ChannelAuthorizer authorizer) {
+		this.authorizer = authorizer;
 	}
 
-	public Channel subscribe(String channelName, String authToken, int userId) {
-		Channel c = new Channel(channelName);
+	public String getSocketId() {
+		return socketId;
+	}
 
-		if (webSocket != null && webSocket.isConnected()) {
-			try {
-				sendSubscribeMessage(c, authToken, userId);
-			} catch (Exception e) {
-				e.printStackTrace();
+	/**
+	 * Selects the transport used by connect(), e.g. a factory returning
+	 * WebSocketChannelConnection to share a selector event loop between
+	 * many clients. By default each client uses a blocking
+	 * WebSocketConnection with its own receiver thread.
+	 */
+	public void setWebSocketFactory(WebSocketFactory factory) {
+		webSocketFactory = factory;
+	}
+
+	public Channel subscribe(String channelName) {
+		return subscribeChannel(channelName, null, null);
+	}
+
+	public Channel subscribe(String channelName, String authToken) {
+		return subscribeChannel(channelName, authToken, null);
+	}
+
+	/**
+	 * Subscribes to a presence channel, which keeps track of the channel's
+	 * members as they join and leave.
+	 */
+	public PresenceChannel subscribe(String channelName, String authToken, int userId) {
+		return (PresenceChannel) subscribeChannel(channelName, authToken, userId);
+	}
+
+	/**
+	 * Subscribing to a channel that is already known returns the existing
+	 * Channel, with its bindings, rather than replacing it. An auth token
+	 * or user id that is not given again is kept.
+	 */
+	private Channel subscribeChannel(String channelName, String authToken, Integer userId) {
+		Channel c = channels.get(channelName);
+		if (c == null) {
+			c = userId != null ? new PresenceChannel(channelName) : new Channel(channelName);
+			Channel existing = channels.putIfAbsent(channelName, c);
+			if (existing != null) {
+				c = existing;
 			}
 		}
+		if (userId != null && !(c instanceof PresenceChannel)) {
+			throw new IllegalArgumentException(channelName + " is already subscribed without a user id");
+		}
+		if (authToken != null) {
+			c.authToken = authToken;
+		}
+		if (userId != null) {
+			c.userId = userId;
+		}
 
-		channels.put(channelName, c);
+		if (socketId != null) {
+			sendSubscribeMessage(c);
+		}
 		return c;
 	}
 
 	public void unsubscribe(String channelName) {
-		if (channels.containsKey(channelName)) {
-			if (webSocket != null && webSocket.isConnected()) {
-				try {
-					sendUnsubscribeMessage(channels.get(channelName));
-				} catch (Exception e) {
-					e.printStackTrace();
+		detachChannel(channelName);
+	}
+
+	/**
+	 * Removes a channel, keeping its bindings, so that it can be attached
+	 * to another client. Unsubscribes it if this client is connected.
+	 */
+	Channel detachChannel(String channelName) {
+		Channel c = channels.remove(channelName);
+		if (c != null) {
+			synchronized (c) {
+				if (c.subscribed && webSocket != null && webSocket.isConnected()) {
+					try {
+						sendUnsubscribeMessage(c);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
+				c.subscribed = false;
 			}
+		}
+		return c;
+	}
 
-			channels.remove(channelName);
+	/**
+	 * Adds a channel detached from another client and subscribes it if
+	 * this client is connected, otherwise once it connects.
+	 */
+	void attachChannel(Channel c) {
+		synchronized (c) {
+			c.owner = this;
+			channels.put(c.channelName, c);
+		}
+		if (socketId != null) {
+			sendSubscribeMessage(c);
 		}
 	}
 
-	private void sendSubscribeMessage(Channel c) {
-		JSONObject data = new JSONObject();
-		c.send("pusher:subscribe", data);
+	int getChannelCount() {
+		return channels.size();
 	}
 
-	private void sendSubscribeMessage(Channel c, String authToken) {
+	Set<String> getChannelNames() {
+		return channels.keySet();
+	}
+
+	/**
+	 * Binds a listener to an event on every channel, including channels
+	 * subscribed later.
+	 */
+	public void bind(String eventName, ChannelListener channelListener) {
+		globalEvents.bind(eventName, channelListener);
+	}
+
+	public void unbind(String eventName, ChannelListener channelListener) {
+		globalEvents.unbind(eventName, channelListener);
+	}
+
+	/**
+	 * Binds a typed listener to an event on every channel. Listeners bound
+	 * to an event with the same decoder, here or on the channel itself,
+	 * share one decode per event.
+	 */
+	public <T> void bind(String eventName, Decoder<T> decoder, TypedListener<? super T> listener) {
+		globalEvents.bind(eventName, decoder, listener);
+	}
+
+	public <T> void bind(String eventName, Class<T> type, TypedListener<? super T> listener) {
+		globalEvents.bind(eventName, Decoders.forClass(type), listener);
+	}
+
+	public void unbindTyped(String eventName, TypedListener<?> listener) {
+		globalEvents.unbindTyped(eventName, listener);
+	}
+
+	/**
+	 * Binds a listener to every event whose channel and event names match
+	 * the patterns. A pattern is a name, a prefix ending in '*' such as
+	 * "orders-*" or "client-*", or "*" for any name. Matching costs the
+	 * same however many patterns are bound.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a pattern has '*' anywhere but at the end
+	 */
+	public void bind(String channelPattern, String eventPattern, ChannelListener listener) {
+		router.bind(channelPattern, eventPattern, listener);
+	}
+
+	public void unbind(String channelPattern, String eventPattern, ChannelListener listener) {
+		router.unbind(channelPattern, eventPattern, listener);
+	}
+
+	private void sendSubscribeMessage(final Channel c) {
+		final String socketId = this.socketId;
+		ChannelAuthorizer authorizer = this.authorizer;
+		if (authorizer != null && c.authToken == null && socketId != null && needsAuthorization(c.channelName)) {
+			synchronized (c) {
+				if (c.subscribed || c.owner != this) {
+					return;
+				}
+				// marks the authorization as in flight
+				c.subscribed = true;
+			}
+
+			final String channelData = c.userId != null ? "{\"user_id\":" + c.userId + "}" : null;
+			authorizer.authorize(socketId, c.channelName, channelData, new ChannelAuthorizer.Callback() {
+				public void onAuthorized(String auth, String data) {
+					sendAuthorizedSubscribe(c, socketId, auth, data != null ? data : channelData);
+				}
+
+				public void onFailure(Exception cause) {
+					synchronized (c) {
+						if (c.owner != Pusher.this || !socketId.equals(Pusher.this.socketId)) {
+							// a later subscribe has taken over
+							return;
+						}
+						c.subscribed = false;
+					}
+					notifySubscriptionError(c, cause);
+				}
+			});
+			return;
+		}
+
 		JSONObject data = new JSONObject();
 		try {
-			data.put("auth", authToken);
+			if (c.authToken != null) {
+				data.put("auth", c.authToken);
+			}
+			if (c.userId != null) {
+				data.put("channel_data", new JSONObject().put("user_id", c.userId.intValue()));
+			}
 		} catch(Exception ex) {
 
 		}
 
-		c.send("pusher:subscribe", data);
+		// checking and sending under the channel's lock keeps a channel that
+		// is being moved to another client from staying subscribed here
+		synchronized (c) {
+			if (c.subscribed || c.owner != this) {
+				return;
+			}
+			c.subscribed = true;
+			sendSubscribe(c, data);
+		}
 	}
 
-	private void sendSubscribeMessage(Channel c, String authToken, int userId) {
+	private void sendAuthorizedSubscribe(Channel c, String socketId, String auth, String channelData) {
 		JSONObject data = new JSONObject();
 		try {
-			data.put("auth", authToken);
-			data.put("channel_data", new JSONObject().put("user_id", userId));
-		} catch(Exception ex) {
+			data.put("auth", auth);
+			if (channelData != null) {
+				data.put("channel_data", channelData);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		// the channel may have been unsubscribed, moved or reconnected while
+		// the authorization was in flight
+		synchronized (c) {
+			if (!c.subscribed || c.owner != this || !socketId.equals(this.socketId)) {
+				return;
+			}
+			sendSubscribe(c, data);
+		}
+	}
+
+	/**
+	 * Sends pusher:subscribe while holding the channel's lock. A connection
+	 * that is going away fails the write; the channel is then subscribed
+	 * again once a new connection is established.
+	 */
+	private void sendSubscribe(Channel c, JSONObject data) {
+		try {
+			data.put("channel", c.channelName);
+			JSONObject message = new JSONObject();
+			message.put("event", "pusher:subscribe");
+			message.put("data", data);
+			sendText(message.toString());
+		} catch (JSONException e) {
+			e.printStackTrace();
+		} catch (WebSocketException e) {
+			c.subscribed = false;
+		}
+	}
 
+	private void notifySubscriptionError(final Channel c, Exception cause) {
+		final String text;
+		final PusherEnvelope envelope;
+		try {
+			JSONObject data = new JSONObject();
+			data.put("type", "AuthError");
+			data.put("error", String.valueOf(cause.getMessage()));
+			JSONObject message = new JSONObject();
+			message.put("event", SUBSCRIPTION_ERROR);
+			message.put("channel", c.channelName);
+			message.put("data", data.toString());
+			text = message.toString();
+			byte[] bytes = text.getBytes("UTF-8");
+			envelope = PusherEnvelope.parse(bytes, 0, bytes.length);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
 		}
 
-		c.send("pusher:subscribe", data);
+		if (dispatcher == null) {
+			notifyChannelEvent(c, envelope, SUBSCRIPTION_ERROR, text);
+		} else {
+			dispatcher.dispatch(c.channelName, new PusherDispatcher.LifecycleTask() {
+				public void run() {
+					notifyChannelEvent(c, envelope, SUBSCRIPTION_ERROR, text);
+				}
+			});
+		}
+	}
+
+	private static boolean needsAuthorization(String channelName) {
+		return channelName.startsWith("private-") || channelName.startsWith("presence-");
 	}
 
 	private void sendUnsubscribeMessage(Channel c) {
@@ -201,54 +750,228 @@ public class Pusher {
 		c.send("pusher:unsubscribe", data);
 	}
 
-	private void dispatchChannelEvent(JSONObject jsonMessage, String event) {
-		String channelName = jsonMessage.optString("channel", null);
+	private boolean dispatchChannelEvent(PusherEnvelope envelope, String event, WebSocketMessage message, String text) throws Exception {
+		String channelName = envelope.getChannel();
+		if (channelName == null) {
+			return false;
+		}
 
 		Channel channel = channels.get(channelName);
 		if(channel != null) {
-			ChannelListener channelListener = channel.channelEvents.get(event);
+			if (channel instanceof PresenceChannel && event.startsWith("pusher_internal:")) {
+				((PresenceChannel) channel).onInternalEvent(envelope, event);
+			}
+
+			ConcurrentHashMap<String, ConflatingQueue> conflation = channel.conflation;
+			ConflatingQueue queue = conflation != null ? conflation.get(event) : null;
+			if (queue != null) {
+				queue.offer(this, envelope, message, text);
+				return true;
+			}
+			notifyChannelEvent(channel, envelope, event, text);
+		}
+		return false;
+	}
+
+	void notifyChannelEvent(Channel channel, PusherEnvelope envelope, String event, String text) {
+		notifyListeners(channel.channelEvents.get(event), text);
+		notifyListeners(globalEvents.get(event), text);
+		router.route(channel.channelName, event, text);
+		notifyTypedListeners(envelope, channel.channelEvents.getTyped(event), globalEvents.getTyped(event));
+	}
 
-			if(channelListener != null)
-				channelListener.onMessage(jsonMessage.toString());
+	/**
+	 * Decodes the data once per decoder; a global binding that uses the same
+	 * decoder as a channel binding gets the value already decoded for it.
+	 */
+	private void notifyTypedListeners(PusherEnvelope envelope, TypedBinding[] channelBindings, TypedBinding[] globalBindings) {
+		Object[] decoded = null;
+		if (channelBindings != null) {
+			decoded = new Object[channelBindings.length];
+			for (int i = 0; i < channelBindings.length; i++) {
+				decoded[i] = decode(envelope, channelBindings[i].decoder);
+				if (decoded[i] != DECODE_FAILED) {
+					channelBindings[i].deliver(decoded[i]);
+				}
+			}
+		}
+
+		if (globalBindings != null) {
+			for (TypedBinding binding : globalBindings) {
+				Object value = DECODE_FAILED;
+				boolean found = false;
+				for (int i = 0; channelBindings != null && i < channelBindings.length && !found; i++) {
+					if (channelBindings[i].decoder == binding.decoder) {
+						value = decoded[i];
+						found = true;
+					}
+				}
+				if (!found) {
+					value = decode(envelope, binding.decoder);
+				}
+				if (value != DECODE_FAILED) {
+					binding.deliver(value);
+				}
+			}
+		}
+	}
+
+	private Object decode(PusherEnvelope envelope, Decoder<?> decoder) {
+		try {
+			return envelope.decodeData(decoder);
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (metrics != null) {
+				metrics.onParseFailure();
+			}
+			return DECODE_FAILED;
+		}
+	}
+
+	private static void notifyListeners(ChannelListener[] listeners, String text) {
+		if (listeners != null) {
+			for (ChannelListener listener : listeners) {
+				listener.onMessage(text);
+			}
 		}
 	}
 
 	public void send(String event_name, JSONObject data) {
+		send(event_name, data, event_name);
+	}
+
+	/**
+	 * Sends an event; when a client event limit is set and reached, a later
+	 * client event with the same conflation key replaces this one while it
+	 * waits. send(event, data) uses the event name as the key.
+	 */
+	public void send(String event_name, JSONObject data, String conflationKey) {
 		JSONObject message = new JSONObject();
 
 		try {
 			message.put("event", event_name);
 			message.put("data", data);
-			webSocket.send(message.toString());
+			sendEvent(event_name, conflationKey, message.toString());
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	private void sendEvent(String eventName, String conflationKey, String text) throws WebSocketException {
+		ClientEventLimiter limiter = clientEventLimiter;
+		if (limiter != null && eventName.startsWith("client-")) {
+			limiter.send(conflationKey, text);
+		} else {
+			sendText(text);
+		}
+	}
+
+	void sendText(String text) throws WebSocketException {
+		webSocket.send(text);
+	}
+
 	public class Channel {
 		private String channelName;
-		private final HashMap<String, ChannelListener> channelEvents;
+		private final EventBindings channelEvents;
+
+		private volatile String authToken;
+		private volatile Integer userId;
+		private volatile boolean subscribed = false;
+		private volatile Pusher owner = Pusher.this;
+		private volatile ConcurrentHashMap<String, ConflatingQueue> conflation = null;
 
 		public Channel(String _name) {
 			channelName = _name;
-			channelEvents = new HashMap<String, ChannelListener>();
+			channelEvents = new EventBindings();
 		}
 
 		public void send(String eventName, JSONObject data) {
+			send(eventName, data, channelName + ":" + eventName);
+		}
+
+		/**
+		 * Sends an event on this channel. While the client event limit is
+		 * reached, client events wait and a later one with the same
+		 * conflation key replaces a waiting one; send(event, data) uses the
+		 * channel and event name as the key.
+		 */
+		public void send(String eventName, JSONObject data, String conflationKey) {
 			JSONObject message = new JSONObject();
 
 			try {
 				data.put("channel", channelName);
 				message.put("event", eventName);
 				message.put("data", data);
-				webSocket.send(message.toString());
+				owner.sendEvent(eventName, conflationKey, message.toString());
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		}
 
 		public void bind(String eventName, ChannelListener channelListener) {
-			channelEvents.put(eventName, channelListener);
+			channelEvents.bind(eventName, channelListener);
+		}
+
+		public void unbind(String eventName, ChannelListener channelListener) {
+			channelEvents.unbind(eventName, channelListener);
+		}
+
+		/**
+		 * Binds a listener that receives the event's data decoded by the
+		 * given decoder. Listeners bound to the same event with the same
+		 * decoder share one decoded value.
+		 */
+		public <T> void bind(String eventName, Decoder<T> decoder, TypedListener<? super T> listener) {
+			channelEvents.bind(eventName, decoder, listener);
+		}
+
+		/**
+		 * Binds a listener that receives the event's data as the given type;
+		 * see Decoders.forClass() for the types that can be decoded.
+		 */
+		public <T> void bind(String eventName, Class<T> type, TypedListener<? super T> listener) {
+			channelEvents.bind(eventName, Decoders.forClass(type), listener);
+		}
+
+		public void unbindTyped(String eventName, TypedListener<?> listener) {
+			channelEvents.unbindTyped(eventName, listener);
+		}
+
+		public void unbind(String eventName) {
+			channelEvents.unbindAll(eventName);
+		}
+
+		/**
+		 * Delivers the event on the executor with conflation: while the
+		 * listeners are behind, a newer event replaces the one waiting, so
+		 * they always get the latest. The receiving thread never waits for
+		 * them. Listeners bound to the event on every channel are included.
+		 */
+		public void conflate(String eventName, Executor executor) {
+			conflate(eventName, executor, null);
+		}
+
+		/**
+		 * Conflates per key instead of per event, e.g. per symbol for
+		 * price updates; keyDecoder extracts the key from the data. It runs
+		 * on the receiving thread for every event, so it should be cheap.
+		 * Waiting events are delivered in the order their keys first arrived.
+		 */
+		public synchronized void conflate(String eventName, Executor executor, Decoder<String> keyDecoder) {
+			if (conflation == null) {
+				conflation = new ConcurrentHashMap<String, ConflatingQueue>();
+			}
+			conflation.put(eventName, new ConflatingQueue(this, executor, keyDecoder));
+		}
+
+		/**
+		 * Goes back to delivering the event as it arrives. Events already
+		 * waiting are still delivered.
+		 */
+		public synchronized void unconflate(String eventName) {
+			if (conflation != null) {
+				conflation.remove(eventName);
+			}
 		}
 
 		@Override
@@ -256,4 +979,146 @@ public class Pusher {
 			return channelName;
 		}
 	}
+
+	/**
+	 * A presence channel's members, kept up to date from the
+	 * subscription_succeeded snapshot and the member_added and
+	 * member_removed events that follow it. Each join or leave is one
+	 * update of a MemberMap keyed by the numeric user id, without copying
+	 * the set or parsing more than the event's own data. Members whose id
+	 * is not a number are not tracked.
+	 */
+	public class PresenceChannel extends Channel {
+		private final MemberMap members = new MemberMap();
+		private volatile PresenceListener[] listeners = new PresenceListener[0];
+
+		public PresenceChannel(String _name) {
+			super(_name);
+		}
+
+		/**
+		 * The user id this client subscribed with.
+		 */
+		public int getMyId() {
+			return super.userId.intValue();
+		}
+
+		public synchronized boolean isMember(int userId) {
+			return members.contains(userId);
+		}
+
+		/**
+		 * Returns the member's user_info as JSON, or null.
+		 */
+		public synchronized String getMemberInfo(int userId) {
+			return members.get(userId);
+		}
+
+		public synchronized int getMemberCount() {
+			return members.size();
+		}
+
+		/**
+		 * Returns a copy of the current member ids.
+		 */
+		public synchronized int[] getMemberIds() {
+			return members.keys();
+		}
+
+		public synchronized void addPresenceListener(PresenceListener listener) {
+			PresenceListener[] updated = new PresenceListener[listeners.length + 1];
+			System.arraycopy(listeners, 0, updated, 0, listeners.length);
+			updated[listeners.length] = listener;
+			listeners = updated;
+		}
+
+		public synchronized void removePresenceListener(PresenceListener listener) {
+			for (int i = 0; i < listeners.length; i++) {
+				if (listeners[i] == listener) {
+					PresenceListener[] updated = new PresenceListener[listeners.length - 1];
+					System.arraycopy(listeners, 0, updated, 0, i);
+					System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+					listeners = updated;
+					return;
+				}
+			}
+		}
+
+		void onInternalEvent(PusherEnvelope envelope, String event) throws JSONException {
+			if ("pusher_internal:subscription_succeeded".equals(event)) {
+				onSubscriptionSucceeded(envelope.getDataObject());
+			} else if ("pusher_internal:member_added".equals(event)) {
+				JSONObject data = envelope.getDataObject();
+				Object info = data.opt("user_info");
+				onMemberAdded(data.optString("user_id"), info == null || info == JSONObject.NULL ? null : info.toString());
+			} else if ("pusher_internal:member_removed".equals(event)) {
+				onMemberRemoved(envelope.getDataObject().optString("user_id"));
+			}
+		}
+
+		private void onSubscriptionSucceeded(JSONObject data) throws JSONException {
+			JSONObject presence = data.optJSONObject("presence");
+			JSONObject hash = presence != null ? presence.optJSONObject("hash") : null;
+
+			int count;
+			synchronized (this) {
+				members.clear(hash != null ? hash.length() : 0);
+				if (hash != null) {
+					Iterator<?> ids = hash.keys();
+					while (ids.hasNext()) {
+						String id = (String) ids.next();
+						Object info = hash.get(id);
+						try {
+							members.put(Integer.parseInt(id), info == JSONObject.NULL ? null : info.toString());
+						} catch (NumberFormatException e) {
+							// not a numeric id
+						}
+					}
+				}
+				count = members.size();
+			}
+
+			for (PresenceListener listener : listeners) {
+				listener.onSubscribed(count);
+			}
+		}
+
+		private void onMemberAdded(String id, String info) {
+			int userId;
+			try {
+				userId = Integer.parseInt(id);
+			} catch (NumberFormatException e) {
+				return;
+			}
+
+			boolean added;
+			synchronized (this) {
+				added = members.put(userId, info);
+			}
+			if (added) {
+				for (PresenceListener listener : listeners) {
+					listener.onMemberAdded(userId, info);
+				}
+			}
+		}
+
+		private void onMemberRemoved(String id) {
+			int userId;
+			try {
+				userId = Integer.parseInt(id);
+			} catch (NumberFormatException e) {
+				return;
+			}
+
+			boolean removed;
+			synchronized (this) {
+				removed = members.remove(userId);
+			}
+			if (removed) {
+				for (PresenceListener listener : listeners) {
+					listener.onMemberRemoved(userId);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,41 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * Decides which thread runs listener callbacks. Without a dispatcher,
+ * Pusher invokes listeners directly on the thread that received the
+ * message.
+ */
+public interface PusherDispatcher {
+	/**
+	 * Runs the task. Tasks for the same channel must run in the order they
+	 * were dispatched; channelName is null for connection level events.
+	 */
+	public void dispatch(String channelName, Runnable task);
+
+	/**
+	 * Marks tasks that report connection, subscription or presence
+	 * changes. A dispatcher that sheds load must still run these.
+	 */
+	public interface LifecycleTask extends Runnable {
+	}
+}
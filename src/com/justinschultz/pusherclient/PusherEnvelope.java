@@ -0,0 +1,422 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.nio.charset.Charset;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The top level fields of a Pusher message, pulled out of the raw UTF-8
+ * bytes in a single pass without building a JSONObject. The data field is
+ * only located during the scan; it is unescaped or parsed on first use.
+ */
+public class PusherEnvelope {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] EVENT = { 'e', 'v', 'e', 'n', 't' };
+	private static final byte[] CHANNEL = { 'c', 'h', 'a', 'n', 'n', 'e', 'l' };
+	private static final byte[] DATA = { 'd', 'a', 't', 'a' };
+
+	private final byte[] bytes;
+	private int pos;
+	private final int end;
+
+	private String event = null;
+	private String channel = null;
+
+	private int dataStart = -1;
+	private int dataEnd = -1;
+	private boolean dataIsString = false;
+	private boolean dataEscaped = false;
+
+	private String data = null;
+	private JSONObject dataObject = null;
+
+	private PusherEnvelope(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.pos = offset;
+		this.end = offset + length;
+	}
+
+	public static PusherEnvelope parse(byte[] bytes, int offset, int length)
+			throws JSONException {
+		PusherEnvelope envelope = new PusherEnvelope(bytes, offset, length);
+		envelope.scan();
+		return envelope;
+	}
+
+	public String getEvent() {
+		return event;
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	public boolean hasData() {
+		return dataStart != -1;
+	}
+
+	/**
+	 * Returns the data field as text: the unescaped value when the data is
+	 * a JSON string (as Pusher sends it), otherwise the raw JSON.
+	 */
+	public String getData() throws JSONException {
+		if (data == null && dataStart != -1) {
+			if (dataIsString && dataEscaped) {
+				data = unescape(dataStart, dataEnd);
+			} else {
+				data = new String(bytes, dataStart, dataEnd - dataStart, UTF8);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Hands the data field to the decoder as UTF-8 bytes, in the form that
+	 * getData() returns as text. Unescaped data is passed as a range of the
+	 * message itself; data containing escapes is unescaped into a new array.
+	 *
+	 * @return the decoded value, or null if the message has no data
+	 */
+	public <T> T decodeData(Decoder<T> decoder) throws Exception {
+		if (dataStart == -1) {
+			return null;
+		}
+		if (dataIsString && dataEscaped) {
+			byte[] unescaped = new byte[dataEnd - dataStart];
+			int length = unescape(dataStart, dataEnd, unescaped);
+			return decoder.decode(unescaped, 0, length);
+		}
+		return decoder.decode(bytes, dataStart, dataEnd - dataStart);
+	}
+
+	public JSONObject getDataObject() throws JSONException {
+		if (dataObject == null && dataStart != -1) {
+			dataObject = new JSONObject(getData());
+		}
+		return dataObject;
+	}
+
+	private void scan() throws JSONException {
+		skipWhitespace();
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			return;
+		}
+
+		while (true) {
+			skipWhitespace();
+			expect('"');
+			int keyStart = pos;
+			skipString();
+			int keyEnd = pos - 1;
+
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+
+			if (matches(keyStart, keyEnd, EVENT) && peek() == '"') {
+				event = readString();
+			} else if (matches(keyStart, keyEnd, CHANNEL) && peek() == '"') {
+				channel = readString();
+			} else if (matches(keyStart, keyEnd, DATA)) {
+				if (peek() == '"') {
+					pos++;
+					dataStart = pos;
+					dataEscaped = skipString();
+					dataEnd = pos - 1;
+					dataIsString = true;
+				} else {
+					dataStart = pos;
+					skipValue();
+					dataEnd = pos;
+				}
+			} else {
+				skipValue();
+			}
+
+			skipWhitespace();
+			byte b = next();
+			if (b == '}') {
+				return;
+			} else if (b != ',') {
+				throw error("expected ',' or '}'");
+			}
+		}
+	}
+
+	private String readString() throws JSONException {
+		pos++;
+		int start = pos;
+		boolean escaped = skipString();
+		if (escaped) {
+			return unescape(start, pos - 1);
+		}
+		return new String(bytes, start, pos - 1 - start, UTF8);
+	}
+
+	/**
+	 * Advances past the closing quote of a string whose opening quote has
+	 * already been consumed. Returns whether the string contains escapes.
+	 */
+	private boolean skipString() throws JSONException {
+		boolean escaped = false;
+		while (pos < end) {
+			byte b = bytes[pos++];
+			if (b == '"') {
+				return escaped;
+			} else if (b == '\\') {
+				escaped = true;
+				pos++;
+			}
+		}
+		throw error("unterminated string");
+	}
+
+	private void skipValue() throws JSONException {
+		byte b = peek();
+		if (b == '"') {
+			pos++;
+			skipString();
+		} else if (b == '{' || b == '[') {
+			int depth = 0;
+			while (pos < end) {
+				b = bytes[pos++];
+				if (b == '"') {
+					skipString();
+				} else if (b == '{' || b == '[') {
+					depth++;
+				} else if (b == '}' || b == ']') {
+					if (--depth == 0) {
+						return;
+					}
+				}
+			}
+			throw error("unterminated value");
+		} else {
+			while (pos < end) {
+				b = bytes[pos];
+				if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+					return;
+				}
+				pos++;
+			}
+		}
+	}
+
+	private String unescape(int start, int stop) throws JSONException {
+		StringBuilder text = new StringBuilder(stop - start);
+		int segment = start;
+		int i = start;
+
+		while (i < stop) {
+			if (bytes[i] != '\\') {
+				i++;
+				continue;
+			}
+
+			if (i > segment) {
+				text.append(new String(bytes, segment, i - segment, UTF8));
+			}
+			if (i + 1 >= stop) {
+				throw error("invalid escape");
+			}
+
+			byte c = bytes[i + 1];
+			i += 2;
+			switch (c) {
+			case 'b':
+				text.append('\b');
+				break;
+			case 'f':
+				text.append('\f');
+				break;
+			case 'n':
+				text.append('\n');
+				break;
+			case 'r':
+				text.append('\r');
+				break;
+			case 't':
+				text.append('\t');
+				break;
+			case 'u':
+				if (i + 4 > stop) {
+					throw error("invalid unicode escape");
+				}
+				try {
+					text.append((char) Integer.parseInt(new String(bytes, i, 4,
+							UTF8), 16));
+				} catch (NumberFormatException nfe) {
+					throw error("invalid unicode escape");
+				}
+				i += 4;
+				break;
+			default:
+				text.append((char) c);
+			}
+			segment = i;
+		}
+
+		if (stop > segment) {
+			text.append(new String(bytes, segment, stop - segment, UTF8));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Unescapes into UTF-8 bytes. Every escape is at least as long as what
+	 * it stands for, so out needs no more than stop - start bytes.
+	 */
+	private int unescape(int start, int stop, byte[] out) throws JSONException {
+		int count = 0;
+		int i = start;
+
+		while (i < stop) {
+			byte b = bytes[i];
+			if (b != '\\') {
+				out[count++] = b;
+				i++;
+				continue;
+			}
+			if (i + 1 >= stop) {
+				throw error("invalid escape");
+			}
+
+			byte c = bytes[i + 1];
+			i += 2;
+			switch (c) {
+			case 'b':
+				out[count++] = '\b';
+				break;
+			case 'f':
+				out[count++] = '\f';
+				break;
+			case 'n':
+				out[count++] = '\n';
+				break;
+			case 'r':
+				out[count++] = '\r';
+				break;
+			case 't':
+				out[count++] = '\t';
+				break;
+			case 'u':
+				int ch = hex(i, stop);
+				i += 4;
+				if (Character.isHighSurrogate((char) ch) && i + 6 <= stop && bytes[i] == '\\' && bytes[i + 1] == 'u') {
+					int low = hex(i + 2, stop);
+					if (Character.isLowSurrogate((char) low)) {
+						ch = Character.toCodePoint((char) ch, (char) low);
+						i += 6;
+					}
+				}
+				count = encode(ch, out, count);
+				break;
+			default:
+				out[count++] = c;
+			}
+		}
+		return count;
+	}
+
+	private int hex(int at, int stop) throws JSONException {
+		if (at + 4 > stop) {
+			throw error("invalid unicode escape");
+		}
+		try {
+			return Integer.parseInt(new String(bytes, at, 4, UTF8), 16);
+		} catch (NumberFormatException nfe) {
+			throw error("invalid unicode escape");
+		}
+	}
+
+	private static int encode(int ch, byte[] out, int count) {
+		if (ch < 0x80) {
+			out[count++] = (byte) ch;
+		} else if (ch < 0x800) {
+			out[count++] = (byte) (0xc0 | (ch >> 6));
+			out[count++] = (byte) (0x80 | (ch & 0x3f));
+		} else if (ch >= 0x10000) {
+			out[count++] = (byte) (0xf0 | (ch >> 18));
+			out[count++] = (byte) (0x80 | ((ch >> 12) & 0x3f));
+			out[count++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+			out[count++] = (byte) (0x80 | (ch & 0x3f));
+		} else if (ch >= 0xd800 && ch <= 0xdfff) {
+			// unpaired, as String.getBytes() would encode it
+			out[count++] = '?';
+		} else {
+			out[count++] = (byte) (0xe0 | (ch >> 12));
+			out[count++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+			out[count++] = (byte) (0x80 | (ch & 0x3f));
+		}
+		return count;
+	}
+
+	private boolean matches(int start, int stop, byte[] key) {
+		if (stop - start != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (bytes[start + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void skipWhitespace() {
+		while (pos < end && isWhitespace(bytes[pos])) {
+			pos++;
+		}
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	private byte peek() throws JSONException {
+		if (pos >= end) {
+			throw error("unexpected end of message");
+		}
+		return bytes[pos];
+	}
+
+	private byte next() throws JSONException {
+		byte b = peek();
+		pos++;
+		return b;
+	}
+
+	private void expect(char c) throws JSONException {
+		if (next() != c) {
+			throw error("expected '" + c + "'");
+		}
+	}
+
+	private JSONException error(String message) {
+		return new JSONException(message + " at offset " + pos);
+	}
+}
@@ -0,0 +1,52 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * Receives events from a Pusher client as it runs. Methods are called on
+ * the receiving or dispatching threads, so implementations must be
+ * thread-safe and should not allocate or block. PusherStatistics is the
+ * built-in implementation.
+ */
+public interface PusherMetrics {
+	/**
+	 * Called after the listeners for a message have returned.
+	 *
+	 * @param channel
+	 *            the channel, or null for connection level events
+	 * @param dispatchLatencyNanos
+	 *            from the message being decoded to its listeners being
+	 *            called, including parsing and any dispatcher queueing
+	 * @param listenerNanos
+	 *            time spent in the listeners
+	 */
+	public void onMessageDispatched(String channel, String event, long dispatchLatencyNanos, long listenerNanos);
+
+	/**
+	 * Called when a received message is not a valid Pusher message.
+	 */
+	public void onParseFailure();
+
+	/**
+	 * Called for each reconnect attempt.
+	 */
+	public void onReconnect();
+}
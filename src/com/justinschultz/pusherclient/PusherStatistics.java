@@ -0,0 +1,210 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.justinschultz.websocket.WebSocketMetrics;
+
+/**
+ * Counters and latency histograms for one Pusher client and its
+ * connection, with a breakdown per channel. Pass it to
+ * Pusher.setMetrics(); call register() to expose it, and a bean per
+ * channel, through the platform MBeanServer.
+ *
+ * Recording is allocation free apart from the first message seen on each
+ * channel.
+ */
+public class PusherStatistics extends ChannelStatistics implements PusherStatisticsMBean, PusherMetrics,
+		WebSocketMetrics {
+	public static final String JMX_DOMAIN = "com.justinschultz.pusherclient";
+
+	private final AtomicLong framesReceived = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong framesSent = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong parseFailures = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private volatile int sendQueueDepth = 0;
+	private final AtomicInteger maxSendQueueDepth = new AtomicInteger();
+
+	private final ConcurrentHashMap<String, ChannelStatistics> channels = new ConcurrentHashMap<String, ChannelStatistics>();
+	private String jmxName = null;
+
+	public void onFrameReceived(int opcode, int frameLength) {
+		framesReceived.incrementAndGet();
+		bytesReceived.addAndGet(frameLength);
+	}
+
+	public void onFrameSent(int opcode, int frameLength) {
+		framesSent.incrementAndGet();
+		bytesSent.addAndGet(frameLength);
+	}
+
+	public void onSendQueueDepth(int depth) {
+		sendQueueDepth = depth;
+		int max = maxSendQueueDepth.get();
+		while (depth > max && !maxSendQueueDepth.compareAndSet(max, depth)) {
+			max = maxSendQueueDepth.get();
+		}
+	}
+
+	public void onMessageDispatched(String channel, String event, long dispatchLatencyNanos, long listenerNanos) {
+		record(dispatchLatencyNanos, listenerNanos);
+		if (channel != null) {
+			getChannel(channel).record(dispatchLatencyNanos, listenerNanos);
+		}
+	}
+
+	public void onParseFailure() {
+		parseFailures.incrementAndGet();
+	}
+
+	public void onReconnect() {
+		reconnects.incrementAndGet();
+	}
+
+	/**
+	 * Returns the statistics of one channel, creating them if no message
+	 * has been seen on it yet.
+	 */
+	public ChannelStatistics getChannel(String channel) {
+		ChannelStatistics statistics = channels.get(channel);
+		if (statistics == null) {
+			statistics = addChannel(channel);
+		}
+		return statistics;
+	}
+
+	private synchronized ChannelStatistics addChannel(String channel) {
+		ChannelStatistics statistics = channels.get(channel);
+		if (statistics == null) {
+			statistics = new ChannelStatistics();
+			channels.put(channel, statistics);
+			if (jmxName != null) {
+				registerChannel(channel, statistics);
+			}
+		}
+		return statistics;
+	}
+
+	public long getFramesReceived() {
+		return framesReceived.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getFramesSent() {
+		return framesSent.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getParseFailures() {
+		return parseFailures.get();
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	public int getSendQueueDepth() {
+		return sendQueueDepth;
+	}
+
+	public int getMaxSendQueueDepth() {
+		return maxSendQueueDepth.get();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		framesReceived.set(0);
+		bytesReceived.set(0);
+		framesSent.set(0);
+		bytesSent.set(0);
+		parseFailures.set(0);
+		reconnects.set(0);
+		maxSendQueueDepth.set(sendQueueDepth);
+		for (ChannelStatistics statistics : channels.values()) {
+			statistics.reset();
+		}
+	}
+
+	/**
+	 * Registers this client as com.justinschultz.pusherclient:type=Pusher,
+	 * name=<name>, and each channel as type=PusherChannel,client=<name>,
+	 * channel=<channel>.
+	 */
+	public synchronized void register(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, clientName(name));
+		jmxName = name;
+
+		for (Map.Entry<String, ChannelStatistics> entry : channels.entrySet()) {
+			registerChannel(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (jmxName == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.unregisterMBean(clientName(jmxName));
+		for (String channel : channels.keySet()) {
+			ObjectName name = channelName(jmxName, channel);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		}
+		jmxName = null;
+	}
+
+	private void registerChannel(String channel, ChannelStatistics statistics) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, channelName(jmxName, channel));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static ObjectName clientName(String name) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=Pusher,name=" + ObjectName.quote(name));
+	}
+
+	private static ObjectName channelName(String name, String channel) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=PusherChannel,client=" + ObjectName.quote(name) + ",channel="
+				+ ObjectName.quote(channel));
+	}
+}
@@ -0,0 +1,42 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+/**
+ * JMX view of a PusherStatistics. Durations are in nanoseconds.
+ */
+public interface PusherStatisticsMBean extends ChannelStatisticsMBean {
+	public long getFramesReceived();
+
+	public long getBytesReceived();
+
+	public long getFramesSent();
+
+	public long getBytesSent();
+
+	public long getParseFailures();
+
+	public long getReconnects();
+
+	public int getSendQueueDepth();
+
+	public int getMaxSendQueueDepth();
+}
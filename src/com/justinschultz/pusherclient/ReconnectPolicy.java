@@ -0,0 +1,86 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter between reconnect attempts. The number
+ * of reconnect attempts in flight at once is capped for the whole process,
+ * so that a network blip does not make every client reconnect at the same
+ * moment.
+ */
+public class ReconnectPolicy {
+	private static volatile int maxConcurrentAttempts = 8;
+
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final double multiplier;
+	private final double jitter;
+	private final int maxAttempts;
+
+	private final Random random = new Random();
+
+	public ReconnectPolicy() {
+		this(1000, 60000, 2.0, 0.5, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param jitter
+	 *            fraction of each delay that is randomized, between 0 (none)
+	 *            and 1 (anywhere between zero and the full delay)
+	 * @param maxAttempts
+	 *            attempts after which the client gives up
+	 */
+	public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis,
+			double multiplier, double jitter, int maxAttempts) {
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.multiplier = multiplier;
+		this.jitter = Math.max(0.0, Math.min(1.0, jitter));
+		this.maxAttempts = maxAttempts;
+	}
+
+	public static void setMaxConcurrentAttempts(int max) {
+		maxConcurrentAttempts = max;
+	}
+
+	public static int getMaxConcurrentAttempts() {
+		return maxConcurrentAttempts;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getDelayMillis(int attempt) {
+		double delay = initialDelayMillis * Math.pow(multiplier, attempt);
+		if (delay > maxDelayMillis) {
+			delay = maxDelayMillis;
+		}
+
+		double randomized;
+		synchronized (random) {
+			randomized = random.nextDouble();
+		}
+		return (long) (delay * (1.0 - jitter * randomized));
+	}
+}
@@ -0,0 +1,77 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide timer and worker threads for reconnect attempts. Attempts
+ * run on the workers so that a slow connect does not hold up other
+ * clients' timers; at most ReconnectPolicy.getMaxConcurrentAttempts() of
+ * them run at once.
+ */
+final class ReconnectScheduler {
+	private static final ThreadFactory threadFactory = new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PusherReconnect-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	private static final ExecutorService workers = Executors.newCachedThreadPool(threadFactory);
+	private static final AtomicInteger activeAttempts = new AtomicInteger();
+
+	private ReconnectScheduler() {
+	}
+
+	static void schedule(final Runnable attempt, long delayMillis) {
+		timer.schedule(new Runnable() {
+			public void run() {
+				workers.execute(attempt);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	static boolean tryAcquire() {
+		while (true) {
+			int active = activeAttempts.get();
+			if (active >= ReconnectPolicy.getMaxConcurrentAttempts()) {
+				return false;
+			}
+			if (activeAttempts.compareAndSet(active, active + 1)) {
+				return true;
+			}
+		}
+	}
+
+	static void release() {
+		activeAttempts.decrementAndGet();
+	}
+}
@@ -0,0 +1,551 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.json.JSONObject;
+
+import com.justinschultz.websocket.WebSocketFactory;
+import com.justinschultz.websocket.WebSocketMetrics;
+
+/**
+ * A Pusher client that spreads its channels over several connections, so
+ * that receiving, decoding and dispatching for busy channels runs on more
+ * than one thread. It has the same subscribe and bind API as Pusher; each
+ * returned Channel belongs to one of the underlying Pusher shards.
+ *
+ * When a shard drops, its channels are moved to the shards that are still
+ * up, and when it reconnects they are rebalanced onto it again. A moved
+ * channel keeps its bindings but is unsubscribed before being subscribed
+ * on its new shard, so events sent during the move can be missed.
+ */
+public class ShardedPusher {
+	private static final int VIRTUAL_NODES = 128;
+
+	private final Pusher[] shards;
+	private final boolean[] down;
+	private final ShardPlacement placement;
+	private final ConcurrentHashMap<String, Pusher> owners = new ConcurrentHashMap<String, Pusher>();
+
+	private final int[] ringHashes;
+	private final int[] ringShards;
+
+	private volatile PusherListener pusherEventListener;
+	private volatile boolean disconnectRequested = false;
+
+	public ShardedPusher(String key, int shardCount) {
+		this(key, shardCount, ShardPlacement.CONSISTENT_HASH);
+	}
+
+	public ShardedPusher(String key, int shardCount, ShardPlacement placement) {
+		this(createShards(key, shardCount, null, null, 0), placement);
+	}
+
+	public ShardedPusher(String key, int shardCount, ShardPlacement placement, String scheme, String host, int port) {
+		this(createShards(key, shardCount, scheme, host, port), placement);
+	}
+
+	private ShardedPusher(Pusher[] shards, ShardPlacement placement) {
+		this.shards = shards;
+		this.down = new boolean[shards.length];
+		this.placement = placement;
+
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].setPusherListener(new ShardListener(i));
+		}
+
+		ringHashes = new int[shards.length * VIRTUAL_NODES];
+		ringShards = new int[ringHashes.length];
+		long[] points = new long[ringHashes.length];
+		for (int i = 0; i < shards.length; i++) {
+			for (int v = 0; v < VIRTUAL_NODES; v++) {
+				long hash = hash("shard-" + i + "-" + v);
+				points[i * VIRTUAL_NODES + v] = (hash << 32) | i;
+			}
+		}
+		Arrays.sort(points);
+		for (int i = 0; i < points.length; i++) {
+			ringHashes[i] = (int) (points[i] >> 32);
+			ringShards[i] = (int) points[i];
+		}
+	}
+
+	private static Pusher[] createShards(String key, int shardCount, String scheme, String host, int port) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("shardCount must be at least 1");
+		}
+		Pusher[] shards = new Pusher[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = scheme == null ? new Pusher(key) : new Pusher(key, scheme, host, port);
+		}
+		return shards;
+	}
+
+	/**
+	 * onConnect and onDisconnect are called once per shard.
+	 */
+	public void setPusherListener(PusherListener listener) {
+		pusherEventListener = listener;
+	}
+
+	public void setDispatcher(PusherDispatcher dispatcher) {
+		for (Pusher shard : shards) {
+			shard.setDispatcher(dispatcher);
+		}
+	}
+
+	public void setReconnectPolicy(ReconnectPolicy policy) {
+		for (Pusher shard : shards) {
+			shard.setReconnectPolicy(policy);
+		}
+	}
+
+	public void setWebSocketFactory(WebSocketFactory factory) {
+		for (Pusher shard : shards) {
+			shard.setWebSocketFactory(factory);
+		}
+	}
+
+	/**
+	 * Records into one set of metrics for all shards. When the metrics
+	 * also implement WebSocketMetrics, the send queue depth they see is
+	 * the total over the shards' connections.
+	 */
+	public void setMetrics(PusherMetrics metrics) {
+		if (!(metrics instanceof WebSocketMetrics)) {
+			for (Pusher shard : shards) {
+				shard.setMetrics(metrics);
+			}
+			return;
+		}
+
+		AtomicIntegerArray depths = new AtomicIntegerArray(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].setMetrics(new ShardMetrics(metrics, depths, i));
+		}
+	}
+
+	/**
+	 * Sets the limit on each shard's connection separately.
+	 */
+	public void setClientEventLimit(int eventsPerSecond, int burst) {
+		for (Pusher shard : shards) {
+			shard.setClientEventLimit(eventsPerSecond, burst);
+		}
+	}
+
+	public void setAuthorizer(ChannelAuthorizer authorizer) {
+		for (Pusher shard : shards) {
+			shard.setAuthorizer(authorizer);
+		}
+	}
+
+	public void setActivityTimeout(long millis) {
+		for (Pusher shard : shards) {
+			shard.setActivityTimeout(millis);
+		}
+	}
+
+	public void setPongTimeout(long millis) {
+		for (Pusher shard : shards) {
+			shard.setPongTimeout(millis);
+		}
+	}
+
+	public void connect() {
+		disconnectRequested = false;
+		for (Pusher shard : shards) {
+			shard.connect();
+		}
+	}
+
+	public void disconnect() {
+		disconnectRequested = true;
+		for (Pusher shard : shards) {
+			shard.disconnect();
+		}
+	}
+
+	/**
+	 * Returns whether every shard is connected.
+	 */
+	public boolean isConnected() {
+		for (Pusher shard : shards) {
+			if (!shard.isConnected()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public Pusher getShard(int index) {
+		return shards[index];
+	}
+
+	/**
+	 * Returns the shard a channel is currently subscribed on, or null.
+	 */
+	public synchronized Pusher getShardFor(String channelName) {
+		return owners.get(channelName);
+	}
+
+	public Pusher.Channel subscribe(String channelName) {
+		return subscribeChannel(channelName, null, null);
+	}
+
+	public Pusher.Channel subscribe(String channelName, String authToken) {
+		return subscribeChannel(channelName, authToken, null);
+	}
+
+	public Pusher.PresenceChannel subscribe(String channelName, String authToken, int userId) {
+		return (Pusher.PresenceChannel) subscribeChannel(channelName, authToken, userId);
+	}
+
+	private synchronized Pusher.Channel subscribeChannel(String channelName, String authToken, Integer userId) {
+		Pusher shard = owners.get(channelName);
+		if (shard == null) {
+			shard = shards[place(channelName)];
+			owners.put(channelName, shard);
+		}
+
+		if (userId != null) {
+			return shard.subscribe(channelName, authToken, userId.intValue());
+		}
+		return shard.subscribe(channelName, authToken);
+	}
+
+	public synchronized void unsubscribe(String channelName) {
+		Pusher shard = owners.remove(channelName);
+		if (shard != null) {
+			shard.unsubscribe(channelName);
+		}
+	}
+
+	/**
+	 * Binds a listener to an event on every channel of every shard.
+	 */
+	public void bind(String eventName, ChannelListener channelListener) {
+		for (Pusher shard : shards) {
+			shard.bind(eventName, channelListener);
+		}
+	}
+
+	public void unbind(String eventName, ChannelListener channelListener) {
+		for (Pusher shard : shards) {
+			shard.unbind(eventName, channelListener);
+		}
+	}
+
+	public void bind(String channelPattern, String eventPattern, ChannelListener listener) {
+		for (Pusher shard : shards) {
+			shard.bind(channelPattern, eventPattern, listener);
+		}
+	}
+
+	public void unbind(String channelPattern, String eventPattern, ChannelListener listener) {
+		for (Pusher shard : shards) {
+			shard.unbind(channelPattern, eventPattern, listener);
+		}
+	}
+
+	public <T> void bind(String eventName, Decoder<T> decoder, TypedListener<? super T> listener) {
+		for (Pusher shard : shards) {
+			shard.bind(eventName, decoder, listener);
+		}
+	}
+
+	public <T> void bind(String eventName, Class<T> type, TypedListener<? super T> listener) {
+		bind(eventName, Decoders.forClass(type), listener);
+	}
+
+	public void unbindTyped(String eventName, TypedListener<?> listener) {
+		for (Pusher shard : shards) {
+			shard.unbindTyped(eventName, listener);
+		}
+	}
+
+	/**
+	 * Sends a connection level event on the first connected shard.
+	 */
+	public void send(String eventName, JSONObject data) {
+		for (Pusher shard : shards) {
+			if (shard.isConnected()) {
+				shard.send(eventName, data);
+				return;
+			}
+		}
+	}
+
+	public void send(String eventName, JSONObject data, String conflationKey) {
+		for (Pusher shard : shards) {
+			if (shard.isConnected()) {
+				shard.send(eventName, data, conflationKey);
+				return;
+			}
+		}
+	}
+
+	private int place(String channelName) {
+		if (placement == ShardPlacement.LEAST_LOADED) {
+			int best = -1;
+			for (int i = 0; i < shards.length; i++) {
+				if (!down[i] && (best == -1 || shards[i].getChannelCount() < shards[best].getChannelCount())) {
+					best = i;
+				}
+			}
+			return best == -1 ? leastLoaded() : best;
+		}
+
+		int hash = hash(channelName);
+		int start = Arrays.binarySearch(ringHashes, hash);
+		if (start < 0) {
+			start = -start - 1;
+		}
+		for (int i = 0; i < ringHashes.length; i++) {
+			int shard = ringShards[(start + i) % ringHashes.length];
+			if (!down[shard]) {
+				return shard;
+			}
+		}
+		return ringShards[start % ringHashes.length];
+	}
+
+	private int leastLoaded() {
+		int best = 0;
+		for (int i = 1; i < shards.length; i++) {
+			if (shards[i].getChannelCount() < shards[best].getChannelCount()) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	private synchronized void shardUp(int index) {
+		down[index] = false;
+		rebalance();
+	}
+
+	private synchronized void shardDown(int index) {
+		if (disconnectRequested) {
+			return;
+		}
+		down[index] = true;
+		rebalance();
+	}
+
+	/**
+	 * Moves channels to where the placement now wants them. For consistent
+	 * hashing that is only the channels whose ring position changed owner;
+	 * for least loaded, channels leave shards that are down, then the
+	 * busiest shards give channels to the least busy ones. Channels only
+	 * move to shards whose connection is open, so when every shard is down
+	 * they stay put and are subscribed again as their shards reconnect.
+	 */
+	private void rebalance() {
+		if (placement == ShardPlacement.CONSISTENT_HASH) {
+			for (String channelName : new ArrayList<String>(owners.keySet())) {
+				int target = place(channelName);
+				if (isUp(target)) {
+					move(channelName, shards[target]);
+				}
+			}
+			return;
+		}
+
+		List<Integer> up = new ArrayList<Integer>();
+		for (int i = 0; i < shards.length; i++) {
+			if (isUp(i)) {
+				up.add(i);
+			}
+		}
+		if (up.isEmpty()) {
+			return;
+		}
+
+		for (int i = 0; i < shards.length; i++) {
+			if (down[i]) {
+				for (String channelName : new ArrayList<String>(shards[i].getChannelNames())) {
+					if (owners.get(channelName) == shards[i]) {
+						move(channelName, shards[leastLoaded(up)]);
+					}
+				}
+			}
+		}
+
+		while (up.size() > 1) {
+			int most = up.get(0);
+			int least = up.get(0);
+			for (int i : up) {
+				if (shards[i].getChannelCount() > shards[most].getChannelCount()) {
+					most = i;
+				}
+				if (shards[i].getChannelCount() < shards[least].getChannelCount()) {
+					least = i;
+				}
+			}
+			if (shards[most].getChannelCount() - shards[least].getChannelCount() <= 1) {
+				return;
+			}
+
+			// channels subscribed on the shard directly are not ours to move
+			boolean moved = false;
+			for (String channelName : shards[most].getChannelNames()) {
+				if (owners.get(channelName) == shards[most] && move(channelName, shards[least])) {
+					moved = true;
+					break;
+				}
+			}
+			if (!moved) {
+				return;
+			}
+		}
+	}
+
+	private boolean isUp(int index) {
+		return !down[index] && shards[index].isConnected();
+	}
+
+	private int leastLoaded(List<Integer> candidates) {
+		int best = candidates.get(0);
+		for (int i : candidates) {
+			if (shards[i].getChannelCount() < shards[best].getChannelCount()) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Moves a channel placed by this client to another shard.
+	 *
+	 * @return false if the channel is not ours or already on that shard
+	 */
+	private boolean move(String channelName, Pusher to) {
+		Pusher from = owners.get(channelName);
+		if (from == null || from == to) {
+			return false;
+		}
+		Pusher.Channel channel = from.detachChannel(channelName);
+		if (channel != null) {
+			to.attachChannel(channel);
+		}
+		owners.put(channelName, to);
+		return true;
+	}
+
+	private static int hash(String value) {
+		// spread String.hashCode, which clusters for similar names
+		int h = value.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private class ShardListener implements PusherListener {
+		private final int index;
+
+		ShardListener(int index) {
+			this.index = index;
+		}
+
+		public void onConnect(String socketId) {
+			shardUp(index);
+			PusherListener listener = pusherEventListener;
+			if (listener != null) {
+				listener.onConnect(socketId);
+			}
+		}
+
+		public void onMessage(String message) {
+			PusherListener listener = pusherEventListener;
+			if (listener != null) {
+				listener.onMessage(message);
+			}
+		}
+
+		public void onDisconnect() {
+			shardDown(index);
+			PusherListener listener = pusherEventListener;
+			if (listener != null) {
+				listener.onDisconnect();
+			}
+		}
+	}
+
+	/**
+	 * Forwards one shard's metrics, replacing its send queue depth with
+	 * the sum over all shards so that they do not overwrite each other.
+	 */
+	private static class ShardMetrics implements PusherMetrics, WebSocketMetrics {
+		private final PusherMetrics metrics;
+		private final WebSocketMetrics socketMetrics;
+		private final AtomicIntegerArray depths;
+		private final int index;
+
+		ShardMetrics(PusherMetrics metrics, AtomicIntegerArray depths, int index) {
+			this.metrics = metrics;
+			this.socketMetrics = (WebSocketMetrics) metrics;
+			this.depths = depths;
+			this.index = index;
+		}
+
+		public void onMessageDispatched(String channel, String event, long dispatchLatencyNanos, long listenerNanos) {
+			metrics.onMessageDispatched(channel, event, dispatchLatencyNanos, listenerNanos);
+		}
+
+		public void onParseFailure() {
+			metrics.onParseFailure();
+		}
+
+		public void onReconnect() {
+			metrics.onReconnect();
+		}
+
+		public void onFrameReceived(int opcode, int frameLength) {
+			socketMetrics.onFrameReceived(opcode, frameLength);
+		}
+
+		public void onFrameSent(int opcode, int frameLength) {
+			socketMetrics.onFrameSent(opcode, frameLength);
+		}
+
+		public void onSendQueueDepth(int depth) {
+			depths.set(index, depth);
+			int total = 0;
+			for (int i = 0; i < depths.length(); i++) {
+				total += depths.get(i);
+			}
+			socketMetrics.onSendQueueDepth(total);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands listener callbacks to an executor while keeping events of one
+ * channel in order. Channels are striped across a fixed number of serial
+ * queues; at most one task per stripe is submitted to the executor at a
+ * time, and it drains a batch of events before yielding.
+ *
+ * The overflow policy applies to events only. A LifecycleTask is never
+ * dropped: when its stripe is full, a drop policy discards an event to
+ * make room for it, and otherwise it waits for room.
+ */
+public class StripedDispatcher implements PusherDispatcher {
+	private static final int BATCH_SIZE = 64;
+
+	private final Executor executor;
+	private final Stripe[] stripes;
+	private final DispatchOverflowPolicy overflowPolicy;
+
+	public StripedDispatcher(Executor executor, int stripeCount,
+			int queueCapacity, DispatchOverflowPolicy overflowPolicy) {
+		this.executor = executor;
+		this.overflowPolicy = overflowPolicy;
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe(queueCapacity);
+		}
+	}
+
+	public void dispatch(String channelName, Runnable task) {
+		int index = 0;
+		if (channelName != null) {
+			int h = channelName.hashCode();
+			index = ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % stripes.length;
+		}
+		stripes[index].submit(task);
+	}
+
+	/**
+	 * Returns the number of events waiting across all stripes.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Stripe stripe : stripes) {
+			depth += stripe.queue.size();
+		}
+		return depth;
+	}
+
+	private class Stripe implements Runnable {
+		private final LinkedBlockingDeque<Runnable> queue;
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private volatile Thread runner = null;
+
+		Stripe(int capacity) {
+			queue = new LinkedBlockingDeque<Runnable>(capacity);
+		}
+
+		void submit(Runnable task) {
+			if (!queue.offer(task)) {
+				if (task instanceof LifecycleTask) {
+					submitLifecycle(task);
+				} else {
+					switch (overflowPolicy) {
+					case BLOCK:
+						try {
+							queue.put(task);
+						} catch (InterruptedException ie) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+						break;
+					case DROP_OLDEST:
+						do {
+							if (!removeEvent(queue.iterator())) {
+								// nothing but lifecycle tasks is waiting
+								return;
+							}
+						} while (!queue.offer(task));
+						break;
+					case DROP_NEWEST:
+						return;
+					}
+				}
+			}
+			schedule();
+		}
+
+		private void submitLifecycle(Runnable task) {
+			while (!queue.offer(task)) {
+				boolean removed = false;
+				if (overflowPolicy == DispatchOverflowPolicy.DROP_OLDEST) {
+					removed = removeEvent(queue.iterator());
+				} else if (overflowPolicy == DispatchOverflowPolicy.DROP_NEWEST) {
+					removed = removeEvent(queue.descendingIterator());
+				}
+				if (removed) {
+					continue;
+				}
+
+				if (Thread.currentThread() == runner) {
+					// waiting for this stripe on its own thread would never end
+					runTask(task);
+					return;
+				}
+				boolean interrupted = false;
+				while (true) {
+					try {
+						queue.put(task);
+						break;
+					} catch (InterruptedException ie) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				return;
+			}
+		}
+
+		/**
+		 * Removes the first event, not lifecycle task, the iterator finds.
+		 */
+		private boolean removeEvent(Iterator<Runnable> tasks) {
+			while (tasks.hasNext()) {
+				if (!(tasks.next() instanceof LifecycleTask)) {
+					tasks.remove();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// the tasks stay queued and the next dispatch schedules again
+					scheduled.set(false);
+					e.printStackTrace();
+				}
+			}
+		}
+
+		public void run() {
+			runner = Thread.currentThread();
+			try {
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					Runnable task = queue.poll();
+					if (task == null) {
+						break;
+					}
+					runTask(task);
+				}
+			} finally {
+				runner = null;
+				scheduled.set(false);
+				if (!queue.isEmpty()) {
+					schedule();
+				}
+			}
+		}
+
+		private void runTask(Runnable task) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
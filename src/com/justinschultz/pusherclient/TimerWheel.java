@@ -0,0 +1,194 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel: one daemon thread and an array of slots, each a
+ * list of timeouts that expire in that tick of some round. Scheduling and
+ * cancelling are O(1) and no thread is woken until a tick is due, so one
+ * wheel can serve the heartbeats of every connection in the JVM.
+ *
+ * Timeouts fire up to one tick late. Tasks run on the wheel's thread and
+ * must not block; work that may, such as a socket write, is handed to
+ * execute().
+ */
+final class TimerWheel implements Runnable {
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 512;
+
+	private static final TimerWheel defaultWheel = new TimerWheel(TICK_MILLIS, WHEEL_SIZE, "PusherTimerWheel");
+
+	private static final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PusherTimerWorker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final long tickNanos;
+	private final Timeout[] heads;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime;
+	private long tick = 0;
+
+	/**
+	 * @param wheelSize
+	 *            the number of slots, a power of two
+	 */
+	TimerWheel(long tickMillis, int wheelSize, String name) {
+		this.tickNanos = tickMillis * 1000000L;
+		this.heads = new Timeout[wheelSize];
+		this.mask = wheelSize - 1;
+		this.startTime = System.nanoTime();
+
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	static TimerWheel getDefault() {
+		return defaultWheel;
+	}
+
+	/**
+	 * Runs a task that may block on a shared worker thread.
+	 */
+	static void execute(Runnable task) {
+		workers.execute(task);
+	}
+
+	Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + delayMillis * 1000000L);
+		added.add(timeout);
+		return timeout;
+	}
+
+	public void run() {
+		while (true) {
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long sleep = deadline - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+				} catch (InterruptedException ie) {
+					// the wheel runs for the lifetime of the JVM
+				}
+				continue;
+			}
+
+			transferAdded();
+			expire(heads[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves newly scheduled timeouts into their slots. Only the wheel
+	 * thread touches the slots, so they need no locking.
+	 */
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			long ticks = (timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1;
+			if (ticks < tick) {
+				ticks = tick;
+			}
+			timeout.rounds = (ticks - tick) / heads.length;
+
+			int slot = (int) (ticks & mask);
+			timeout.next = heads[slot];
+			if (heads[slot] != null) {
+				heads[slot].prev = timeout;
+			}
+			heads[slot] = timeout;
+		}
+	}
+
+	private void expire(Timeout timeout) {
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.cancelled || timeout.rounds <= 0) {
+				remove(timeout);
+				if (!timeout.cancelled) {
+					try {
+						timeout.task.run();
+					} catch (RuntimeException re) {
+						re.printStackTrace();
+					}
+				}
+			} else {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private void remove(Timeout timeout) {
+		int slot = (int) (tick & mask);
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			heads[slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+	static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled = false;
+
+		// owned by the wheel thread
+		private long rounds;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running if it has not started yet; the
+		 * timeout is unlinked the next time its slot comes round.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+	}
+}
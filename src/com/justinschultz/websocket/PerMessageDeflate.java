@@ -0,0 +1,292 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * The permessage-deflate extension (RFC 7692) for one connection. The
+ * Inflater, Deflater and their output buffers are created once and reused
+ * for every message; without context takeover they are reset between
+ * messages instead of being reallocated.
+ */
+public class PerMessageDeflate
+{
+	public static final String EXTENSION_NAME = "permessage-deflate";
+
+	private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+	private static final int DEFAULT_MIN_SIZE = 64;
+
+	private final boolean requestClientNoContextTakeover;
+	private final boolean requestServerNoContextTakeover;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private int minSize = DEFAULT_MIN_SIZE;
+
+	private boolean enabled = false;
+	private boolean compressOutbound = true;
+	private boolean clientNoContextTakeover;
+	private boolean serverNoContextTakeover;
+
+	private Inflater inflater = null;
+	private Deflater deflater = null;
+	private byte[] inflated = new byte[8192];
+	private byte[] deflated = new byte[8192];
+	private int deflatedLength = 0;
+
+
+	public PerMessageDeflate()
+	{
+		this(false, false);
+	}
+
+
+	/**
+	 * @param clientNoContextTakeover
+	 *            reset the compressor after every outbound message, trading
+	 *            ratio for memory on the server
+	 * @param serverNoContextTakeover
+	 *            ask the server to do the same for inbound messages
+	 */
+	public PerMessageDeflate(boolean clientNoContextTakeover, boolean serverNoContextTakeover)
+	{
+		this.requestClientNoContextTakeover = clientNoContextTakeover;
+		this.requestServerNoContextTakeover = serverNoContextTakeover;
+	}
+
+
+	public void setCompressionLevel(int level)
+	{
+		this.compressionLevel = level;
+	}
+
+
+	/**
+	 * Outbound messages smaller than this are sent uncompressed.
+	 */
+	public void setMinimumSize(int bytes)
+	{
+		this.minSize = bytes;
+	}
+
+
+	public String getOffer()
+	{
+		String offer = EXTENSION_NAME;
+		if (requestClientNoContextTakeover) {
+			offer += "; client_no_context_takeover";
+		}
+		if (requestServerNoContextTakeover) {
+			offer += "; server_no_context_takeover";
+		}
+		return offer;
+	}
+
+
+	/**
+	 * Applies the server's Sec-WebSocket-Extensions response. The extension
+	 * stays disabled when the server did not accept it.
+	 */
+	public void negotiate(String response)
+		throws WebSocketException
+	{
+		release();
+		enabled = false;
+		if (response == null) {
+			return;
+		}
+
+		for (String extension : response.split(",")) {
+			String[] params = extension.split(";");
+			if (!params[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+				continue;
+			}
+
+			clientNoContextTakeover = requestClientNoContextTakeover;
+			serverNoContextTakeover = false;
+			compressOutbound = true;
+
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				String name = param;
+				String value = null;
+				int eq = param.indexOf('=');
+				if (eq != -1) {
+					name = param.substring(0, eq).trim();
+					value = param.substring(eq + 1).trim().replace("\"", "");
+				}
+
+				if (name.equalsIgnoreCase("client_no_context_takeover")) {
+					clientNoContextTakeover = true;
+				}
+				else if (name.equalsIgnoreCase("server_no_context_takeover")) {
+					serverNoContextTakeover = true;
+				}
+				else if (name.equalsIgnoreCase("client_max_window_bits")) {
+					// Deflater always uses a 32K window; a smaller one can
+					// only be honoured by not compressing at all.
+					if (value != null && !value.equals("15")) {
+						compressOutbound = false;
+					}
+				}
+				else if (!name.equalsIgnoreCase("server_max_window_bits")) {
+					throw new WebSocketException("connection failed: unsupported permessage-deflate parameter " + name);
+				}
+			}
+
+			inflater = new Inflater(true);
+			deflater = new Deflater(compressionLevel, true);
+			enabled = true;
+			return;
+		}
+	}
+
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+
+	public boolean shouldCompress(int length)
+	{
+		return enabled && compressOutbound && length >= minSize;
+	}
+
+
+	/**
+	 * Inflates a complete message. The result is left in an internal buffer
+	 * that is overwritten by the next call; see {@link #getInflated()}.
+	 *
+	 * @return the inflated length
+	 */
+	public synchronized int inflate(byte[] data, int offset, int length, int maxSize)
+		throws WebSocketException
+	{
+		if (inflater == null) {
+			throw new WebSocketException("compressed message after connection closed");
+		}
+
+		int count = 0;
+		try {
+			inflater.setInput(data, offset, length);
+			count = inflateInput(count, maxSize);
+			inflater.setInput(TAIL);
+			count = inflateInput(count, maxSize);
+		}
+		catch (DataFormatException dfe) {
+			throw new WebSocketException("invalid compressed message", dfe);
+		}
+
+		if (serverNoContextTakeover) {
+			inflater.reset();
+		}
+		return count;
+	}
+
+
+	public byte[] getInflated()
+	{
+		return inflated;
+	}
+
+
+	private int inflateInput(int count, int maxSize)
+		throws DataFormatException, WebSocketException
+	{
+		while (true) {
+			if (count == inflated.length) {
+				if (count >= maxSize) {
+					throw new WebSocketException("message exceeds maximum size of " + maxSize + " bytes");
+				}
+				byte[] grown = new byte[Math.min(inflated.length * 2, Math.max(maxSize, inflated.length))];
+				System.arraycopy(inflated, 0, grown, 0, count);
+				inflated = grown;
+			}
+
+			int n = inflater.inflate(inflated, count, inflated.length - count);
+			count += n;
+			if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+				return count;
+			}
+		}
+	}
+
+
+	/**
+	 * Compresses one outbound message into an internal buffer; see
+	 * {@link #getDeflated()}. Callers must serialize calls together with
+	 * writing the result, since later messages depend on earlier ones
+	 * unless context takeover is disabled.
+	 *
+	 * @return the compressed length
+	 */
+	public int deflate(byte[] data, int offset, int length)
+	{
+		deflater.setInput(data, offset, length);
+		deflatedLength = 0;
+
+		while (true) {
+			if (deflatedLength == deflated.length) {
+				byte[] grown = new byte[deflated.length * 2];
+				System.arraycopy(deflated, 0, grown, 0, deflatedLength);
+				deflated = grown;
+			}
+			int n = deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength, Deflater.SYNC_FLUSH);
+			deflatedLength += n;
+			if (deflatedLength < deflated.length) {
+				break;
+			}
+		}
+
+		if (clientNoContextTakeover) {
+			deflater.reset();
+		}
+
+		// drop the empty stored block that SYNC_FLUSH appends
+		if (deflatedLength >= 4 && deflated[deflatedLength - 4] == 0x00 && deflated[deflatedLength - 3] == 0x00
+				&& deflated[deflatedLength - 2] == (byte) 0xff && deflated[deflatedLength - 1] == (byte) 0xff) {
+			deflatedLength -= 4;
+		}
+		return deflatedLength;
+	}
+
+
+	public byte[] getDeflated()
+	{
+		return deflated;
+	}
+
+
+	/**
+	 * Frees the native zlib state; called when the connection closes.
+	 */
+	public synchronized void release()
+	{
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		enabled = false;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+
+/**
+ * UTF-8 encoding straight into a frame buffer, without the intermediate
+ * array of String.getBytes(). Unpaired surrogates become '?', as they do
+ * with getBytes().
+ */
+final class Utf8
+{
+	private static final int SCRATCH_CHARS = 2048;
+
+	private static final ThreadLocal<char[]> scratch = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue()
+		{
+			return new char[SCRATCH_CHARS];
+		}
+	};
+
+	private Utf8()
+	{
+	}
+
+
+	static int length(String text)
+	{
+		int length = text.length();
+		int bytes = length;
+
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				bytes += 1;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				bytes += 2;
+				i++;
+			}
+			else if (isSurrogate(c)) {
+				continue;
+			}
+			else {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * Copies the text if it is entirely ASCII, which is one byte per char,
+	 * and returns whether it was. Pusher messages nearly always are. The
+	 * check and the copy both run over arrays rather than calling charAt()
+	 * per char, which the JIT turns into much faster code.
+	 */
+	@SuppressWarnings("deprecation")
+	static boolean encodeAscii(String text, byte[] buffer, int offset)
+	{
+		char[] chars = scratch.get();
+		int length = text.length();
+
+		for (int start = 0; start < length; start += chars.length) {
+			int count = Math.min(chars.length, length - start);
+			text.getChars(start, start + count, chars, 0);
+			int bits = 0;
+			for (int i = 0; i < count; i++) {
+				bits |= chars[i];
+			}
+			if (bits >= 0x80) {
+				return false;
+			}
+		}
+
+		// for ASCII this copies the chars exactly
+		text.getBytes(0, length, buffer, offset);
+		return true;
+	}
+
+
+	/**
+	 * Writes the text at the given offset and returns the number of bytes
+	 * written, which is {@link #length(String)}.
+	 */
+	static int encode(String text, byte[] buffer, int offset)
+	{
+		int length = text.length();
+		int pos = offset;
+
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				buffer[pos++] = (byte) c;
+			}
+			else if (c < 0x800) {
+				buffer[pos++] = (byte) (0xc0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				buffer[pos++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+			}
+			else if (isSurrogate(c)) {
+				buffer[pos++] = (byte) '?';
+			}
+			else {
+				buffer[pos++] = (byte) (0xe0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return pos - offset;
+	}
+
+
+	private static boolean isSurrogate(char c)
+	{
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+}
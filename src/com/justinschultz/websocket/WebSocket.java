@@ -25,6 +25,8 @@ public interface WebSocket {
 
 	public void send(String data) throws WebSocketException;
 
+	public WebSocketSendFuture sendAsync(String data) throws WebSocketException;
+
 	public void close() throws WebSocketException;
 
 	public boolean isConnected();
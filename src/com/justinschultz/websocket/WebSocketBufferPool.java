@@ -0,0 +1,214 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * Size-classed pool of heap arrays and direct buffers for frame I/O.
+ * Sizes are powers of two from 256 bytes to 1MB; larger requests are
+ * allocated and dropped as usual. Each thread keeps a few buffers of every
+ * size so that the common case touches no shared state; the rest go to
+ * bounded shared queues, which do not allocate either. Buffers that are
+ * never released are simply garbage collected.
+ */
+public class WebSocketBufferPool
+{
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 20;
+
+	/** Requests larger than this are allocated and never pooled. */
+	public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	private static final int THREAD_CACHE_SIZE = 8;
+	private static final int SHARED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+	private static final int MAX_SHARED_PER_CLASS = 1024;
+
+	private static final WebSocketBufferPool DEFAULT = new WebSocketBufferPool();
+
+	private final ArrayBlockingQueue<byte[]>[] sharedHeap;
+	private final ArrayBlockingQueue<ByteBuffer>[] sharedDirect;
+	private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+		@Override
+		protected Cache initialValue()
+		{
+			return new Cache();
+		}
+	};
+
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public WebSocketBufferPool()
+	{
+		sharedHeap = new ArrayBlockingQueue[CLASSES];
+		sharedDirect = new ArrayBlockingQueue[CLASSES];
+		for (int i = 0; i < CLASSES; i++) {
+			int capacity = Math.max(8, Math.min(MAX_SHARED_PER_CLASS, SHARED_BYTES_PER_CLASS >> (MIN_SHIFT + i)));
+			sharedHeap[i] = new ArrayBlockingQueue<byte[]>(capacity);
+			sharedDirect[i] = new ArrayBlockingQueue<ByteBuffer>(capacity);
+		}
+	}
+
+
+	/**
+	 * The pool used by connections unless they are given another one.
+	 */
+	public static WebSocketBufferPool getDefault()
+	{
+		return DEFAULT;
+	}
+
+
+	/**
+	 * Returns an array of at least the given length. Its contents are
+	 * undefined.
+	 */
+	public byte[] acquire(int minimumSize)
+	{
+		int index = sizeClass(minimumSize);
+		if (index == -1) {
+			return new byte[minimumSize];
+		}
+
+		Cache cache = caches.get();
+		if (cache.heapCount[index] > 0) {
+			byte[] buffer = cache.heap[index][--cache.heapCount[index]];
+			cache.heap[index][cache.heapCount[index]] = null;
+			return buffer;
+		}
+
+		byte[] buffer = sharedHeap[index].poll();
+		return buffer != null ? buffer : new byte[1 << (MIN_SHIFT + index)];
+	}
+
+
+	/**
+	 * Returns an array obtained from acquire(). It must not be used
+	 * afterwards. Arrays larger than MAX_POOLED_SIZE are dropped.
+	 *
+	 * @throws IllegalArgumentException if the array is not one acquire()
+	 *         could have returned, since pooling it would hand out a
+	 *         buffer shorter than its size class
+	 */
+	public void release(byte[] buffer)
+	{
+		int index = pooledClass(buffer.length);
+		if (index == -1) {
+			return;
+		}
+
+		Cache cache = caches.get();
+		if (cache.heapCount[index] < THREAD_CACHE_SIZE) {
+			cache.heap[index][cache.heapCount[index]++] = buffer;
+		}
+		else {
+			sharedHeap[index].offer(buffer);
+		}
+	}
+
+
+	/**
+	 * Returns a cleared direct buffer with a capacity of at least the
+	 * given size.
+	 */
+	public ByteBuffer acquireDirect(int minimumSize)
+	{
+		int index = sizeClass(minimumSize);
+		if (index == -1) {
+			return ByteBuffer.allocateDirect(minimumSize);
+		}
+
+		Cache cache = caches.get();
+		ByteBuffer buffer;
+		if (cache.directCount[index] > 0) {
+			buffer = cache.direct[index][--cache.directCount[index]];
+			cache.direct[index][cache.directCount[index]] = null;
+		}
+		else {
+			buffer = sharedDirect[index].poll();
+			if (buffer == null) {
+				return ByteBuffer.allocateDirect(1 << (MIN_SHIFT + index));
+			}
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+
+	/**
+	 * Returns a buffer obtained from acquireDirect(), on the same terms as
+	 * release().
+	 */
+	public void releaseDirect(ByteBuffer buffer)
+	{
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("not a direct buffer");
+		}
+		int index = pooledClass(buffer.capacity());
+		if (index == -1) {
+			return;
+		}
+
+		Cache cache = caches.get();
+		if (cache.directCount[index] < THREAD_CACHE_SIZE) {
+			cache.direct[index][cache.directCount[index]++] = buffer;
+		}
+		else {
+			sharedDirect[index].offer(buffer);
+		}
+	}
+
+
+	private static int sizeClass(int size)
+	{
+		if (size > (1 << MAX_SHIFT)) {
+			return -1;
+		}
+		if (size <= (1 << MIN_SHIFT)) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+
+	/**
+	 * The class a released buffer of the given size belongs to, or -1 for
+	 * oversized buffers, which are not pooled.
+	 */
+	private static int pooledClass(int size)
+	{
+		if (size > (1 << MAX_SHIFT)) {
+			return -1;
+		}
+		if (Integer.bitCount(size) != 1 || size < (1 << MIN_SHIFT)) {
+			throw new IllegalArgumentException("buffer of " + size + " bytes does not belong to the pool");
+		}
+		return Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+	}
+
+
+	private static class Cache
+	{
+		final byte[][][] heap = new byte[CLASSES][THREAD_CACHE_SIZE][];
+		final int[] heapCount = new int[CLASSES];
+		final ByteBuffer[][] direct = new ByteBuffer[CLASSES][THREAD_CACHE_SIZE];
+		final int[] directCount = new int[CLASSES];
+	}
+}
@@ -0,0 +1,726 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A WebSocket on a non-blocking SocketChannel. Instead of a receiver thread
+ * per connection, reads are driven by a shared WebSocketEventLoopGroup.
+ * Sends write directly when the socket accepts the whole frame and are
+ * otherwise queued and flushed by the event loop.
+ */
+public class WebSocketChannelConnection implements WebSocket {
+	private static final byte[] NO_DATA = new byte[0];
+	private static final int CLOSE_FLUSH_TIMEOUT = 5000;
+
+	private URI url = null;
+	private WebSocketEventHandler eventHandler = null;
+
+	private volatile boolean connected = false;
+	private volatile boolean closing = false;
+
+	private final WebSocketEventLoopGroup group;
+	private WebSocketEventLoop loop = null;
+	private SocketChannel channel = null;
+	private WebSocketHandshake handshake = null;
+	private WebSocketTlsContext tlsContext = null;
+	private WebSocketTlsEngine tls = null;
+	private WebSocketFrameDecoder decoder = null;
+
+	private final Object writeLock = new Object();
+	private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<PendingWrite>();
+	private final Random maskRandom = new SecureRandom();
+
+	private int sendQueueCapacity = WebSocketConnection.DEFAULT_SEND_QUEUE_CAPACITY;
+	private WebSocketSendPolicy sendPolicy = WebSocketSendPolicy.BLOCK;
+
+	private PerMessageDeflate deflate = null;
+	private WebSocketMetrics metrics = null;
+	private WebSocketBufferPool bufferPool = WebSocketBufferPool.getDefault();
+
+	private int connectTimeout = WebSocketConnection.DEFAULT_CONNECT_TIMEOUT;
+	private int handshakeTimeout = WebSocketConnection.DEFAULT_HANDSHAKE_TIMEOUT;
+
+	public WebSocketChannelConnection(URI url) throws WebSocketException {
+		this(url, null, null);
+	}
+
+	public WebSocketChannelConnection(URI url, WebSocketEventLoopGroup group)
+			throws WebSocketException {
+		this(url, null, group);
+	}
+
+	public WebSocketChannelConnection(URI url, String protocol,
+			WebSocketEventLoopGroup group) throws WebSocketException {
+		this.url = url;
+		handshake = new WebSocketHandshake(url, protocol);
+
+		if (group == null) {
+			try {
+				group = WebSocketEventLoopGroup.getDefault();
+			} catch (IOException ioe) {
+				throw new WebSocketException("error while creating event loops",
+						ioe);
+			}
+		}
+		this.group = group;
+	}
+
+	public void setEventHandler(WebSocketEventHandler eventHandler) {
+		this.eventHandler = eventHandler;
+	}
+
+	public WebSocketEventHandler getEventHandler() {
+		return this.eventHandler;
+	}
+
+	/**
+	 * Bounds the number of frames waiting for the socket to become
+	 * writable, by default DEFAULT_SEND_QUEUE_CAPACITY with BLOCK. BLOCK is
+	 * not honoured on the event loop thread itself, where waiting would
+	 * stall the loop; such sends are queued anyway.
+	 */
+	public void setSendQueue(int capacity, WebSocketSendPolicy policy) {
+		this.sendQueueCapacity = capacity;
+		this.sendPolicy = policy;
+	}
+
+	/**
+	 * Sets the TLS context for wss URLs, by default the shared
+	 * WebSocketTlsContext.getDefault(). TLS runs on an SSLEngine, so
+	 * secure connections share the event loops like plain ones.
+	 */
+	public void setTlsContext(WebSocketTlsContext tlsContext) {
+		this.tlsContext = tlsContext;
+	}
+
+	/**
+	 * Limits how long connect() waits for the TCP connection and then for
+	 * the TLS handshake and the server's upgrade response, in milliseconds; 0 waits forever.
+	 * Both default to 10 seconds.
+	 */
+	public void setTimeouts(int connectTimeout, int handshakeTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * Offers permessage-deflate in the handshake. Text messages are
+	 * compressed and inflated only if the server accepts the extension.
+	 */
+	public void setPerMessageDeflate(PerMessageDeflate deflate) {
+		this.deflate = deflate;
+	}
+
+	/**
+	 * Reports frames, bytes and send queue depth to the given metrics.
+	 * Must be set before connect().
+	 */
+	public void setMetrics(WebSocketMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the pool that frames, received messages and queued writes
+	 * borrow their buffers from; by default the shared one. Pass null to
+	 * allocate every buffer instead.
+	 */
+	public void setBufferPool(WebSocketBufferPool pool) {
+		this.bufferPool = pool;
+	}
+
+	public int getSendQueueDepth() {
+		synchronized (writeLock) {
+			return pendingWrites.size();
+		}
+	}
+
+	public void connect() throws WebSocketException {
+		try {
+			if (connected) {
+				throw new WebSocketException("already connected");
+			}
+
+			channel = createChannel();
+			tls = null;
+			if ("wss".equals(url.getScheme())) {
+				WebSocketTlsContext context = tlsContext != null ? tlsContext
+						: WebSocketTlsContext.getDefault();
+				tls = new WebSocketTlsEngine(context.createEngine(
+						url.getHost(), getPort()), channel);
+				channel.socket().setSoTimeout(handshakeTimeout);
+				tls.handshake();
+			}
+
+			if (deflate != null) {
+				handshake.setExtensions(deflate.getOffer());
+			}
+
+			// the socket adaptor's stream honours the read timeout, which
+			// reads on the channel itself do not
+			byte[] response;
+			if (tls != null) {
+				tls.writeBlocking(handshake.getHandshake());
+				response = handshake.readServerHandshake(tls.getInputStream(),
+						channel.socket(), handshakeTimeout);
+				response = concat(response, tls.takeBuffered());
+			} else {
+				ByteBuffer request = ByteBuffer.wrap(handshake.getHandshake());
+				while (request.hasRemaining()) {
+					channel.write(request);
+				}
+				response = handshake.readServerHandshake(channel.socket(),
+						handshakeTimeout);
+			}
+			final byte[] leftover = response;
+			if (deflate != null) {
+				deflate.negotiate(handshake.getServerExtensions());
+			}
+
+			decoder = new WebSocketFrameDecoder(new FrameHandler());
+			decoder.setPerMessageDeflate(deflate);
+			decoder.setMetrics(metrics);
+			channel.configureBlocking(false);
+
+			closing = false;
+			connected = true;
+			loop = group.next();
+			if (leftover != null) {
+				// runs on the loop ahead of the registration, so these
+				// frames are delivered before anything read later
+				loop.execute(new Runnable() {
+					public void run() {
+						try {
+							decoder.decode(leftover, 0, leftover.length);
+						} catch (WebSocketException wse) {
+							wse.printStackTrace();
+							handleReceiverError();
+						}
+					}
+				});
+			}
+			loop.register(channel, new ChannelHandler());
+			eventHandler.onOpen();
+		} catch (WebSocketException wse) {
+			wse.printStackTrace();
+			closeChannel();
+			throw wse;
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			closeChannel();
+			throw new WebSocketException("error while connecting: "
+					+ ioe.getMessage(), ioe);
+		}
+	}
+
+	/**
+	 * Throws if the frame is failed before this returns, e.g. dropped by a
+	 * full send queue with the DROP policy.
+	 */
+	public void send(String data) throws WebSocketException {
+		WebSocketSendFuture future = sendAsync(data);
+		if (future.isDone() && !future.isSuccess()) {
+			throw new WebSocketException("error while sending text data",
+					future.getCause());
+		}
+	}
+
+	public WebSocketSendFuture sendAsync(String data)
+			throws WebSocketException {
+		return sendFrame(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_TEXT,
+				data, null);
+	}
+
+	private WebSocketSendFuture sendFrame(int flagsAndOpcode, byte[] payload)
+			throws WebSocketException {
+		return sendFrame(flagsAndOpcode, null, payload);
+	}
+
+	/**
+	 * Sends either a text frame built from the string or a frame carrying
+	 * the given payload.
+	 */
+	private WebSocketSendFuture sendFrame(int flagsAndOpcode, String text,
+			byte[] payload) throws WebSocketException {
+		if (!connected) {
+			throw new WebSocketException(
+					"error while sending text data: not connected");
+		}
+
+		// the queue space is claimed before compressing, so a frame that is
+		// dropped never advances the compressor past what the server sees;
+		// control frames are never held back, or close() could wait forever
+		synchronized (writeLock) {
+			if (!pendingWrites.isEmpty()
+					&& pendingWrites.size() >= sendQueueCapacity
+					&& !WebSocketFrame.isControl(flagsAndOpcode & 0x0f)) {
+				if (sendPolicy == WebSocketSendPolicy.FAIL) {
+					throw new WebSocketException(
+							"error while sending text data: send queue full");
+				} else if (sendPolicy == WebSocketSendPolicy.DROP) {
+					WebSocketSendFuture dropped = new WebSocketSendFuture();
+					dropped.fail(new WebSocketException(
+							"error while sending text data: send queue full"));
+					return dropped;
+				}
+				awaitQueueSpace();
+			}
+
+			if (closing) {
+				throw new WebSocketException(
+						"error while sending text data: not connected");
+			}
+			try {
+				return write(encodeFrame(flagsAndOpcode, text, payload));
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+				throw new WebSocketException("error while sending text data",
+						ioe);
+			}
+		}
+	}
+
+	private byte[] encodeFrame(int flagsAndOpcode, String text, byte[] payload) {
+		int maskKey;
+		synchronized (maskRandom) {
+			maskKey = maskRandom.nextInt();
+		}
+
+		WebSocketBufferPool pool = bufferPool;
+		if (text == null) {
+			return WebSocketFrame.encode(flagsAndOpcode, payload, 0,
+					payload.length, true, maskKey, pool);
+		}
+
+		if (deflate != null && deflate.isEnabled()) {
+			int length = Utf8.length(text);
+			if (deflate.shouldCompress(length)) {
+				payload = pool != null ? pool.acquire(length) : new byte[length];
+				Utf8.encode(text, payload, 0);
+				int compressed = deflate.deflate(payload, 0, length);
+				if (pool != null) {
+					pool.release(payload);
+				}
+				return WebSocketFrame.encode(flagsAndOpcode
+						| WebSocketFrame.FLAG_RSV1, deflate.getDeflated(), 0,
+						compressed, true, maskKey, pool);
+			}
+		}
+		return WebSocketFrame.encodeText(flagsAndOpcode, text, true, maskKey,
+				pool);
+	}
+
+	/**
+	 * Writes the frame now if nothing is queued ahead of it. Whatever the
+	 * socket does not take is copied into a pooled direct buffer, so the
+	 * gathering writes in flush() need no temporary copies of their own.
+	 */
+	private WebSocketSendFuture write(byte[] frame) throws IOException {
+		int opcode = frame[0] & 0x0f;
+		int length = WebSocketFrame.frameLength(frame);
+
+		if (tls == null) {
+			return write(ByteBuffer.wrap(frame, 0, length), frame, opcode,
+					length);
+		}
+
+		ByteBuffer buffer = tls.wrap(frame, 0, length);
+		if (bufferPool != null) {
+			bufferPool.release(frame);
+		}
+		return write(buffer, null, opcode, length);
+	}
+
+	/**
+	 * Writes TLS records the engine produced on its own, e.g. in answer to
+	 * a key update from the server. Opcode -1 keeps them out of metrics.
+	 */
+	private void writeTlsRecords() throws IOException {
+		synchronized (writeLock) {
+			write(tls.wrap(NO_DATA, 0, 0), null, -1, 0);
+		}
+	}
+
+	/**
+	 * @param frame
+	 *            the pooled array behind buffer, or null if buffer is the
+	 *            TLS engine's, which the next wrap overwrites
+	 */
+	private WebSocketSendFuture write(ByteBuffer buffer, byte[] frame,
+			int opcode, int length) throws IOException {
+		if (pendingWrites.isEmpty()) {
+			channel.write(buffer);
+			if (!buffer.hasRemaining()) {
+				if (frame != null && bufferPool != null) {
+					bufferPool.release(frame);
+				}
+				if (metrics != null && opcode != -1) {
+					metrics.onFrameSent(opcode, length);
+				}
+				return WebSocketSendFuture.completed();
+			}
+		}
+
+		WebSocketBufferPool pool = bufferPool;
+		if (pool != null
+				&& buffer.remaining() <= WebSocketBufferPool.MAX_POOLED_SIZE) {
+			ByteBuffer direct = pool.acquireDirect(buffer.remaining());
+			direct.put(buffer);
+			direct.flip();
+			if (frame != null) {
+				pool.release(frame);
+			}
+			buffer = direct;
+		} else if (frame == null) {
+			ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+			copy.put(buffer);
+			copy.flip();
+			buffer = copy;
+		}
+
+		PendingWrite pending = new PendingWrite(buffer, opcode, length);
+		pendingWrites.add(pending);
+		loop.setWriteInterest(channel, true);
+		if (metrics != null) {
+			metrics.onSendQueueDepth(pendingWrites.size());
+		}
+		return pending.future;
+	}
+
+	private void awaitQueueSpace() throws WebSocketException {
+		if (loop.inEventLoop()) {
+			return;
+		}
+		try {
+			while (connected && pendingWrites.size() >= sendQueueCapacity) {
+				writeLock.wait();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new WebSocketException(
+					"interrupted while waiting for send queue", ie);
+		}
+		if (!connected) {
+			throw new WebSocketException(
+					"error while sending text data: not connected");
+		}
+	}
+
+	private void flush() throws IOException {
+		synchronized (writeLock) {
+			while (!pendingWrites.isEmpty()) {
+				ByteBuffer[] buffers = new ByteBuffer[pendingWrites.size()];
+				int i = 0;
+				for (PendingWrite pending : pendingWrites) {
+					buffers[i++] = pending.buffer;
+				}
+				channel.write(buffers);
+
+				while (!pendingWrites.isEmpty()
+						&& !pendingWrites.peek().buffer.hasRemaining()) {
+					PendingWrite written = pendingWrites.poll();
+					written.future.complete();
+					release(written);
+					if (metrics != null && written.opcode != -1) {
+						metrics.onFrameSent(written.opcode, written.length);
+					}
+				}
+				if (metrics != null) {
+					metrics.onSendQueueDepth(pendingWrites.size());
+				}
+				writeLock.notifyAll();
+				if (!pendingWrites.isEmpty()) {
+					return;
+				}
+			}
+			loop.setWriteInterest(channel, false);
+		}
+	}
+
+	private void failPendingWrites() {
+		synchronized (writeLock) {
+			WebSocketException closed = new WebSocketException(
+					"connection closed before frame was sent");
+			while (!pendingWrites.isEmpty()) {
+				PendingWrite pending = pendingWrites.poll();
+				pending.future.fail(closed);
+				release(pending);
+			}
+			writeLock.notifyAll();
+		}
+	}
+
+	private void release(PendingWrite pending) {
+		WebSocketBufferPool pool = bufferPool;
+		if (pool != null && pending.buffer.isDirect()) {
+			pool.releaseDirect(pending.buffer);
+		}
+	}
+
+	public void handleReceiverError() {
+		if (closing) {
+			// close() is waiting for a flush that will not happen
+			failPendingWrites();
+			return;
+		}
+		try {
+			if (connected) {
+				close();
+			}
+		} catch (WebSocketException wse) {
+			wse.printStackTrace();
+		}
+	}
+
+	public synchronized void close() throws WebSocketException {
+		if (!connected) {
+			return;
+		}
+
+		try {
+			sendCloseHandshake();
+			awaitFlush(CLOSE_FLUSH_TIMEOUT);
+		} finally {
+			connected = false;
+			sendCloseNotify();
+			closeChannel();
+			failPendingWrites();
+			if (deflate != null) {
+				synchronized (writeLock) {
+					deflate.release();
+				}
+			}
+			eventHandler.onClose();
+		}
+	}
+
+	/**
+	 * Queues the close frame behind the pending writes and refuses any
+	 * frame after it.
+	 */
+	private void sendCloseHandshake() throws WebSocketException {
+		byte[] status = new byte[] {
+				(byte) (WebSocketFrame.CLOSE_NORMAL >>> 8),
+				(byte) WebSocketFrame.CLOSE_NORMAL };
+		synchronized (writeLock) {
+			sendFrame(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_CLOSE,
+					status);
+			closing = true;
+		}
+	}
+
+	/**
+	 * Waits up to timeoutMillis for the event loop to write out the pending
+	 * frames. On the event loop itself nothing could make progress, so it
+	 * returns at once.
+	 */
+	private void awaitFlush(long timeoutMillis) {
+		if (loop.inEventLoop()) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (writeLock) {
+			try {
+				long remaining = timeoutMillis;
+				while (!pendingWrites.isEmpty() && remaining > 0) {
+					writeLock.wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		if (first == null || second == null) {
+			return first != null ? first : second;
+		}
+		byte[] joined = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, joined, first.length, second.length);
+		return joined;
+	}
+
+	private int getPort() {
+		if (url.getPort() != -1) {
+			return url.getPort();
+		}
+		return "wss".equals(url.getScheme()) ? 443 : 80;
+	}
+
+	/**
+	 * Sends TLS close_notify if the close frame has been written in full,
+	 * so the server sees a clean end of the session.
+	 */
+	private void sendCloseNotify() {
+		if (tls == null) {
+			return;
+		}
+		synchronized (writeLock) {
+			if (!pendingWrites.isEmpty()) {
+				return;
+			}
+			try {
+				channel.write(tls.closeOutbound());
+			} catch (IOException ioe) {
+				// the connection is going away either way
+			}
+		}
+	}
+
+	private SocketChannel createChannel() throws WebSocketException {
+		String scheme = url.getScheme();
+		String host = url.getHost();
+		int port = getPort();
+
+		if (scheme == null || !(scheme.equals("ws") || scheme.equals("wss"))) {
+			throw new WebSocketException("unsupported protocol: " + scheme);
+		}
+
+		try {
+			SocketChannel channel = SocketChannel.open();
+			try {
+				channel.socket().setKeepAlive(true);
+				channel.socket().connect(new InetSocketAddress(host, port),
+						connectTimeout);
+			} catch (IOException ioe) {
+				channel.close();
+				throw ioe;
+			}
+			return channel;
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			throw new WebSocketException("error while creating socket to "
+					+ url, ioe);
+		}
+	}
+
+	private void closeChannel() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	private class ChannelHandler implements WebSocketEventLoop.ChannelHandler {
+		public void onReadable(ByteBuffer buffer) throws IOException,
+				WebSocketException {
+			if (tls != null) {
+				readTls(buffer);
+				return;
+			}
+
+			int count = channel.read(buffer);
+			if (count == -1) {
+				handleReceiverError();
+			} else if (count > 0) {
+				decoder.decode(buffer.array(), buffer.arrayOffset(), count);
+			}
+		}
+
+		/**
+		 * Decrypts into the loop's buffer until the channel has nothing
+		 * more, since one readiness event may carry many TLS records.
+		 */
+		private void readTls(ByteBuffer buffer) throws IOException,
+				WebSocketException {
+			while (true) {
+				int count = tls.read(buffer);
+				if (count == -1) {
+					handleReceiverError();
+					return;
+				} else if (count > 0) {
+					decoder.decode(buffer.array(), buffer.arrayOffset(), count);
+					buffer.clear();
+					if (!connected) {
+						return;
+					}
+				} else if (tls.needsWrap()) {
+					writeTlsRecords();
+				} else {
+					return;
+				}
+			}
+		}
+
+		public void onWritable() throws IOException {
+			flush();
+		}
+
+		public void onError(Exception e) {
+			if (!connected) {
+				// the channel was closed by close()
+				return;
+			}
+			e.printStackTrace();
+			handleReceiverError();
+		}
+	}
+
+	private static class PendingWrite {
+		final ByteBuffer buffer;
+		final int opcode;
+		final int length;
+		final WebSocketSendFuture future = new WebSocketSendFuture();
+
+		PendingWrite(ByteBuffer buffer, int opcode, int length) {
+			this.buffer = buffer;
+			this.opcode = opcode;
+			this.length = length;
+		}
+	}
+
+	private class FrameHandler implements WebSocketFrameDecoder.FrameHandler {
+		public void onMessage(int opcode, byte[] data, int offset, int length) {
+			WebSocketBufferPool pool = bufferPool;
+			if (pool == null) {
+				byte[] message = Arrays.copyOfRange(data, offset, offset + length);
+				eventHandler.onMessage(new WebSocketMessage(message));
+				return;
+			}
+			byte[] message = pool.acquire(length);
+			System.arraycopy(data, offset, message, 0, length);
+			eventHandler.onMessage(new WebSocketMessage(message, 0, length, pool));
+		}
+
+		public void onControlFrame(int opcode, byte[] data, int offset,
+				int length) throws WebSocketException {
+			if (opcode == WebSocketFrame.OPCODE_PING) {
+				sendFrame(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_PONG,
+						Arrays.copyOfRange(data, offset, offset + length));
+			} else if (opcode == WebSocketFrame.OPCODE_CLOSE) {
+				handleReceiverError();
+			}
+		}
+	}
+}
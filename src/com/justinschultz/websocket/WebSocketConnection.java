@@ -18,18 +18,25 @@ package com.justinschultz.websocket;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocketFactory;
 
 public class WebSocketConnection implements WebSocket {
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+	public static final int DEFAULT_SEND_QUEUE_CAPACITY = 1024;
+	private static final int CLOSE_FLUSH_TIMEOUT = 5000;
+
 	private URI url = null;
 	private WebSocketEventHandler eventHandler = null;
 
@@ -37,10 +44,28 @@ public class WebSocketConnection implements WebSocket {
 
 	private Socket socket = null;
 	private InputStream input = null;
-	private PrintStream output = null;
+	private OutputStream output = null;
+	private final Object writeLock = new Object();
+	private final Object deflateLock = new Object();
+	private final Random maskRandom = new SecureRandom();
 
 	private WebSocketReceiver receiver = null;
 	private WebSocketHandshake handshake = null;
+	private WebSocketTlsContext tlsContext = null;
+
+	private Executor receiverExecutor = null;
+	private ThreadFactory receiverThreadFactory = null;
+
+	private WebSocketSender sender = null;
+	private int sendQueueCapacity = 0;
+	private WebSocketSendPolicy sendPolicy = WebSocketSendPolicy.BLOCK;
+
+	private PerMessageDeflate deflate = null;
+	private WebSocketMetrics metrics = null;
+	private WebSocketBufferPool bufferPool = WebSocketBufferPool.getDefault();
+
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
 
 	public WebSocketConnection(URI url) throws WebSocketException {
 		this(url, null);
@@ -56,6 +81,112 @@ public class WebSocketConnection implements WebSocket {
 		this.eventHandler = eventHandler;
 	}
 
+	/**
+	 * Runs the receive loop as a task on the given executor instead of a
+	 * dedicated platform thread. The task blocks for the lifetime of the
+	 * connection, so the executor must not be a small fixed pool.
+	 */
+	public void setReceiverExecutor(Executor executor) {
+		this.receiverExecutor = executor;
+	}
+
+	/**
+	 * Creates the receiver thread through the given factory, e.g. the one
+	 * returned by {@link #virtualThreadFactory()}.
+	 */
+	public void setReceiverThreadFactory(ThreadFactory threadFactory) {
+		this.receiverThreadFactory = threadFactory;
+	}
+
+	/**
+	 * Sets the TLS context for wss URLs, by default the shared
+	 * WebSocketTlsContext.getDefault(). Connections sharing a context
+	 * resume each other's TLS sessions.
+	 */
+	public void setTlsContext(WebSocketTlsContext tlsContext) {
+		this.tlsContext = tlsContext;
+	}
+
+	/**
+	 * Limits how long connect() waits for the TCP connection and then for
+	 * the TLS handshake and the server's upgrade response, in milliseconds;
+	 * 0 waits forever. Both default to 10 seconds.
+	 */
+	public void setTimeouts(int connectTimeout, int handshakeTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * Offers permessage-deflate in the handshake. Text messages are
+	 * compressed and inflated only if the server accepts the extension.
+	 */
+	public void setPerMessageDeflate(PerMessageDeflate deflate) {
+		this.deflate = deflate;
+	}
+
+	PerMessageDeflate getPerMessageDeflate() {
+		return deflate;
+	}
+
+	/**
+	 * Reports frames, bytes and send queue depth to the given metrics.
+	 * Must be set before connect().
+	 */
+	public void setMetrics(WebSocketMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	WebSocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the pool that outgoing frames and received messages borrow
+	 * their buffers from; by default the shared one. Handlers may call
+	 * WebSocketMessage.release() once done with a message. Pass null to
+	 * allocate every buffer instead.
+	 */
+	public void setBufferPool(WebSocketBufferPool pool) {
+		this.bufferPool = pool;
+	}
+
+	WebSocketBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Enables the asynchronous send pipeline: sends are queued (up to
+	 * capacity frames) and written by a separate writer, which coalesces
+	 * queued frames into a single write. The writer is started the same
+	 * way as the receiver. A capacity of 0, the default, keeps sends
+	 * synchronous; DEFAULT_SEND_QUEUE_CAPACITY suits most clients.
+	 */
+	public void setSendQueue(int capacity, WebSocketSendPolicy policy) {
+		this.sendQueueCapacity = capacity;
+		this.sendPolicy = policy;
+	}
+
+	public int getSendQueueDepth() {
+		WebSocketSender sender = this.sender;
+		return sender != null ? sender.getQueueDepth() : 0;
+	}
+
+	/**
+	 * Returns a factory for virtual threads when the running JVM supports
+	 * them (Java 21 and later), or null otherwise.
+	 */
+	public static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	public WebSocketEventHandler getEventHandler() {
 		return this.eventHandler;
 	}
@@ -67,145 +198,248 @@ public class WebSocketConnection implements WebSocket {
 			}
 
 			socket = createSocket();
+			// covers the TLS handshake that the first write triggers
+			socket.setSoTimeout(handshakeTimeout);
 			input = socket.getInputStream();
-			output = new PrintStream(socket.getOutputStream());
+			output = socket.getOutputStream();
 
-			output.write(handshake.getHandshake());
-
-			boolean handshakeComplete = false;
-			boolean header = true;
-			int len = 1000;
-			byte[] buffer = new byte[len];
-			int pos = 0;
-			ArrayList<String> handshakeLines = new ArrayList<String>();
-
-			byte[] serverResponse = new byte[16];
-
-			while (!handshakeComplete) {
-				int b = input.read();
-				buffer[pos] = (byte) b;
-				pos += 1;
-
-				if (!header) {
-					serverResponse[pos - 1] = (byte) b;
-					if (pos == 16) {
-						handshakeComplete = true;
-					}
-				} else if (buffer[pos - 1] == 0x0A && buffer[pos - 2] == 0x0D) {
-					String line = new String(buffer, "UTF-8");
-					if (line.trim().equals("")) {
-						header = false;
-					} else {
-						handshakeLines.add(line.trim());
-					}
-
-					buffer = new byte[len];
-					pos = 0;
-				}
+			if (deflate != null) {
+				handshake.setExtensions(deflate.getOffer());
 			}
+			output.write(handshake.getHandshake());
 
-			handshake.verifyServerStatusLine(handshakeLines.get(0));
-			handshake.verifyServerResponse(serverResponse);
-
-			handshakeLines.remove(0);
-
-			HashMap<String, String> headers = new HashMap<String, String>();
-			for (String line : handshakeLines) {
-				String[] keyValue = line.split(": ", 2);
-				headers.put(keyValue[0], keyValue[1]);
+			byte[] leftover = handshake.readServerHandshake(socket,
+					handshakeTimeout);
+			if (deflate != null) {
+				deflate.negotiate(handshake.getServerExtensions());
 			}
-			handshake.verifyServerHandshakeHeaders(headers);
 
-			receiver = new WebSocketReceiver(input, this);
-			receiver.start();
 			connected = true;
+			if (sendQueueCapacity > 0) {
+				sender = new WebSocketSender(sendQueueCapacity, sendPolicy,
+						output, writeLock, this);
+				start(sender);
+			}
+			receiver = new WebSocketReceiver(input, this, leftover);
+			start(receiver);
 			eventHandler.onOpen();
 		} catch (WebSocketException wse) {
 			wse.printStackTrace();
+			closeSocket();
 			throw wse;
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
+			closeSocket();
 			throw new WebSocketException("error while connecting: "
 					+ ioe.getMessage(), ioe);
 		}
 	}
 
-	public synchronized void send(String data) throws WebSocketException {
+	private void closeSocket() {
+		if (connected || socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	private void start(Runnable task) throws WebSocketException {
+		try {
+			if (receiverExecutor != null) {
+				receiverExecutor.execute(task);
+			} else if (receiverThreadFactory != null) {
+				receiverThreadFactory.newThread(task).start();
+			} else {
+				new Thread(task).start();
+			}
+		} catch (RejectedExecutionException ree) {
+			connected = false;
+			if (sender != null) {
+				sender.stopit();
+			}
+			closeStreams();
+			throw new WebSocketException("error while starting receiver", ree);
+		}
+	}
+
+	/**
+	 * Throws if the frame is failed before this returns, e.g. dropped by a
+	 * full send queue with the DROP policy.
+	 */
+	public void send(String data) throws WebSocketException {
+		WebSocketSendFuture future = sendAsync(data);
+		if (future.isDone() && !future.isSuccess()) {
+			throw new WebSocketException("error while sending text data",
+					future.getCause());
+		}
+	}
+
+	public WebSocketSendFuture sendAsync(String data)
+			throws WebSocketException {
 		if (!connected) {
 			throw new WebSocketException(
 					"error while sending text data: not connected");
 		}
 
-		try {
-			output.write(0x00);
-			output.write(data.getBytes(("UTF-8")));
-			output.write(0xff);
-		} catch (UnsupportedEncodingException uee) {
-			uee.printStackTrace();
+		// compressed frames depend on the ones before them, so encoding
+		// and queueing must happen in the same order
+		synchronized (deflateLock) {
+			WebSocketSender sender = this.sender;
+			if (sender == null) {
+				writeFrame(encodeText(data));
+				return WebSocketSendFuture.completed();
+			}
+			return sender.enqueue(encodeText(data));
+		}
+	}
+
+	/**
+	 * Encodes a text frame straight into a pooled buffer, compressing it
+	 * first if permessage-deflate is in use.
+	 */
+	private byte[] encodeText(String data) {
+		int flagsAndOpcode = WebSocketFrame.FLAG_FIN
+				| WebSocketFrame.OPCODE_TEXT;
+
+		PerMessageDeflate deflate = this.deflate;
+		if (deflate != null && deflate.isEnabled()) {
+			int length = Utf8.length(data);
+			if (deflate.shouldCompress(length)) {
+				byte[] payload = bufferPool != null ? bufferPool
+						.acquire(length) : new byte[length];
+				Utf8.encode(data, payload, 0);
+				int compressed = deflate.deflate(payload, 0, length);
+				if (bufferPool != null) {
+					bufferPool.release(payload);
+				}
+				return WebSocketFrame.encode(flagsAndOpcode
+						| WebSocketFrame.FLAG_RSV1, deflate.getDeflated(), 0,
+						compressed, true, nextMaskKey(), bufferPool);
+			}
+		}
+		return WebSocketFrame.encodeText(flagsAndOpcode, data, true,
+				nextMaskKey(), bufferPool);
+	}
+
+	public void sendPong(byte[] data) throws WebSocketException {
+		sendFrame(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_PONG, data);
+	}
+
+	private int nextMaskKey() {
+		synchronized (maskRandom) {
+			return maskRandom.nextInt();
+		}
+	}
+
+	private void sendFrame(int flagsAndOpcode, byte[] payload)
+			throws WebSocketException {
+		if (!connected) {
 			throw new WebSocketException(
-					"error while sending text data: unsupported encoding", uee);
+					"error while sending text data: not connected");
+		}
+		writeFrame(WebSocketFrame.encode(flagsAndOpcode, payload, 0,
+				payload.length, true, nextMaskKey(), bufferPool));
+	}
+
+	private void writeFrame(byte[] frame) throws WebSocketException {
+		int opcode = frame[0] & 0x0f;
+		int length = WebSocketFrame.frameLength(frame);
+		try {
+			synchronized (writeLock) {
+				output.write(frame, 0, length);
+				output.flush();
+			}
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
 			throw new WebSocketException("error while sending text data", ioe);
+		} finally {
+			if (bufferPool != null) {
+				bufferPool.release(frame);
+			}
 		}
-	}
 
-	// public synchronized void send(byte[] data)
-	// throws WebSocketException
-	// {
-	// if (!connected) {
-	// throw new
-	// WebSocketException("error while sending binary data: not connected");
-	// }
-	//
-	// try {
-	// output.write(0x80);
-	// output.write(data.length);
-	// output.write(data);
-	// output.write("\r\n".getBytes());
-	// }
-	// catch (IOException ioe) {
-	// throw new WebSocketException("error while sending binary data: ", ioe);
-	// }
-	// }
+		if (metrics != null) {
+			metrics.onFrameSent(opcode, length);
+		}
+	}
 
 	public void handleReceiverError() {
 		try {
 			if (connected) {
-				close();
+				close(true);
 			}
 		} catch (WebSocketException wse) {
-			wse.printStackTrace();
+			// the peer is usually gone by now, so the close handshake is best effort
 		}
 	}
 
-	public synchronized void close() throws WebSocketException {
+	public void close() throws WebSocketException {
+		close(false);
+	}
+
+	private synchronized void close(boolean quiet) throws WebSocketException {
 		if (!connected) {
 			return;
 		}
 
-		sendCloseHandshake();
-
-		if (receiver.isRunning()) {
-			receiver.stopit();
+		// queued frames go out before the close frame, within a bound
+		if (sender != null) {
+			sender.shutdown(CLOSE_FLUSH_TIMEOUT);
 		}
 
-		closeStreams();
+		try {
+			sendCloseHandshake(quiet);
+		} finally {
+			connected = false;
+
+			if (receiver.isRunning()) {
+				receiver.stopit();
+			}
+
+			if (deflate != null) {
+				synchronized (deflateLock) {
+					deflate.release();
+				}
+			}
+
+			try {
+				closeStreams();
+			} finally {
+				eventHandler.onClose();
+			}
+		}
+	}
 
-		eventHandler.onClose();
+	public void handleCloseFrame() {
+		handleReceiverError();
 	}
 
-	private synchronized void sendCloseHandshake() throws WebSocketException {
+	private synchronized void sendCloseHandshake(boolean quiet) throws WebSocketException {
 		if (!connected) {
 			throw new WebSocketException(
 					"error while sending close handshake: not connected");
 		}
 
 		try {
-			output.write(0xff00);
-			output.write("\r\n".getBytes());
+			byte[] status = new byte[] {
+					(byte) (WebSocketFrame.CLOSE_NORMAL >>> 8),
+					(byte) WebSocketFrame.CLOSE_NORMAL };
+			byte[] frame = WebSocketFrame.encode(WebSocketFrame.FLAG_FIN
+					| WebSocketFrame.OPCODE_CLOSE, status, 0, status.length,
+					true, nextMaskKey());
+			synchronized (writeLock) {
+				if (sender != null) {
+					sender.stopit();
+				}
+				output.write(frame);
+				output.flush();
+			}
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
+			if (!quiet) {
+				ioe.printStackTrace();
+			}
 			throw new WebSocketException("error while sending close handshake",
 					ioe);
 		}
@@ -225,9 +459,7 @@ public class WebSocketConnection implements WebSocket {
 				port = 80;
 			}
 			try {
-				socket = new Socket(host, port);
-				socket.setKeepAlive(true);
-				socket.setSoTimeout(0);
+				socket = connectSocket(host, port);
 			} catch (UnknownHostException uhe) {
 				uhe.printStackTrace();
 				throw new WebSocketException("unknown host: " + host, uhe);
@@ -241,8 +473,10 @@ public class WebSocketConnection implements WebSocket {
 				port = 443;
 			}
 			try {
-				SocketFactory factory = SSLSocketFactory.getDefault();
-				socket = factory.createSocket(host, port);
+				WebSocketTlsContext context = tlsContext != null ? tlsContext
+						: WebSocketTlsContext.getDefault();
+				socket = context.createSocket(connectSocket(host, port), host,
+						port);
 			} catch (UnknownHostException uhe) {
 				uhe.printStackTrace();
 				throw new WebSocketException("unknown host: " + host, uhe);
@@ -258,6 +492,18 @@ public class WebSocketConnection implements WebSocket {
 		return socket;
 	}
 
+	private Socket connectSocket(String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setKeepAlive(true);
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+		} catch (IOException ioe) {
+			socket.close();
+			throw ioe;
+		}
+		return socket;
+	}
+
 	private void closeStreams() throws WebSocketException {
 		try {
 			input.close();
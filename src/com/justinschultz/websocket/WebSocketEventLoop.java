@@ -0,0 +1,195 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A single selector thread serving any number of non-blocking connections.
+ * Registration and interest changes are handed to the loop as tasks so the
+ * selector is only ever touched from its own thread.
+ */
+public class WebSocketEventLoop
+		implements Runnable
+{
+	interface ChannelHandler
+	{
+		public void onReadable(ByteBuffer buffer)
+			throws IOException, WebSocketException;
+
+		public void onWritable()
+			throws IOException;
+
+		public void onError(Exception e);
+	}
+
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final Selector selector;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	private volatile boolean stop = false;
+
+
+	public WebSocketEventLoop(String name)
+		throws IOException
+	{
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+		if (!inEventLoop()) {
+			selector.wakeup();
+		}
+	}
+
+
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+
+	public void shutdown()
+	{
+		stop = true;
+		selector.wakeup();
+	}
+
+
+	void register(final SocketChannel channel, final ChannelHandler handler)
+	{
+		execute(new Runnable() {
+			public void run()
+			{
+				try {
+					channel.register(selector, SelectionKey.OP_READ, handler);
+				}
+				catch (ClosedChannelException cce) {
+					handler.onError(cce);
+				}
+			}
+		});
+	}
+
+
+	void setWriteInterest(final SocketChannel channel, final boolean write)
+	{
+		Runnable task = new Runnable() {
+			public void run()
+			{
+				SelectionKey key = channel.keyFor(selector);
+				if (key == null || !key.isValid()) {
+					return;
+				}
+				int ops = write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+				if (key.interestOps() != ops) {
+					key.interestOps(ops);
+				}
+			}
+		};
+
+		if (inEventLoop()) {
+			task.run();
+		}
+		else {
+			execute(task);
+		}
+	}
+
+
+	public void run()
+	{
+		while (!stop) {
+			try {
+				selector.select();
+				runTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					process(key);
+				}
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+
+		try {
+			selector.close();
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+
+	private void process(SelectionKey key)
+	{
+		ChannelHandler handler = (ChannelHandler) key.attachment();
+		try {
+			if (key.isReadable()) {
+				readBuffer.clear();
+				handler.onReadable(readBuffer);
+			}
+			if (key.isValid() && key.isWritable()) {
+				handler.onWritable();
+			}
+		}
+		catch (CancelledKeyException cke) {
+			// channel was closed while its events were being processed
+		}
+		catch (Exception e) {
+			key.cancel();
+			handler.onError(e);
+		}
+	}
+
+
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			}
+			catch (RuntimeException re) {
+				re.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A fixed set of event loops that connections are spread across round
+ * robin. The default group has one loop per available processor.
+ */
+public class WebSocketEventLoopGroup
+{
+	private static WebSocketEventLoopGroup defaultGroup = null;
+
+	private final WebSocketEventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+
+
+	public WebSocketEventLoopGroup(int threads)
+		throws IOException
+	{
+		loops = new WebSocketEventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new WebSocketEventLoop("WebSocketEventLoop-" + i);
+		}
+	}
+
+
+	public static synchronized WebSocketEventLoopGroup getDefault()
+		throws IOException
+	{
+		if (defaultGroup == null) {
+			defaultGroup = new WebSocketEventLoopGroup(Runtime.getRuntime().availableProcessors());
+		}
+		return defaultGroup;
+	}
+
+
+	public WebSocketEventLoop next()
+	{
+		int index = (next.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		return loops[index];
+	}
+
+
+	public int size()
+	{
+		return loops.length;
+	}
+
+
+	public void shutdown()
+	{
+		for (WebSocketEventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+}
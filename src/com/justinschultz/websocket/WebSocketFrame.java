@@ -0,0 +1,220 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * RFC 6455 frame constants and helpers for writing frame headers and
+ * applying the client mask.
+ */
+public final class WebSocketFrame
+{
+	public static final int OPCODE_CONTINUATION = 0x0;
+	public static final int OPCODE_TEXT = 0x1;
+	public static final int OPCODE_BINARY = 0x2;
+	public static final int OPCODE_CLOSE = 0x8;
+	public static final int OPCODE_PING = 0x9;
+	public static final int OPCODE_PONG = 0xA;
+
+	public static final int FLAG_FIN = 0x80;
+	public static final int FLAG_RSV1 = 0x40;
+	public static final int FLAG_RSV2 = 0x20;
+	public static final int FLAG_RSV3 = 0x10;
+
+	public static final int CLOSE_NORMAL = 1000;
+	public static final int CLOSE_PROTOCOL_ERROR = 1002;
+	public static final int CLOSE_TOO_BIG = 1009;
+
+	public static final int MAX_CONTROL_PAYLOAD = 125;
+	public static final int MAX_HEADER_LENGTH = 14;
+
+
+	private WebSocketFrame()
+	{
+	}
+
+
+	public static boolean isControl(int opcode)
+	{
+		return (opcode & 0x8) != 0;
+	}
+
+
+	public static int headerLength(int payloadLength, boolean masked)
+	{
+		int length = 2;
+		if (payloadLength > 0xffff) {
+			length += 8;
+		}
+		else if (payloadLength > MAX_CONTROL_PAYLOAD) {
+			length += 2;
+		}
+		return masked ? length + 4 : length;
+	}
+
+
+	/**
+	 * Writes a frame header and returns its length. The first byte is
+	 * written as given, so callers pass FIN and RSV bits along with the
+	 * opcode.
+	 */
+	public static int writeHeader(byte[] buffer, int offset, int flagsAndOpcode, int payloadLength, boolean masked, int maskKey)
+	{
+		int pos = offset;
+		int maskBit = masked ? 0x80 : 0x00;
+
+		buffer[pos++] = (byte) flagsAndOpcode;
+		if (payloadLength > 0xffff) {
+			buffer[pos++] = (byte) (maskBit | 127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				buffer[pos++] = (byte) (((long) payloadLength) >>> shift);
+			}
+		}
+		else if (payloadLength > MAX_CONTROL_PAYLOAD) {
+			buffer[pos++] = (byte) (maskBit | 126);
+			buffer[pos++] = (byte) (payloadLength >>> 8);
+			buffer[pos++] = (byte) payloadLength;
+		}
+		else {
+			buffer[pos++] = (byte) (maskBit | payloadLength);
+		}
+
+		if (masked) {
+			buffer[pos++] = (byte) (maskKey >>> 24);
+			buffer[pos++] = (byte) (maskKey >>> 16);
+			buffer[pos++] = (byte) (maskKey >>> 8);
+			buffer[pos++] = (byte) maskKey;
+		}
+
+		return pos - offset;
+	}
+
+
+	/**
+	 * Builds a complete frame in a single array so it can be written with
+	 * one call.
+	 */
+	public static byte[] encode(int flagsAndOpcode, byte[] payload, int offset, int length, boolean masked, int maskKey)
+	{
+		int headerLength = headerLength(length, masked);
+		byte[] frame = new byte[headerLength + length];
+		writeHeader(frame, 0, flagsAndOpcode, length, masked, maskKey);
+		System.arraycopy(payload, offset, frame, headerLength, length);
+		if (masked) {
+			mask(frame, headerLength, length, maskKey, 0);
+		}
+		return frame;
+	}
+
+
+	/**
+	 * Like {@link #encode(int, byte[], int, int, boolean, int)}, but builds
+	 * the frame at the start of a buffer from the pool, or of an exactly
+	 * sized array if pool is null. Use {@link #frameLength(byte[])} to find
+	 * where it ends.
+	 */
+	public static byte[] encode(int flagsAndOpcode, byte[] payload, int offset, int length, boolean masked, int maskKey,
+			WebSocketBufferPool pool)
+	{
+		int headerLength = headerLength(length, masked);
+		byte[] frame = pool != null ? pool.acquire(headerLength + length) : new byte[headerLength + length];
+		writeHeader(frame, 0, flagsAndOpcode, length, masked, maskKey);
+		System.arraycopy(payload, offset, frame, headerLength, length);
+		if (masked) {
+			mask(frame, headerLength, length, maskKey, 0);
+		}
+		return frame;
+	}
+
+
+	/**
+	 * Builds a text frame, encoding the string straight into the frame
+	 * buffer; see {@link #encode(int, byte[], int, int, boolean, int, WebSocketBufferPool)}.
+	 */
+	public static byte[] encodeText(int flagsAndOpcode, String text, boolean masked, int maskKey,
+			WebSocketBufferPool pool)
+	{
+		int length = text.length();
+		int headerLength = headerLength(length, masked);
+		byte[] frame = pool != null ? pool.acquire(headerLength + length) : new byte[headerLength + length];
+
+		if (!Utf8.encodeAscii(text, frame, headerLength)) {
+			if (pool != null) {
+				pool.release(frame);
+			}
+			length = Utf8.length(text);
+			headerLength = headerLength(length, masked);
+			frame = pool != null ? pool.acquire(headerLength + length) : new byte[headerLength + length];
+			Utf8.encode(text, frame, headerLength);
+		}
+
+		writeHeader(frame, 0, flagsAndOpcode, length, masked, maskKey);
+		if (masked) {
+			mask(frame, headerLength, length, maskKey, 0);
+		}
+		return frame;
+	}
+
+
+	/**
+	 * Returns the length of the frame at the start of the buffer, which is
+	 * shorter than the buffer when it came from a pool.
+	 */
+	public static int frameLength(byte[] buffer)
+	{
+		int length = buffer[1] & 0x7f;
+		int pos = 2;
+		if (length == 126) {
+			length = ((buffer[2] & 0xff) << 8) | (buffer[3] & 0xff);
+			pos = 4;
+		}
+		else if (length == 127) {
+			length = ((buffer[6] & 0xff) << 24) | ((buffer[7] & 0xff) << 16) | ((buffer[8] & 0xff) << 8)
+					| (buffer[9] & 0xff);
+			pos = 10;
+		}
+		if ((buffer[1] & 0x80) != 0) {
+			pos += 4;
+		}
+		return pos + length;
+	}
+
+
+	/**
+	 * XORs the payload with the masking key, eight bytes at a time.
+	 * keyOffset is the position within the payload at which this range
+	 * starts, so that a payload can be unmasked in several pieces.
+	 */
+	public static void mask(byte[] data, int offset, int length, int maskKey, long keyOffset)
+	{
+		int key = Integer.rotateLeft(maskKey, ((int) keyOffset & 3) << 3);
+		long wideKey = ((long) key << 32) | (key & 0xffffffffL);
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int pos = offset;
+		int end = offset + length;
+
+		for (; pos + 8 <= end; pos += 8) {
+			buffer.putLong(pos, buffer.getLong(pos) ^ wideKey);
+		}
+		for (int i = 0; pos < end; pos++, i++) {
+			data[pos] ^= (byte) (key >>> (24 - ((i & 3) << 3)));
+		}
+	}
+}
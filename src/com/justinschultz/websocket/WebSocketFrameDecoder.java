@@ -0,0 +1,370 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Incremental RFC 6455 frame decoder. Input is read in large chunks into a
+ * reusable buffer; the length prefix of each frame lets whole payloads be
+ * handed out as a slice of that buffer. Only fragmented messages and
+ * frames spanning chunk boundaries are copied into the message buffer.
+ * Masked frames are unmasked in place.
+ */
+public class WebSocketFrameDecoder
+{
+	public interface FrameHandler
+	{
+		/**
+		 * Called with a complete, reassembled text or binary message. The
+		 * slice is only valid for the duration of the call.
+		 */
+		public void onMessage(int opcode, byte[] data, int offset, int length)
+			throws WebSocketException;
+
+		public void onControlFrame(int opcode, byte[] data, int offset, int length)
+			throws WebSocketException;
+	}
+
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+	private static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	private final FrameHandler handler;
+	private byte[] readBuffer;
+	private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+	private PerMessageDeflate deflate = null;
+	private WebSocketMetrics metrics = null;
+
+	private final byte[] header = new byte[WebSocketFrame.MAX_HEADER_LENGTH];
+	private int headerLength = 0;
+	private boolean headerComplete = false;
+
+	private boolean fin;
+	private int opcode;
+	private boolean masked;
+	private int maskKey;
+	private long payloadLength;
+	private long payloadRead;
+
+	private final byte[] control = new byte[WebSocketFrame.MAX_CONTROL_PAYLOAD];
+
+	private byte[] message;
+	private int messageLength = 0;
+	private int messageOpcode = 0;
+	private boolean messageCompressed = false;
+
+
+	public WebSocketFrameDecoder(FrameHandler handler)
+	{
+		this(handler, DEFAULT_BUFFER_SIZE);
+	}
+
+
+	public WebSocketFrameDecoder(FrameHandler handler, int bufferSize)
+	{
+		this.handler = handler;
+		this.message = new byte[bufferSize];
+	}
+
+
+	public void setMaxMessageSize(int maxMessageSize)
+	{
+		this.maxMessageSize = maxMessageSize;
+	}
+
+
+	/**
+	 * Accepts compressed (RSV1) messages once permessage-deflate has been
+	 * negotiated and inflates them before they reach the handler.
+	 */
+	public void setPerMessageDeflate(PerMessageDeflate deflate)
+	{
+		this.deflate = deflate;
+	}
+
+
+	public void setMetrics(WebSocketMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Reads one chunk from the stream and decodes it.
+	 *
+	 * @return the number of bytes read, or -1 at end of stream
+	 */
+	public int read(InputStream input)
+		throws IOException, WebSocketException
+	{
+		if (readBuffer == null) {
+			readBuffer = new byte[message.length];
+		}
+		int count = input.read(readBuffer, 0, readBuffer.length);
+		if (count > 0) {
+			decode(readBuffer, 0, count);
+		}
+		return count;
+	}
+
+
+	public void decode(byte[] data, int offset, int length)
+		throws WebSocketException
+	{
+		int pos = offset;
+		int end = offset + length;
+
+		while (pos < end) {
+			if (!headerComplete) {
+				pos = readHeader(data, pos, end);
+				if (!headerComplete) {
+					return;
+				}
+				if (payloadLength == 0) {
+					if (WebSocketFrame.isControl(opcode)) {
+						completeFrame(control, 0, 0);
+					}
+					else {
+						completeFrame(message, 0, messageLength);
+					}
+					continue;
+				}
+			}
+
+			int available = end - pos;
+
+			if (payloadRead == 0 && available >= payloadLength && isDirect()) {
+				int count = (int) payloadLength;
+				if (masked) {
+					WebSocketFrame.mask(data, pos, count, maskKey, 0);
+				}
+				pos += count;
+				completeFrame(data, pos - count, count);
+				continue;
+			}
+
+			int count = (int) Math.min(payloadLength - payloadRead, available);
+			if (WebSocketFrame.isControl(opcode)) {
+				System.arraycopy(data, pos, control, (int) payloadRead, count);
+				if (masked) {
+					WebSocketFrame.mask(control, (int) payloadRead, count, maskKey, payloadRead);
+				}
+			}
+			else {
+				ensureMessageCapacity(messageLength + count);
+				System.arraycopy(data, pos, message, messageLength, count);
+				if (masked) {
+					WebSocketFrame.mask(message, messageLength, count, maskKey, payloadRead);
+				}
+				messageLength += count;
+			}
+			payloadRead += count;
+			pos += count;
+
+			if (payloadRead == payloadLength) {
+				if (WebSocketFrame.isControl(opcode)) {
+					completeFrame(control, 0, (int) payloadLength);
+				}
+				else {
+					completeFrame(message, 0, messageLength);
+				}
+			}
+		}
+	}
+
+
+	public void reset()
+	{
+		headerLength = 0;
+		headerComplete = false;
+		messageLength = 0;
+		messageOpcode = 0;
+		messageCompressed = false;
+	}
+
+
+	private int readHeader(byte[] data, int pos, int end)
+		throws WebSocketException
+	{
+		while (headerLength < 2 && pos < end) {
+			header[headerLength++] = data[pos++];
+		}
+		if (headerLength < 2) {
+			return pos;
+		}
+
+		int needed = 2;
+		int length = header[1] & 0x7f;
+		if (length == 126) {
+			needed += 2;
+		}
+		else if (length == 127) {
+			needed += 8;
+		}
+		if ((header[1] & 0x80) != 0) {
+			needed += 4;
+		}
+
+		int count = Math.min(needed - headerLength, end - pos);
+		System.arraycopy(data, pos, header, headerLength, count);
+		headerLength += count;
+		pos += count;
+		if (headerLength < needed) {
+			return pos;
+		}
+
+		parseHeader();
+		return pos;
+	}
+
+
+	private void parseHeader()
+		throws WebSocketException
+	{
+		int b0 = header[0] & 0xff;
+		int b1 = header[1] & 0xff;
+		int pos = 2;
+
+		fin = (b0 & WebSocketFrame.FLAG_FIN) != 0;
+		opcode = b0 & 0x0f;
+		masked = (b1 & 0x80) != 0;
+
+		boolean compressed = (b0 & WebSocketFrame.FLAG_RSV1) != 0;
+		if ((b0 & (WebSocketFrame.FLAG_RSV2 | WebSocketFrame.FLAG_RSV3)) != 0
+				|| (compressed && (deflate == null || !deflate.isEnabled()))) {
+			throw new WebSocketException("protocol error: reserved bits set without a negotiated extension");
+		}
+		if (compressed && (opcode != WebSocketFrame.OPCODE_TEXT && opcode != WebSocketFrame.OPCODE_BINARY)) {
+			throw new WebSocketException("protocol error: compressed bit set on a control or continuation frame");
+		}
+
+		payloadLength = b1 & 0x7f;
+		if (payloadLength == 126) {
+			payloadLength = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+			pos = 4;
+		}
+		else if (payloadLength == 127) {
+			payloadLength = 0;
+			for (int i = 2; i < 10; i++) {
+				payloadLength = (payloadLength << 8) | (header[i] & 0xff);
+			}
+			pos = 10;
+			if (payloadLength < 0) {
+				throw new WebSocketException("protocol error: invalid payload length");
+			}
+		}
+
+		if (masked) {
+			maskKey = ((header[pos] & 0xff) << 24) | ((header[pos + 1] & 0xff) << 16)
+					| ((header[pos + 2] & 0xff) << 8) | (header[pos + 3] & 0xff);
+		}
+
+		if (WebSocketFrame.isControl(opcode)) {
+			if (opcode != WebSocketFrame.OPCODE_CLOSE && opcode != WebSocketFrame.OPCODE_PING
+					&& opcode != WebSocketFrame.OPCODE_PONG) {
+				throw new WebSocketException("protocol error: unknown opcode " + opcode);
+			}
+			if (!fin || payloadLength > WebSocketFrame.MAX_CONTROL_PAYLOAD) {
+				throw new WebSocketException("protocol error: invalid control frame");
+			}
+		}
+		else if (opcode == WebSocketFrame.OPCODE_CONTINUATION) {
+			if (messageOpcode == 0) {
+				throw new WebSocketException("protocol error: continuation frame without a message");
+			}
+		}
+		else if (opcode == WebSocketFrame.OPCODE_TEXT || opcode == WebSocketFrame.OPCODE_BINARY) {
+			if (messageOpcode != 0) {
+				throw new WebSocketException("protocol error: new message before previous message completed");
+			}
+			messageOpcode = opcode;
+			messageCompressed = compressed;
+		}
+		else {
+			throw new WebSocketException("protocol error: unknown opcode " + opcode);
+		}
+
+		if (!WebSocketFrame.isControl(opcode) && messageLength + payloadLength > maxMessageSize) {
+			throw new WebSocketException("message exceeds maximum size of " + maxMessageSize + " bytes");
+		}
+
+		headerComplete = true;
+		payloadRead = 0;
+	}
+
+
+	/**
+	 * Whether the payload can be delivered straight from the input buffer
+	 * without going through the message buffer.
+	 */
+	private boolean isDirect()
+	{
+		return WebSocketFrame.isControl(opcode) || (fin && opcode != WebSocketFrame.OPCODE_CONTINUATION);
+	}
+
+
+	private void completeFrame(byte[] data, int offset, int length)
+		throws WebSocketException
+	{
+		if (metrics != null) {
+			metrics.onFrameReceived(opcode, headerLength + (int) payloadLength);
+		}
+		headerLength = 0;
+		headerComplete = false;
+
+		if (WebSocketFrame.isControl(opcode)) {
+			handler.onControlFrame(opcode, data, offset, length);
+			return;
+		}
+
+		if (!fin) {
+			if (data != message) {
+				ensureMessageCapacity(messageLength + length);
+				System.arraycopy(data, offset, message, messageLength, length);
+				messageLength += length;
+			}
+			return;
+		}
+
+		int type = messageOpcode;
+		boolean compressed = messageCompressed;
+		messageOpcode = 0;
+		messageLength = 0;
+		messageCompressed = false;
+
+		if (compressed) {
+			int inflatedLength = deflate.inflate(data, offset, length, maxMessageSize);
+			handler.onMessage(type, deflate.getInflated(), 0, inflatedLength);
+		}
+		else {
+			handler.onMessage(type, data, offset, length);
+		}
+	}
+
+
+	private void ensureMessageCapacity(int capacity)
+	{
+		if (capacity > message.length) {
+			byte[] grown = new byte[Math.max(message.length * 2, capacity)];
+			System.arraycopy(message, 0, grown, 0, messageLength);
+			message = grown;
+		}
+	}
+}
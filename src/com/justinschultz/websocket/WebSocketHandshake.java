@@ -1,91 +1,280 @@
 /*
  *  Copyright (C) 2011 Roderick Baier
- *  
+ *
  *  Licensed under the Apache License, Version 2.0 (the "License");
  *  you may not use this file except in compliance with the License.
  *  You may obtain a copy of the License at
- *  
+ *
  *  	http://www.apache.org/licenses/LICENSE-2.0
- *  
+ *
  *  Unless required by applicable law or agreed to in writing, software
  *  distributed under the License is distributed on an "AS IS" BASIS,
  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  *  See the License for the specific language governing permissions and
- *  limitations under the License. 
+ *  limitations under the License.
  */
 
 package com.justinschultz.websocket;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.HashMap;
 
 
 public class WebSocketHandshake
-{	
-	private String key1 = null;
-	private String key2 = null;
-	private byte[] key3 = null;
-	private byte[] expectedServerResponse = null;
-	
+{
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final SecureRandom random = new SecureRandom();
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final int INITIAL_RESPONSE_SIZE = 1024;
+	private static final int MAX_RESPONSE_SIZE = 16 * 1024;
+
+	private String key = null;
+	private String expectedAccept = null;
+
 	private URI url = null;
 	private String origin = null;
 	private String protocol = null;
-	
-	
+	private String extensions = null;
+	private String serverExtensions = null;
+
+
 	public WebSocketHandshake(URI url, String protocol)
 	{
 		this.url = url;
-		this.protocol = null;
-		generateKeys();
+		this.protocol = protocol;
+		generateKey();
 	}
-	
-	
+
+
 	public byte[] getHandshake()
 	{
-		String path = url.getPath();
+		String path = url.getRawPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		if (url.getRawQuery() != null) {
+			path += "?" + url.getRawQuery();
+		}
+
 		String host = url.getHost();
-		origin = "http://" + host;
-		
+		if (url.getPort() != -1) {
+			host += ":" + url.getPort();
+		}
+		origin = "http://" + url.getHost();
+
 		String handshake = "GET " + path + " HTTP/1.1\r\n" +
 				"Host: " + host + "\r\n" +
+				"Upgrade: websocket\r\n" +
 				"Connection: Upgrade\r\n" +
-				"Sec-WebSocket-Key2: " + key2 + "\r\n";
-		
+				"Sec-WebSocket-Key: " + key + "\r\n" +
+				"Sec-WebSocket-Version: 13\r\n";
+
 		if (protocol != null) {
 			handshake += "Sec-WebSocket-Protocol: " + protocol + "\r\n";
 		}
-		
-		handshake += "Upgrade: WebSocket\r\n" +
-				"Sec-WebSocket-Key1: " + key1 + "\r\n" +
-				"Origin: " + origin + "\r\n" +
+
+		if (extensions != null) {
+			handshake += "Sec-WebSocket-Extensions: " + extensions + "\r\n";
+		}
+
+		handshake += "Origin: " + origin + "\r\n" +
 				"\r\n";
-		
-		byte[] handshakeBytes = new byte[handshake.getBytes().length + 8];
-		System.arraycopy(handshake.getBytes(), 0, handshakeBytes, 0, handshake.getBytes().length);
-		System.arraycopy(key3, 0, handshakeBytes, handshake.getBytes().length, 8);		
-		
-		return handshakeBytes;
-	}
-	
-	
-	public void verifyServerResponse(byte[] bytes)
+
+		try {
+			return handshake.getBytes("US-ASCII");
+		}
+		catch (UnsupportedEncodingException uee) {
+			return handshake.getBytes();
+		}
+	}
+
+
+	/**
+	 * Sets the Sec-WebSocket-Extensions offered to the server.
+	 */
+	public void setExtensions(String extensions)
+	{
+		this.extensions = extensions;
+	}
+
+
+	/**
+	 * Returns the extensions the server accepted, or null.
+	 */
+	public String getServerExtensions()
+	{
+		return serverExtensions;
+	}
+
+
+	/**
+	 * Reads the server's upgrade response and verifies it. The response
+	 * is read in bulk, so any frames the server sent right behind it may
+	 * be read as well; they are returned for the frame decoder, or null
+	 * if there are none.
+	 */
+	public byte[] readServerHandshake(InputStream input)
+		throws IOException, WebSocketException
+	{
+		return readResponse(input, null, 0);
+	}
+
+
+	/**
+	 * Like {@link #readServerHandshake(InputStream)}, but gives up once the
+	 * whole response has taken longer than timeoutMillis, or never if it is
+	 * 0. The socket's read timeout is left at 0 afterwards.
+	 */
+	public byte[] readServerHandshake(Socket socket, int timeoutMillis)
+		throws IOException, WebSocketException
+	{
+		return readServerHandshake(socket.getInputStream(), socket, timeoutMillis);
+	}
+
+
+	/**
+	 * Reads the response from input, a stream that honours the socket's
+	 * read timeout, e.g. one that decrypts what is read from the socket.
+	 */
+	byte[] readServerHandshake(InputStream input, Socket socket, int timeoutMillis)
+		throws IOException, WebSocketException
+	{
+		try {
+			return readResponse(input, socket, timeoutMillis);
+		}
+		catch (SocketTimeoutException ste) {
+			throw new WebSocketException("connection failed: no handshake response within " + timeoutMillis + " ms", ste);
+		}
+		finally {
+			if (socket != null && !socket.isClosed()) {
+				socket.setSoTimeout(0);
+			}
+		}
+	}
+
+
+	private byte[] readResponse(InputStream input, Socket socket, int timeoutMillis)
+		throws IOException, WebSocketException
+	{
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		byte[] buffer = new byte[INITIAL_RESPONSE_SIZE];
+		int length = 0;
+		int headerEnd = -1;
+
+		while (headerEnd == -1) {
+			if (length == buffer.length) {
+				if (length == MAX_RESPONSE_SIZE) {
+					throw new WebSocketException("connection failed: handshake response exceeds " + MAX_RESPONSE_SIZE + " bytes");
+				}
+				buffer = Arrays.copyOf(buffer, Math.min(length * 2, MAX_RESPONSE_SIZE));
+			}
+
+			if (socket != null && timeoutMillis > 0) {
+				long remaining = (deadline - System.nanoTime()) / 1000000L;
+				if (remaining <= 0) {
+					throw new SocketTimeoutException();
+				}
+				socket.setSoTimeout((int) remaining);
+			}
+
+			int count = input.read(buffer, length, buffer.length - length);
+			if (count == -1) {
+				throw new WebSocketException("connection closed during handshake");
+			}
+			headerEnd = indexOfBlankLine(buffer, Math.max(0, length - 3), length + count);
+			length += count;
+		}
+
+		parseServerHandshake(buffer, headerEnd - 2);
+
+		if (headerEnd == length) {
+			return null;
+		}
+		return Arrays.copyOfRange(buffer, headerEnd, length);
+	}
+
+
+	/**
+	 * Returns the position just past the first CRLF CRLF that ends at or
+	 * after from, or -1.
+	 */
+	private static int indexOfBlankLine(byte[] buffer, int from, int to)
+	{
+		for (int i = from; i + 3 < to; i++) {
+			if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+				return i + 4;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Splits the status line and header fields, each ended by CRLF, without
+	 * building a string for anything but the parts that are kept.
+	 */
+	private void parseServerHandshake(byte[] buffer, int end)
 		throws WebSocketException
 	{
-		if (!Arrays.equals(bytes, expectedServerResponse)) {
-			throw new WebSocketException("not a WebSocket Server");
+		int lineEnd = indexOfLineEnd(buffer, 0, end);
+		verifyServerStatusLine(new String(buffer, 0, lineEnd, ASCII).trim());
+
+		HashMap<String, String> headers = new HashMap<String, String>();
+		int pos = lineEnd + 2;
+		while (pos < end) {
+			lineEnd = indexOfLineEnd(buffer, pos, end);
+			int colon = pos;
+			while (colon < lineEnd && buffer[colon] != ':') {
+				colon++;
+			}
+			if (colon < lineEnd) {
+				String name = new String(buffer, pos, colon - pos, ASCII).trim().toLowerCase();
+				headers.put(name, new String(buffer, colon + 1, lineEnd - colon - 1, ASCII).trim());
+			}
+			pos = lineEnd + 2;
 		}
+		verifyServerHandshakeHeaders(headers);
 	}
-	
-	
+
+
+	private static int indexOfLineEnd(byte[] buffer, int from, int end)
+	{
+		for (int i = from; i + 1 < end; i++) {
+			if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+				return i;
+			}
+		}
+		return end;
+	}
+
+
 	public void verifyServerStatusLine(String statusLine)
 		throws WebSocketException
 	{
-		int statusCode = Integer.valueOf(statusLine.substring(9, 12));
-		
+		if (statusLine.length() < 12) {
+			throw new WebSocketException("connection failed: invalid status line " + statusLine);
+		}
+
+		int statusCode;
+		try {
+			statusCode = Integer.parseInt(statusLine.substring(9, 12));
+		}
+		catch (NumberFormatException nfe) {
+			throw new WebSocketException("connection failed: invalid status line " + statusLine);
+		}
+
 		if (statusCode == 407) {
 			throw new WebSocketException("connection failed: proxy authentication not supported");
 		}
@@ -96,135 +285,79 @@ public class WebSocketHandshake
 			throw new WebSocketException("connection failed: unknown status code " + statusCode);
 		}
 	}
-	
-	
+
+
+	/**
+	 * Header names are expected in lower case.
+	 */
 	public void verifyServerHandshakeHeaders(HashMap<String, String> headers)
 		throws WebSocketException
 	{
-		if (!headers.get("Upgrade").equals("WebSocket")) {
+		String upgrade = headers.get("upgrade");
+		String connection = headers.get("connection");
+		String accept = headers.get("sec-websocket-accept");
+
+		if (upgrade == null || !upgrade.equalsIgnoreCase("websocket")) {
 			throw new WebSocketException("connection failed: missing header field in server handshake: Upgrade");
 		}
-		else if (!headers.get("Connection").equals("Upgrade")) {
+		else if (connection == null || connection.toLowerCase().indexOf("upgrade") == -1) {
 			throw new WebSocketException("connection failed: missing header field in server handshake: Connection");
 		}
-		else if (!headers.get("Sec-WebSocket-Origin").equals(origin)) {
-			throw new WebSocketException("connection failed: missing header field in server handshake: Sec-WebSocket-Origin");
-		}
-		
-		// TODO see 4.1. step 41
-//		else if (!headers.get("Sec-WebSocket-Location").equals(url.toASCIIString())) {
-//			System.out.println("location: " + url.toASCIIString());
-//		}
-//		else if protocol
-	}
-		
-	
-	private void generateKeys()
-	{
-		int spaces1 = rand(1,12);
-		int spaces2 = rand(1,12);
-		
-		int max1 = Integer.MAX_VALUE / spaces1;
-		int max2 = Integer.MAX_VALUE / spaces2;
-		
-		int number1 = rand(0, max1);
-		int number2 = rand(0, max2);
-		
-		int product1 = number1 * spaces1;
-		int product2 = number2 * spaces2;
-		
-		key1 = Integer.toString(product1);
-		key2 = Integer.toString(product2);
-		
-		key1 = insertRandomCharacters(key1);
-		key2 = insertRandomCharacters(key2);
-		
-		key1 = insertSpaces(key1, spaces1);
-		key2 = insertSpaces(key2, spaces2);
-		
-		key3 = createRandomBytes();
-		
-		ByteBuffer buffer = ByteBuffer.allocate(4);
-		buffer.putInt(number1);
-		byte[] number1Array = buffer.array();
-		buffer = ByteBuffer.allocate(4);
-		buffer.putInt(number2);
-		byte[] number2Array = buffer.array();
-		
-		byte[] challenge = new byte[16];				
-		System.arraycopy(number1Array, 0, challenge, 0, 4);
-		System.arraycopy(number2Array, 0, challenge, 4, 4);
-		System.arraycopy(key3, 0, challenge, 8, 8);
-
-		expectedServerResponse = md5(challenge);
-	}
-	
-	
-	private String insertRandomCharacters(String key)
-	{
-		int count = rand(1, 12);
-		
-		char[] randomChars = new char[count];
-		int randCount = 0;
-		while (randCount < count) {
-			int rand = (int) (Math.random() * 0x7e + 0x21);
-			if (((0x21 < rand) && (rand < 0x2f)) || ((0x3a < rand) && (rand < 0x7e))) {
-				randomChars[randCount] = (char) rand;
-				randCount += 1;
-			}
-		}
-		
-		for (int i = 0; i < count; i++) {
-			int split = rand(0, key.length());
-			String part1 = key.substring(0, split);
-			String part2 = key.substring(split);
-			key = part1 + randomChars[i] + part2;
-		}
-		
-		return key;
-	}
-	
-	
-	private String insertSpaces(String key, int spaces)
-	{
-		for (int i = 0; i < spaces; i++) {
-			int split = rand(1, key.length()-1);
-			String part1 = key.substring(0, split);
-			String part2 = key.substring(split);
-			key = part1 + " " + part2;
+		else if (accept == null || !accept.equals(expectedAccept)) {
+			throw new WebSocketException("connection failed: invalid Sec-WebSocket-Accept in server handshake");
 		}
-		
-		return key;
-	}
-	
-	
-	private byte[] createRandomBytes()
-	{
-		byte[] bytes = new byte[8];
-		
-		for (int i = 0; i < 8; i++) {
-			bytes[i] = (byte) rand(0, 255);
+
+		serverExtensions = headers.get("sec-websocket-extensions");
+		if (serverExtensions != null && extensions == null) {
+			throw new WebSocketException("connection failed: server selected an extension that was not offered");
 		}
-		
-		return bytes;
 	}
-	
-	
-	private byte[] md5(byte[] bytes)
+
+
+	public static String acceptKey(String key)
 	{
 		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			return md.digest(bytes);
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return base64(sha1.digest((key + ACCEPT_GUID).getBytes("US-ASCII")));
 		}
 		catch (NoSuchAlgorithmException e) {
 			return null;
 		}
+		catch (UnsupportedEncodingException e) {
+			return null;
+		}
 	}
-	
-	
-	private int rand(int min, int max)
+
+
+	private void generateKey()
+	{
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+
+		key = base64(nonce);
+		expectedAccept = acceptKey(key);
+	}
+
+
+	private static String base64(byte[] bytes)
 	{
-		int rand = (int) (Math.random() * max + min);
-		return rand;
+		StringBuilder encoded = new StringBuilder(((bytes.length + 2) / 3) * 4);
+
+		for (int i = 0; i < bytes.length; i += 3) {
+			int b = (bytes[i] & 0xff) << 16;
+			if (i + 1 < bytes.length) {
+				b |= (bytes[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < bytes.length) {
+				b |= bytes[i + 2] & 0xff;
+			}
+
+			encoded.append(BASE64[(b >>> 18) & 0x3f]);
+			encoded.append(BASE64[(b >>> 12) & 0x3f]);
+			encoded.append(i + 1 < bytes.length ? BASE64[(b >>> 6) & 0x3f] : '=');
+			encoded.append(i + 2 < bytes.length ? BASE64[b & 0x3f] : '=');
+		}
+
+		return encoded.toString();
 	}
 }
@@ -16,31 +16,119 @@
 
 package com.justinschultz.websocket;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 
 public class WebSocketMessage
 {
-	private Byte[] message;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] data;
+	private final int offset;
+	private final int length;
+
+	private String text = null;
+	private WebSocketBufferPool pool = null;
+
+
+	public WebSocketMessage(final byte[] data)
+	{
+		this(data, 0, data.length);
+	}
+
+
+	public WebSocketMessage(final byte[] data, int offset, int length)
+	{
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+
+	/**
+	 * A message whose data was borrowed from the pool and goes back to it
+	 * on {@link #release()}.
+	 */
+	WebSocketMessage(final byte[] data, int offset, int length, WebSocketBufferPool pool)
+	{
+		this(data, offset, length);
+		this.pool = pool;
+	}
 
 
 	public WebSocketMessage(final Byte[] message)
 	{
-		this.message = message;
+		this.data = new byte[message.length];
+		this.offset = 0;
+		this.length = message.length;
+		for (int i = 0; i < message.length; i++) {
+			this.data[i] = message[i];
+		}
+	}
+
+
+	public WebSocketMessage(final String text)
+	{
+		this(text.getBytes(UTF8));
+		this.text = text;
+	}
+
+
+	/**
+	 * Returns the backing array without copying; the payload starts at
+	 * {@link #getOffset()} and is {@link #getLength()} bytes long.
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+
+	public int getOffset()
+	{
+		return offset;
+	}
+
+
+	public int getLength()
+	{
+		return length;
+	}
+
+
+	public ByteBuffer getByteBuffer()
+	{
+		return ByteBuffer.wrap(data, offset, length).slice().asReadOnlyBuffer();
 	}
 
 
+	/**
+	 * Decodes the payload as UTF-8 on first use and caches the result.
+	 */
 	public String getText()
 	{
-		byte[] message = new byte[this.message.length];
-		for (int i = 0; i < this.message.length; i++) {
-			message[i] = this.message[i];
+		String text = this.text;
+		if (text == null) {
+			text = new String(data, offset, length, UTF8);
+			this.text = text;
 		}
-		try {
-			return new String(message, "UTF-8");
-		}
-		catch (UnsupportedEncodingException uee) {
-			return null;
+		return text;
+	}
+
+
+	/**
+	 * Hands a pooled buffer back for reuse once the message has been
+	 * handled. The data must not be read afterwards, though text already
+	 * returned by getText() stays valid. Does nothing for messages that
+	 * are not pooled, so releasing is always optional.
+	 */
+	public void release()
+	{
+		WebSocketBufferPool pool = this.pool;
+		if (pool != null) {
+			this.pool = null;
+			pool.release(data);
 		}
 	}
 }
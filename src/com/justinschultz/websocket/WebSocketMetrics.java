@@ -0,0 +1,42 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+
+/**
+ * Receives counts from a connection as it runs. Methods are called on the
+ * receiving and writing threads, so implementations must be thread-safe
+ * and should not allocate or block.
+ */
+public interface WebSocketMetrics
+{
+	/**
+	 * Called for every complete frame read, with its size on the wire.
+	 */
+	public void onFrameReceived(int opcode, int frameLength);
+
+	/**
+	 * Called for every frame written, with its size on the wire.
+	 */
+	public void onFrameSent(int opcode, int frameLength);
+
+	/**
+	 * Called whenever frames are queued for sending or drained from the
+	 * queue, with the number of frames still waiting.
+	 */
+	public void onSendQueueDepth(int depth);
+}
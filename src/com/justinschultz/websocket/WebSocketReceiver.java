@@ -18,50 +18,95 @@ package com.justinschultz.websocket;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public class WebSocketReceiver
-		extends Thread
+		implements Runnable
 {
 	private InputStream input = null;
 	private WebSocketConnection websocket = null;
 	private WebSocketEventHandler eventHandler = null;
+	private byte[] leftover = null;
 
 	private volatile boolean stop = false;
 
 	public WebSocketReceiver(InputStream input, WebSocketConnection websocket)
+	{
+		this(input, websocket, null);
+	}
+
+
+	/**
+	 * @param leftover
+	 *            bytes read past the end of the handshake response, which
+	 *            are decoded before anything else is read
+	 */
+	public WebSocketReceiver(InputStream input, WebSocketConnection websocket, byte[] leftover)
 	{
 		this.input = input;
 		this.websocket = websocket;
 		this.eventHandler = websocket.getEventHandler();
+		this.leftover = leftover;
 	}
 
 	public void run()
 	{
-		boolean frameStart = false;
-		List<Byte> messageBytes = new ArrayList<Byte>();
-
-		while (!stop) {
-			try {
-				int b = input.read();
-				if (b == 0x00) {
-					frameStart = true;
-				}
-				else if (b == 0xff && frameStart == true) {
-					frameStart = false;
-					Byte[] message = messageBytes.toArray(new Byte[messageBytes.size()]);
+		final WebSocketBufferPool pool = websocket.getBufferPool();
+		WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(new WebSocketFrameDecoder.FrameHandler() {
+			public void onMessage(int opcode, byte[] data, int offset, int length)
+			{
+				if (pool == null) {
+					byte[] message = Arrays.copyOfRange(data, offset, offset + length);
 					eventHandler.onMessage(new WebSocketMessage(message));
-					messageBytes.clear();
+					return;
+				}
+				byte[] message = pool.acquire(length);
+				System.arraycopy(data, offset, message, 0, length);
+				eventHandler.onMessage(new WebSocketMessage(message, 0, length, pool));
+			}
+
+
+			public void onControlFrame(int opcode, byte[] data, int offset, int length)
+				throws WebSocketException
+			{
+				if (opcode == WebSocketFrame.OPCODE_PING) {
+					websocket.sendPong(Arrays.copyOfRange(data, offset, offset + length));
 				}
-				else if (frameStart == true){
-					messageBytes.add((byte)b);
+				else if (opcode == WebSocketFrame.OPCODE_CLOSE) {
+					stopit();
+					websocket.handleCloseFrame();
 				}
-				else if (b == -1) {
+			}
+		});
+		decoder.setPerMessageDeflate(websocket.getPerMessageDeflate());
+		decoder.setMetrics(websocket.getMetrics());
+
+		if (leftover != null) {
+			try {
+				decoder.decode(leftover, 0, leftover.length);
+			}
+			catch (WebSocketException wse) {
+				wse.printStackTrace();
+				handleError();
+			}
+			leftover = null;
+		}
+
+		while (!stop) {
+			try {
+				if (decoder.read(input) == -1) {
 					handleError();
 				}
 			}
+			catch (WebSocketException wse) {
+				wse.printStackTrace();
+				handleError();
+			}
 			catch (IOException ioe) {
+				if (stop) {
+					// the socket was closed by WebSocketConnection.close()
+					break;
+				}
 				ioe.printStackTrace();
 				handleError();
 			}
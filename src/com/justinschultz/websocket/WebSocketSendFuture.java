@@ -0,0 +1,156 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Completes once a frame has been written to the socket, or fails if it
+ * was dropped or the connection went away first.
+ */
+public class WebSocketSendFuture
+		implements Future<Void>
+{
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile Throwable cause = null;
+	private List<Runnable> listeners = null;
+
+
+	public static WebSocketSendFuture completed()
+	{
+		WebSocketSendFuture future = new WebSocketSendFuture();
+		future.complete();
+		return future;
+	}
+
+
+	void complete()
+	{
+		finish(null);
+	}
+
+
+	void fail(Throwable cause)
+	{
+		finish(cause);
+	}
+
+
+	private void finish(Throwable cause)
+	{
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (done.getCount() == 0) {
+				return;
+			}
+			this.cause = cause;
+			done.countDown();
+			listeners = this.listeners;
+			this.listeners = null;
+		}
+
+		if (listeners != null) {
+			for (Runnable listener : listeners) {
+				listener.run();
+			}
+		}
+	}
+
+
+	/**
+	 * Runs the listener once the future is done, immediately if it already
+	 * is. Listeners run on the thread that completes the send.
+	 */
+	public void addListener(Runnable listener)
+	{
+		synchronized (this) {
+			if (done.getCount() != 0) {
+				if (listeners == null) {
+					listeners = new ArrayList<Runnable>(2);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+
+	public boolean isSuccess()
+	{
+		return isDone() && cause == null;
+	}
+
+
+	public Throwable getCause()
+	{
+		return cause;
+	}
+
+
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		return false;
+	}
+
+
+	public boolean isCancelled()
+	{
+		return false;
+	}
+
+
+	public boolean isDone()
+	{
+		return done.getCount() == 0;
+	}
+
+
+	public Void get()
+		throws InterruptedException, ExecutionException
+	{
+		done.await();
+		return result();
+	}
+
+
+	public Void get(long timeout, TimeUnit unit)
+		throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+
+	private Void result()
+		throws ExecutionException
+	{
+		if (cause != null) {
+			throw new ExecutionException(cause);
+		}
+		return null;
+	}
+}
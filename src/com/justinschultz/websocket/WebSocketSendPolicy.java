@@ -0,0 +1,33 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+
+/**
+ * What a send does when the outbound queue is full.
+ */
+public enum WebSocketSendPolicy
+{
+	/** Wait until the writer has made room. */
+	BLOCK,
+
+	/** Throw a WebSocketException from the send call. */
+	FAIL,
+
+	/** Discard the frame and fail its future. */
+	DROP
+}
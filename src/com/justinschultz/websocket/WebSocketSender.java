@@ -0,0 +1,285 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Drains a bounded queue of encoded frames onto the socket. Frames that
+ * queued up while the previous write was in progress are copied into one
+ * buffer and written together, so a burst of sends costs one write call.
+ *
+ * On close the sender first stops taking frames and writes out what is
+ * queued, so that the close frame is the last one on the wire.
+ */
+class WebSocketSender
+		implements Runnable
+{
+	private static final int MAX_BATCH = 64;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final long POLL_MILLIS = 100;
+
+	private final BlockingQueue<PendingFrame> queue;
+	private final WebSocketSendPolicy policy;
+	private final OutputStream output;
+	private final Object writeLock;
+	private final WebSocketConnection websocket;
+	private final WebSocketMetrics metrics;
+	private final WebSocketBufferPool pool;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private volatile boolean stop = false;
+	private volatile boolean closing = false;
+	private volatile Thread runner = null;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+
+	WebSocketSender(int capacity, WebSocketSendPolicy policy, OutputStream output, Object writeLock, WebSocketConnection websocket)
+	{
+		this.queue = new ArrayBlockingQueue<PendingFrame>(capacity);
+		this.policy = policy;
+		this.output = output;
+		this.writeLock = writeLock;
+		this.websocket = websocket;
+		this.metrics = websocket.getMetrics();
+		this.pool = websocket.getBufferPool();
+	}
+
+
+	public WebSocketSendFuture enqueue(byte[] frame)
+		throws WebSocketException
+	{
+		if (stop || closing) {
+			throw new WebSocketException("error while sending text data: not connected");
+		}
+
+		PendingFrame pending = new PendingFrame(frame);
+
+		if (policy == WebSocketSendPolicy.BLOCK) {
+			try {
+				while (!queue.offer(pending, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					if (stop || closing) {
+						throw new WebSocketException("error while sending text data: not connected");
+					}
+				}
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new WebSocketException("interrupted while waiting for send queue", ie);
+			}
+		}
+		else if (!queue.offer(pending)) {
+			WebSocketException full = new WebSocketException("error while sending text data: send queue full");
+			if (policy == WebSocketSendPolicy.FAIL) {
+				throw full;
+			}
+			pending.future.fail(full);
+			release(pending);
+		}
+
+		if ((stop || closing) && queue.remove(pending)) {
+			pending.future.fail(new WebSocketException("connection closed before frame was sent"));
+			release(pending);
+		}
+		if (metrics != null) {
+			metrics.onSendQueueDepth(queue.size());
+		}
+
+		return pending.future;
+	}
+
+
+	public int getQueueDepth()
+	{
+		return queue.size();
+	}
+
+
+	/**
+	 * Stops the sender at once. Called with the write lock held, so no
+	 * batch is written after whatever the caller writes next.
+	 */
+	public void stopit()
+	{
+		stop = true;
+	}
+
+
+	/**
+	 * Refuses further frames and waits up to timeoutMillis for the queued
+	 * ones to be written.
+	 */
+	public void shutdown(long timeoutMillis)
+	{
+		closing = true;
+		if (stop || Thread.currentThread() == runner) {
+			return;
+		}
+		try {
+			finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	public void run()
+	{
+		runner = Thread.currentThread();
+		try {
+			send();
+		}
+		finally {
+			runner = null;
+			finished.countDown();
+		}
+	}
+
+
+	private void send()
+	{
+		List<PendingFrame> batch = new ArrayList<PendingFrame>(MAX_BATCH);
+
+		while (!stop) {
+			try {
+				PendingFrame first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					if (closing) {
+						break;
+					}
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, MAX_BATCH - 1);
+
+				synchronized (writeLock) {
+					if (stop) {
+						// the close frame is already out
+						break;
+					}
+					write(batch);
+				}
+				for (PendingFrame pending : batch) {
+					pending.future.complete();
+					if (metrics != null) {
+						metrics.onFrameSent(pending.frame[0] & 0x0f, pending.length);
+					}
+				}
+				release(batch);
+				if (metrics != null) {
+					metrics.onSendQueueDepth(queue.size());
+				}
+			}
+			catch (InterruptedException ie) {
+				stop = true;
+			}
+			catch (IOException ioe) {
+				fail(batch, ioe);
+				release(batch);
+				batch.clear();
+				if (stop) {
+					// the socket was closed by WebSocketConnection.close()
+					break;
+				}
+				ioe.printStackTrace();
+				stop = true;
+				websocket.handleReceiverError();
+			}
+			batch.clear();
+		}
+
+		queue.drainTo(batch);
+		fail(batch, new WebSocketException("connection closed before frame was sent"));
+		release(batch);
+	}
+
+
+	private void write(List<PendingFrame> batch)
+		throws IOException
+	{
+		int pos = 0;
+
+		for (PendingFrame pending : batch) {
+			byte[] frame = pending.frame;
+			int length = pending.length;
+			if (pos + length > buffer.length && pos > 0) {
+				output.write(buffer, 0, pos);
+				pos = 0;
+			}
+			if (length >= buffer.length) {
+				output.write(frame, 0, length);
+			}
+			else {
+				System.arraycopy(frame, 0, buffer, pos, length);
+				pos += length;
+			}
+		}
+
+		if (pos > 0) {
+			output.write(buffer, 0, pos);
+		}
+		output.flush();
+	}
+
+
+	private void release(List<PendingFrame> batch)
+	{
+		for (PendingFrame pending : batch) {
+			release(pending);
+		}
+	}
+
+
+	private void release(PendingFrame pending)
+	{
+		if (pool != null) {
+			pool.release(pending.frame);
+		}
+	}
+
+
+	private void fail(List<PendingFrame> batch, Throwable cause)
+	{
+		for (PendingFrame pending : batch) {
+			pending.future.fail(cause);
+		}
+	}
+
+
+	private static class PendingFrame
+	{
+		final byte[] frame;
+		final int length;
+		final WebSocketSendFuture future = new WebSocketSendFuture();
+
+
+		PendingFrame(byte[] frame)
+		{
+			this.frame = frame;
+			this.length = WebSocketFrame.frameLength(frame);
+		}
+	}
+}
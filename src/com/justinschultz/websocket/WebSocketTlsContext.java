@@ -0,0 +1,144 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+
+/**
+ * The SSLContext that wss connections are created from. Connections that
+ * share one keep their TLS sessions in one client session cache, keyed by
+ * host and port, so a reconnect resumes the session with an abbreviated
+ * handshake instead of a full one.
+ */
+public class WebSocketTlsContext
+{
+	private static WebSocketTlsContext defaultContext = null;
+
+	private final SSLContext context;
+
+
+	public WebSocketTlsContext(SSLContext context)
+	{
+		this.context = context;
+	}
+
+
+	/**
+	 * The context used unless a connection is given another one, backed by
+	 * the JVM's default SSLContext.
+	 */
+	public static synchronized WebSocketTlsContext getDefault()
+		throws WebSocketException
+	{
+		if (defaultContext == null) {
+			try {
+				defaultContext = new WebSocketTlsContext(SSLContext.getDefault());
+			}
+			catch (NoSuchAlgorithmException nsae) {
+				throw new WebSocketException("no default SSLContext available", nsae);
+			}
+		}
+		return defaultContext;
+	}
+
+
+	/**
+	 * Creates a context that trusts the certificates in the given key
+	 * store, e.g. the self-signed certificate of a local test server.
+	 */
+	public static WebSocketTlsContext trusting(KeyStore trustStore)
+		throws WebSocketException
+	{
+		try {
+			TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagers.init(trustStore);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, trustManagers.getTrustManagers(), null);
+			return new WebSocketTlsContext(context);
+		}
+		catch (GeneralSecurityException gse) {
+			throw new WebSocketException("error while creating SSLContext", gse);
+		}
+	}
+
+
+	/**
+	 * Sizes the client session cache; 0 means no limit for either value.
+	 *
+	 * @param timeoutSeconds
+	 *            how long a cached session may be resumed
+	 */
+	public void setSessionCache(int size, int timeoutSeconds)
+	{
+		SSLSessionContext sessions = context.getClientSessionContext();
+		sessions.setSessionCacheSize(size);
+		sessions.setSessionTimeout(timeoutSeconds);
+	}
+
+
+	public SSLContext getSSLContext()
+	{
+		return context;
+	}
+
+
+	/**
+	 * Layers TLS over an already connected socket. The host and port are
+	 * what the session cache is keyed by, and the server's certificate
+	 * must be issued for the host.
+	 */
+	SSLSocket createSocket(Socket socket, String host, int port)
+		throws IOException
+	{
+		SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+		sslSocket.setUseClientMode(true);
+		sslSocket.setSSLParameters(verifyHost(sslSocket.getSSLParameters()));
+		return sslSocket;
+	}
+
+
+	SSLEngine createEngine(String host, int port)
+	{
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		engine.setSSLParameters(verifyHost(engine.getSSLParameters()));
+		return engine;
+	}
+
+
+	/**
+	 * The trust manager only checks the chain; matching the certificate
+	 * against the host is left to the endpoint identification algorithm.
+	 */
+	private static SSLParameters verifyHost(SSLParameters parameters)
+	{
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		return parameters;
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+
+/**
+ * TLS for a WebSocketChannelConnection, done with an SSLEngine so the
+ * connection can stay on a shared event loop. The TLS handshake and the
+ * upgrade request run while the channel is still blocking; afterwards
+ * read() and wrap() never block.
+ */
+class WebSocketTlsEngine
+{
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine engine;
+	private final SocketChannel channel;
+
+	// netIn and appIn are kept ready for writing between calls
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+	private boolean inboundClosed = false;
+
+
+	WebSocketTlsEngine(SSLEngine engine, SocketChannel channel)
+	{
+		this.engine = engine;
+		this.channel = channel;
+		netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+	}
+
+
+	/**
+	 * Runs the TLS handshake on the blocking channel. Reads go through the
+	 * socket adaptor, so the socket's read timeout applies to each.
+	 */
+	void handshake()
+		throws IOException
+	{
+		engine.beginHandshake();
+		HandshakeStatus status = engine.getHandshakeStatus();
+
+		while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+			if (status == HandshakeStatus.NEED_TASK) {
+				runTasks();
+				status = engine.getHandshakeStatus();
+			}
+			else if (status == HandshakeStatus.NEED_WRAP) {
+				status = writeFully(EMPTY);
+			}
+			else {
+				SSLEngineResult result = unwrap();
+				if (result.getStatus() == Status.CLOSED) {
+					throw new SSLException("connection closed during TLS handshake");
+				}
+				if (result.getStatus() == Status.BUFFER_UNDERFLOW && readBlocking() == -1) {
+					throw new EOFException("connection closed during TLS handshake");
+				}
+				status = result.getHandshakeStatus();
+			}
+		}
+	}
+
+
+	/**
+	 * Encrypts and writes the data on the blocking channel.
+	 */
+	void writeBlocking(byte[] data)
+		throws IOException
+	{
+		writeFully(ByteBuffer.wrap(data));
+	}
+
+
+	/**
+	 * A stream of decrypted bytes for reading the upgrade response while
+	 * the channel is blocking.
+	 */
+	InputStream getInputStream()
+	{
+		return new InputStream() {
+			@Override
+			public int read()
+				throws IOException
+			{
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+
+			@Override
+			public int read(byte[] b, int off, int len)
+				throws IOException
+			{
+				while (appIn.position() == 0) {
+					if (inboundClosed) {
+						return -1;
+					}
+					SSLEngineResult result = unwrap();
+					if (needsWrap()) {
+						writeFully(EMPTY);
+					}
+					else if (result.getStatus() == Status.BUFFER_UNDERFLOW && readBlocking() == -1) {
+						return -1;
+					}
+				}
+				return takeApplicationData(b, off, len);
+			}
+		};
+	}
+
+
+	/**
+	 * Returns the application data that was decrypted or received ahead of
+	 * the upgrade response, without reading from the channel, or null.
+	 */
+	byte[] takeBuffered()
+		throws IOException
+	{
+		while (!inboundClosed) {
+			SSLEngineResult result = unwrap();
+			if (result.getStatus() != Status.OK || result.bytesConsumed() == 0) {
+				break;
+			}
+		}
+		if (appIn.position() == 0) {
+			return null;
+		}
+		byte[] data = new byte[appIn.position()];
+		takeApplicationData(data, 0, data.length);
+		return data;
+	}
+
+
+	/**
+	 * Reads what the non-blocking channel has and decrypts it into dst.
+	 *
+	 * @return the number of bytes decrypted, or -1 at the end of the stream
+	 */
+	int read(ByteBuffer dst)
+		throws IOException
+	{
+		int count = channel.read(netIn);
+		int start = dst.position();
+
+		while (!inboundClosed && netIn.position() > 0) {
+			if (dst.remaining() < engine.getSession().getApplicationBufferSize()) {
+				break;
+			}
+			netIn.flip();
+			SSLEngineResult result = engine.unwrap(netIn, dst);
+			netIn.compact();
+			if (result.getStatus() == Status.CLOSED) {
+				inboundClosed = true;
+			}
+			else if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+				growNetIn();
+				break;
+			}
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+				runTasks();
+			}
+			if (needsWrap() || result.bytesConsumed() == 0) {
+				break;
+			}
+		}
+
+		int produced = dst.position() - start;
+		if (produced == 0 && (count == -1 || inboundClosed)) {
+			return -1;
+		}
+		return produced;
+	}
+
+
+	/**
+	 * True when the engine has something to send on its own, such as a
+	 * key update response; see {@link #wrap(byte[], int, int)}.
+	 */
+	boolean needsWrap()
+	{
+		return engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+	}
+
+
+	/**
+	 * Encrypts the data into a buffer that stays valid until the next call
+	 * and is returned ready for the channel.
+	 */
+	ByteBuffer wrap(byte[] data, int offset, int length)
+		throws SSLException
+	{
+		ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+		netOut.clear();
+		do {
+			SSLEngineResult result = engine.wrap(src, netOut);
+			if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+				ByteBuffer grown = ByteBuffer.allocate(netOut.capacity() * 2);
+				netOut.flip();
+				grown.put(netOut);
+				netOut = grown;
+			}
+			else if (result.getStatus() == Status.CLOSED) {
+				throw new SSLException("TLS connection already closed");
+			}
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+				runTasks();
+			}
+		} while (src.hasRemaining());
+		netOut.flip();
+		return netOut;
+	}
+
+
+	/**
+	 * Returns the close_notify alert, ready for the channel.
+	 */
+	ByteBuffer closeOutbound()
+		throws SSLException
+	{
+		engine.closeOutbound();
+		netOut.clear();
+		while (!engine.isOutboundDone()) {
+			SSLEngineResult result = engine.wrap(EMPTY, netOut);
+			if (result.getStatus() != Status.OK) {
+				break;
+			}
+		}
+		netOut.flip();
+		return netOut;
+	}
+
+
+	private HandshakeStatus writeFully(ByteBuffer src)
+		throws IOException
+	{
+		HandshakeStatus status;
+		do {
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(src, netOut);
+			if (result.getStatus() == Status.CLOSED) {
+				throw new SSLException("TLS connection closed");
+			}
+			netOut.flip();
+			while (netOut.hasRemaining()) {
+				channel.write(netOut);
+			}
+			status = result.getHandshakeStatus();
+			if (status == HandshakeStatus.NEED_TASK) {
+				runTasks();
+				status = engine.getHandshakeStatus();
+			}
+		} while (src.hasRemaining() || (src == EMPTY && status == HandshakeStatus.NEED_WRAP));
+		return status;
+	}
+
+
+	private SSLEngineResult unwrap()
+		throws SSLException
+	{
+		netIn.flip();
+		SSLEngineResult result = engine.unwrap(netIn, appIn);
+		netIn.compact();
+
+		if (result.getStatus() == Status.CLOSED) {
+			inboundClosed = true;
+		}
+		else if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+			growNetIn();
+		}
+		else if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+			ByteBuffer grown = ByteBuffer.allocate(appIn.capacity() + engine.getSession().getApplicationBufferSize());
+			appIn.flip();
+			grown.put(appIn);
+			appIn = grown;
+		}
+		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+			runTasks();
+		}
+		return result;
+	}
+
+
+	private int readBlocking()
+		throws IOException
+	{
+		InputStream input = channel.socket().getInputStream();
+		int count = input.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+		if (count > 0) {
+			netIn.position(netIn.position() + count);
+		}
+		return count;
+	}
+
+
+	private void growNetIn()
+	{
+		int packetSize = engine.getSession().getPacketBufferSize();
+		if (netIn.capacity() < packetSize) {
+			ByteBuffer grown = ByteBuffer.allocate(packetSize);
+			netIn.flip();
+			grown.put(netIn);
+			netIn = grown;
+		}
+	}
+
+
+	private int takeApplicationData(byte[] b, int off, int len)
+	{
+		appIn.flip();
+		int count = Math.min(len, appIn.remaining());
+		appIn.get(b, off, count);
+		appIn.compact();
+		return count;
+	}
+
+
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.justinschultz.pusherserver.AuthTestServer;
+import com.justinschultz.pusherserver.PusherTestServer;
+
+public class BatchingChannelAuthorizerTest {
+	private static final int CHANNELS = 10;
+
+	private PusherTestServer server;
+	private AuthTestServer auth;
+	private Pusher pusher;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PusherTestServer(0);
+		server.start();
+		auth = new AuthTestServer(0, "key", "secret");
+		auth.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (pusher != null) {
+			pusher.disconnect();
+		}
+		auth.stop();
+		server.stop();
+	}
+
+	@Test(timeout = 20000)
+	public void subscribesAfterConnectShareOneRequest() throws Exception {
+		pusher = newPusher(new BatchingChannelAuthorizer(auth.getURL()));
+		for (int i = 0; i < CHANNELS; i++) {
+			pusher.subscribe("private-" + i);
+		}
+		pusher.connect();
+		for (int i = 0; i < CHANNELS; i++) {
+			awaitSubscribers("private-" + i);
+		}
+
+		assertEquals(1, auth.getRequestCount());
+		assertEquals(CHANNELS, auth.getChannelCount());
+	}
+
+	@Test(timeout = 20000)
+	public void fullBatchIsPostedAtOnce() throws Exception {
+		pusher = newPusher(new BatchingChannelAuthorizer(auth.getURL(), 4));
+		for (int i = 0; i < CHANNELS; i++) {
+			pusher.subscribe("private-" + i);
+		}
+		pusher.connect();
+		for (int i = 0; i < CHANNELS; i++) {
+			awaitSubscribers("private-" + i);
+		}
+
+		assertEquals(3, auth.getRequestCount());
+		assertEquals(CHANNELS, auth.getChannelCount());
+	}
+
+	@Test(timeout = 20000)
+	public void failureIsReportedAndRetriedOnReconnect() throws Exception {
+		int authPort = auth.getPort();
+		BatchingChannelAuthorizer authorizer = new BatchingChannelAuthorizer(auth.getURL());
+		auth.stop();
+
+		pusher = newPusher(authorizer);
+		pusher.setReconnectPolicy(new ReconnectPolicy(50, 200, 2.0, 0.0, Integer.MAX_VALUE));
+		final BlockingQueue<String> errors = new LinkedBlockingQueue<String>();
+		pusher.subscribe("private-orders").bind(Pusher.SUBSCRIPTION_ERROR, new ChannelListener() {
+			public void onMessage(String message) {
+				errors.add(message);
+			}
+		});
+		pusher.connect();
+
+		String error = errors.poll(10, TimeUnit.SECONDS);
+		assertNotNull(error);
+		JSONObject message = new JSONObject(error);
+		assertEquals("private-orders", message.getString("channel"));
+		assertEquals("AuthError", new JSONObject(message.getString("data")).getString("type"));
+		assertEquals(0, server.getSubscriberCount("private-orders"));
+
+		auth = new AuthTestServer(authPort, "key", "secret");
+		auth.start();
+		server.dropConnections();
+		awaitSubscribers("private-orders");
+		assertTrue(errors.isEmpty());
+	}
+
+	private Pusher newPusher(ChannelAuthorizer authorizer) {
+		Pusher pusher = new Pusher("key", "ws", "127.0.0.1", server.getPort());
+		pusher.setAuthorizer(authorizer);
+		pusher.setPusherListener(new PusherListener() {
+			public void onConnect(String socketId) {
+			}
+
+			public void onMessage(String message) {
+			}
+
+			public void onDisconnect() {
+			}
+		});
+		return pusher;
+	}
+
+	private void awaitSubscribers(String channel) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (server.getSubscriberCount(channel) < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(channel, 1, server.getSubscriberCount(channel));
+	}
+}
@@ -0,0 +1,159 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientEventLimiterTest {
+	private RecordingPusher pusher;
+	private Pusher.Channel channel;
+
+	@Before
+	public void setUp() {
+		pusher = new RecordingPusher();
+		channel = pusher.subscribe("private-test");
+	}
+
+	@Test
+	public void changingLimitKeepsWaitingEvents() throws Exception {
+		pusher.setClientEventLimit(1, 1);
+		sendAll("a", "b", "c");
+		assertEquals(1, pusher.getClientEventCount());
+
+		// a new event still waits behind the ones already waiting
+		pusher.setClientEventLimit(2, 1);
+		sendAll("d");
+		assertEquals(1, pusher.getClientEventCount());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pusher.getClientEventCount() < 4 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(4, pusher.getClientEventCount());
+	}
+
+	@Test
+	public void removingLimitSendsWaitingEvents() throws Exception {
+		pusher.setClientEventLimit(1, 1);
+		sendAll("a", "b", "c");
+		assertEquals(1, pusher.getClientEventCount());
+
+		pusher.setClientEventLimit(0, 0);
+		assertEquals(3, pusher.getClientEventCount());
+
+		sendAll("d");
+		assertEquals(4, pusher.getClientEventCount());
+	}
+
+	@Test(timeout = 10000)
+	public void sendsOutsideTheLimiterLock() throws Exception {
+		final ClientEventLimiter limiter = new ClientEventLimiter(pusher, 1000, 10);
+		pusher.gate = new CountDownLatch(1);
+
+		Thread first = new Thread(new Runnable() {
+			public void run() {
+				try {
+					limiter.send("a", "client-update a");
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		first.start();
+		pusher.writing.await(5, TimeUnit.SECONDS);
+
+		// the first send is stuck in the socket; this one must not wait for it
+		limiter.send("b", "client-update b");
+		assertEquals(0, limiter.getPendingCount());
+		assertTrue(first.isAlive());
+
+		pusher.gate.countDown();
+		first.join(5000);
+		assertFalse(first.isAlive());
+		assertEquals("[client-update a, client-update b]", pusher.sent.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsZeroRate() {
+		new ClientEventLimiter(pusher, 0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsZeroRateChange() {
+		new ClientEventLimiter(pusher, 1, 1).setRate(0, 1);
+	}
+
+	private void sendAll(String... keys) throws Exception {
+		for (String key : keys) {
+			channel.send("client-update", new JSONObject().put("key", key), key);
+		}
+	}
+
+	private static class RecordingPusher extends Pusher {
+		private final List<String> sent = new ArrayList<String>();
+		private final CountDownLatch writing = new CountDownLatch(1);
+		// when set, sendText blocks until it opens, like a full socket
+		private volatile CountDownLatch gate = null;
+
+		RecordingPusher() {
+			super("test");
+		}
+
+		@Override
+		void sendText(String text) {
+			CountDownLatch gate = this.gate;
+			if (gate != null) {
+				writing.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (sent) {
+				sent.add(text);
+			}
+		}
+
+		int getClientEventCount() {
+			int count = 0;
+			synchronized (sent) {
+				for (String text : sent) {
+					if (text.contains("client-update")) {
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+	}
+}
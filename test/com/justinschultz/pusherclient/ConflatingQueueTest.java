@@ -0,0 +1,111 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.justinschultz.websocket.WebSocketMessage;
+
+public class ConflatingQueueTest {
+	private Pusher pusher;
+	private Pusher.Channel channel;
+	private final List<String> delivered = new ArrayList<String>();
+	private final ManualExecutor executor = new ManualExecutor();
+
+	@Before
+	public void setUp() {
+		pusher = new Pusher("test");
+		channel = pusher.subscribe("prices");
+		channel.bind("update", new ChannelListener() {
+			public void onMessage(String message) {
+				delivered.add(message);
+			}
+		});
+	}
+
+	@Test
+	public void deliversLatestEventPerKey() throws Exception {
+		ConflatingQueue queue = new ConflatingQueue(channel, executor, new KeyDecoder());
+		offer(queue, "a:1");
+		offer(queue, "b:1");
+		offer(queue, "a:2");
+		executor.runAll();
+
+		assertEquals(2, delivered.size());
+		assertTrue(delivered.get(0).contains("a:2"));
+		assertTrue(delivered.get(1).contains("b:1"));
+	}
+
+	@Test
+	public void rejectedExecutionDoesNotStallQueue() throws Exception {
+		ConflatingQueue queue = new ConflatingQueue(channel, executor, null);
+		executor.rejectNext = true;
+		offer(queue, "a:1");
+		executor.runAll();
+		assertEquals(0, delivered.size());
+
+		offer(queue, "a:2");
+		executor.runAll();
+		assertEquals(1, delivered.size());
+		assertTrue(delivered.get(0).contains("a:2"));
+	}
+
+	private void offer(ConflatingQueue queue, String data) throws Exception {
+		WebSocketMessage message = new WebSocketMessage("{\"event\":\"update\",\"channel\":\"prices\",\"data\":\"" + data + "\"}");
+		PusherEnvelope envelope = PusherEnvelope.parse(message.getData(), message.getOffset(), message.getLength());
+		queue.offer(pusher, envelope, message, message.getText());
+	}
+
+	private static class KeyDecoder implements Decoder<String> {
+		public String decode(byte[] data, int offset, int length) throws Exception {
+			String text = new String(data, offset, length, "UTF-8");
+			return text.substring(0, text.indexOf(':'));
+		}
+	}
+
+	private static class ManualExecutor implements Executor {
+		private final List<Runnable> tasks = new ArrayList<Runnable>();
+		private boolean rejectNext = false;
+
+		public void execute(Runnable task) {
+			if (rejectNext) {
+				rejectNext = false;
+				throw new RejectedExecutionException("rejected for the test");
+			}
+			tasks.add(task);
+		}
+
+		void runAll() {
+			while (!tasks.isEmpty()) {
+				tasks.remove(0).run();
+			}
+		}
+	}
+}
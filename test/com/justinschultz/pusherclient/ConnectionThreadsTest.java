@@ -0,0 +1,230 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.justinschultz.pusherserver.PusherTestServer;
+import com.justinschultz.websocket.WebSocket;
+import com.justinschultz.websocket.WebSocketChannelConnection;
+import com.justinschultz.websocket.WebSocketConnection;
+import com.justinschultz.websocket.WebSocketEventLoopGroup;
+import com.justinschultz.websocket.WebSocketException;
+import com.justinschultz.websocket.WebSocketFactory;
+
+/**
+ * Opens many more connections than there are cores against the stand-in
+ * server and checks how many platform threads the clients add. Blocking
+ * receivers need a thread each, so they are only checked for reusing an
+ * executor's threads; the event loop serves thousands of connections from
+ * one thread per core.
+ */
+public class ConnectionThreadsTest {
+	private static final int CORES = Runtime.getRuntime().availableProcessors();
+	private static final int CONNECTIONS = Math.max(64, 32 * CORES);
+	private static final int MANY_CONNECTIONS = 2000;
+	private static final int SLACK = 8;
+
+	private PusherTestServer server;
+	private final List<Pusher> clients = new ArrayList<Pusher>();
+	private int peakClientThreads;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PusherTestServer(0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		for (Pusher pusher : clients) {
+			pusher.disconnect();
+		}
+		server.stop();
+	}
+
+	@Test(timeout = 120000)
+	public void receiversReuseExecutorThreads() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(CONNECTIONS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "receiver-" + created.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			WebSocketFactory factory = new WebSocketFactory() {
+				public WebSocket createWebSocket(URI url) throws WebSocketException {
+					WebSocketConnection websocket = new WebSocketConnection(url);
+					websocket.setReceiverExecutor(executor);
+					return websocket;
+				}
+			};
+			int before = clientThreadCount();
+			Set<String> threads = connectAndDeliver(CONNECTIONS, factory);
+
+			for (String name : threads) {
+				assertTrue(name, name.startsWith("receiver-"));
+			}
+			assertEquals(CONNECTIONS, created.get());
+			assertTrue(peakClientThreads - before <= CONNECTIONS + SLACK);
+
+			// reconnecting runs the receivers on the same threads
+			for (Pusher pusher : clients) {
+				pusher.disconnect();
+			}
+			clients.clear();
+			connectAndDeliver(CONNECTIONS, factory);
+			assertEquals(CONNECTIONS, created.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 300000)
+	public void thousandsOfConnectionsShareOneLoopPerCore() throws Exception {
+		final WebSocketEventLoopGroup group = new WebSocketEventLoopGroup(CORES);
+		try {
+			int before = clientThreadCount();
+			Set<String> threads = connectAndDeliver(MANY_CONNECTIONS, new WebSocketFactory() {
+				public WebSocket createWebSocket(URI url) throws WebSocketException {
+					return new WebSocketChannelConnection(url, group);
+				}
+			});
+
+			assertTrue(threads.toString(), threads.size() <= CORES);
+			assertTrue("peak " + peakClientThreads + ", before " + before, peakClientThreads - before <= CORES + SLACK);
+		} finally {
+			for (Pusher pusher : clients) {
+				pusher.disconnect();
+			}
+			clients.clear();
+			group.shutdown();
+		}
+	}
+
+	@Test(timeout = 300000)
+	public void virtualThreadsAddNoPlatformThreadPerConnection() throws Exception {
+		final ThreadFactory factory = WebSocketConnection.virtualThreadFactory();
+		Assume.assumeTrue(factory != null);
+
+		int before = clientThreadCount();
+		connectAndDeliver(MANY_CONNECTIONS, new WebSocketFactory() {
+			public WebSocket createWebSocket(URI url) throws WebSocketException {
+				WebSocketConnection websocket = new WebSocketConnection(url);
+				websocket.setReceiverThreadFactory(factory);
+				return websocket;
+			}
+		});
+		// carrier threads are bounded by the number of cores
+		assertTrue(peakClientThreads - before <= CORES + SLACK);
+	}
+
+	/**
+	 * Connects the given number of clients subscribed to one channel,
+	 * triggers an event on it and returns the names of the threads it was
+	 * delivered on. The live client thread count is sampled while
+	 * connecting and after delivery; its maximum is left in
+	 * peakClientThreads.
+	 */
+	private Set<String> connectAndDeliver(int connections, WebSocketFactory factory) throws Exception {
+		final CountDownLatch connected = new CountDownLatch(connections);
+		final CountDownLatch delivered = new CountDownLatch(connections);
+		final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		peakClientThreads = 0;
+
+		for (int i = 0; i < connections; i++) {
+			Pusher pusher = new Pusher("test", "ws", "127.0.0.1", server.getPort());
+			pusher.setWebSocketFactory(factory);
+			pusher.setPusherListener(new PusherListener() {
+				public void onConnect(String socketId) {
+					connected.countDown();
+				}
+
+				public void onMessage(String message) {
+				}
+
+				public void onDisconnect() {
+				}
+			});
+			pusher.subscribe("load").bind("tick", new ChannelListener() {
+				public void onMessage(String message) {
+					threads.add(Thread.currentThread().getName());
+					delivered.countDown();
+				}
+			});
+			clients.add(pusher);
+			pusher.connect();
+			if (i % 250 == 249) {
+				sampleClientThreads();
+			}
+		}
+
+		assertTrue(connected.await(60, TimeUnit.SECONDS));
+		long deadline = System.currentTimeMillis() + 30000;
+		while (server.getSubscriberCount("load") < connections && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		sampleClientThreads();
+		assertEquals(connections, server.trigger("load", "tick", "{}"));
+		assertTrue(delivered.await(60, TimeUnit.SECONDS));
+		sampleClientThreads();
+		return threads;
+	}
+
+	private void sampleClientThreads() {
+		peakClientThreads = Math.max(peakClientThreads, clientThreadCount());
+	}
+
+	/**
+	 * Live threads other than the stand-in server's, which uses one per
+	 * connection.
+	 */
+	private static int clientThreadCount() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && !thread.getName().startsWith("PusherTestServer")) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,116 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EventRouterTest {
+	private final EventRouter router = new EventRouter();
+	private final List<String> notified = new ArrayList<String>();
+
+	@Test
+	public void prefixListenersRunBeforeExactOnes() {
+		router.bind("orders-1", "created", listener("exact"));
+		router.bind("orders-*", "created", listener("orders-*"));
+		router.bind("*", "*", listener("*"));
+		router.bind("orders-1", "cre*", listener("cre*"));
+
+		router.route("orders-1", "created", "{}");
+		// shorter channel prefixes first, then event prefixes before names
+		assertEquals(Arrays.asList("*", "orders-*", "cre*", "exact"), notified);
+	}
+
+	@Test
+	public void prefixMatchesEmptyRemainder() {
+		router.bind("orders-*", "*", listener("orders-*"));
+
+		router.route("orders-", "created", "{}");
+		router.route("orders", "created", "{}");
+		assertEquals(Arrays.asList("orders-*"), notified);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void starInsideChannelPatternIsRejected() {
+		router.bind("orders-*-eu", "created", listener("a"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void leadingStarInEventPatternIsRejected() {
+		router.bind("orders", "*-created", listener("a"));
+	}
+
+	@Test
+	public void unbindingLastListenerUnderPrefixStopsDelivery() {
+		ChannelListener first = listener("first");
+		ChannelListener second = listener("second");
+		router.bind("orders-*", "created", first);
+		router.bind("orders-*", "created", second);
+
+		assertTrue(router.unbind("orders-*", "created", first));
+		router.route("orders-1", "created", "{}");
+		assertEquals(Arrays.asList("second"), notified);
+
+		assertTrue(router.unbind("orders-*", "created", second));
+		assertFalse(router.unbind("orders-*", "created", second));
+		router.route("orders-1", "created", "{}");
+		assertEquals(Arrays.asList("second"), notified);
+	}
+
+	@Test
+	public void unbindMatchesPatternsExactly() {
+		ChannelListener listener = listener("a");
+		router.bind("orders-*", "created", listener);
+
+		assertFalse(router.unbind("orders-1", "created", listener));
+		assertFalse(router.unbind("orders-*", "*", listener));
+		router.route("orders-1", "created", "{}");
+		assertEquals(Arrays.asList("a"), notified);
+	}
+
+	@Test
+	public void unknownChannelsAndEventsAreIgnored() {
+		router.route("orders-1", "created", "{}");
+
+		router.bind("orders-*", "created", listener("a"));
+		router.bind("prices", "update", listener("b"));
+		router.route("trades", "created", "{}");
+		router.route("price", "update", "{}");
+		router.route("prices-eu", "update", "{}");
+		router.route("orders-1", "deleted", "{}");
+		assertTrue(notified.isEmpty());
+	}
+
+	private ChannelListener listener(final String name) {
+		return new ChannelListener() {
+			public void onMessage(String message) {
+				notified.add(name);
+			}
+		};
+	}
+}
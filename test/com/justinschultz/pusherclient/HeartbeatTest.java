@@ -0,0 +1,149 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.justinschultz.websocket.WebSocket;
+import com.justinschultz.websocket.WebSocketEventHandler;
+import com.justinschultz.websocket.WebSocketException;
+import com.justinschultz.websocket.WebSocketSendFuture;
+
+/**
+ * Runs heartbeats on the shared TimerWheel, whose ticks are 100ms, with an
+ * activity timeout and a pong timeout of 300ms each.
+ */
+public class HeartbeatTest {
+	private static final long ACTIVITY_MILLIS = 300;
+	private static final long PONG_MILLIS = 300;
+
+	@Test(timeout = 10000)
+	public void missingPongClosesConnection() throws Exception {
+		RecordingWebSocket socket = new RecordingWebSocket(false);
+		Heartbeat heartbeat = new Heartbeat(socket, ACTIVITY_MILLIS, PONG_MILLIS);
+
+		long start = System.nanoTime();
+		heartbeat.start();
+		assertTrue(socket.closed.await(5, TimeUnit.SECONDS));
+		long elapsed = (System.nanoTime() - start) / 1000000L;
+
+		assertEquals(1, socket.pings.get());
+		assertTrue("closed after " + elapsed + "ms", elapsed >= ACTIVITY_MILLIS + PONG_MILLIS);
+	}
+
+	@Test(timeout = 10000)
+	public void pongKeepsConnectionOpen() throws Exception {
+		RecordingWebSocket socket = new RecordingWebSocket(true);
+		Heartbeat heartbeat = new Heartbeat(socket, ACTIVITY_MILLIS, PONG_MILLIS);
+		socket.heartbeat = heartbeat;
+
+		heartbeat.start();
+		try {
+			assertFalse(socket.closed.await(4 * (ACTIVITY_MILLIS + PONG_MILLIS), TimeUnit.MILLISECONDS));
+			assertTrue(socket.pings.get() >= 2);
+		} finally {
+			heartbeat.stop();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void activityDelaysPing() throws Exception {
+		RecordingWebSocket socket = new RecordingWebSocket(false);
+		Heartbeat heartbeat = new Heartbeat(socket, ACTIVITY_MILLIS, PONG_MILLIS);
+
+		heartbeat.start();
+		try {
+			long end = System.currentTimeMillis() + 3 * ACTIVITY_MILLIS;
+			while (System.currentTimeMillis() < end) {
+				heartbeat.onActivity();
+				Thread.sleep(ACTIVITY_MILLIS / 4);
+			}
+			assertEquals(0, socket.pings.get());
+		} finally {
+			heartbeat.stop();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void stopCancelsHeartbeat() throws Exception {
+		RecordingWebSocket socket = new RecordingWebSocket(false);
+		Heartbeat heartbeat = new Heartbeat(socket, ACTIVITY_MILLIS, PONG_MILLIS);
+
+		heartbeat.start();
+		heartbeat.stop();
+		assertFalse(socket.closed.await(2 * (ACTIVITY_MILLIS + PONG_MILLIS), TimeUnit.MILLISECONDS));
+		assertEquals(0, socket.pings.get());
+	}
+
+	/**
+	 * Counts pings and records the close. When told to, it answers each
+	 * ping the way a pong would arrive, as activity on the heartbeat.
+	 */
+	private static class RecordingWebSocket implements WebSocket {
+		private final boolean pong;
+		private final AtomicInteger pings = new AtomicInteger();
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private volatile Heartbeat heartbeat;
+
+		RecordingWebSocket(boolean pong) {
+			this.pong = pong;
+		}
+
+		public void setEventHandler(WebSocketEventHandler eventHandler) {
+		}
+
+		public WebSocketEventHandler getEventHandler() {
+			return null;
+		}
+
+		public void connect() throws WebSocketException {
+		}
+
+		public void send(String data) throws WebSocketException {
+			assertTrue(data, data.contains("pusher:ping"));
+			pings.incrementAndGet();
+			if (pong) {
+				heartbeat.onActivity();
+			}
+		}
+
+		public WebSocketSendFuture sendAsync(String data) throws WebSocketException {
+			send(data);
+			return WebSocketSendFuture.completed();
+		}
+
+		public void close() throws WebSocketException {
+			closed.countDown();
+		}
+
+		public boolean isConnected() {
+			return closed.getCount() > 0;
+		}
+	}
+}
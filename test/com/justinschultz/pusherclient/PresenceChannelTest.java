@@ -0,0 +1,128 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.justinschultz.pusherserver.PusherTestServer;
+
+public class PresenceChannelTest {
+	private PusherTestServer server;
+	private Pusher first;
+	private Pusher second;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PusherTestServer(0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (first != null) {
+			first.disconnect();
+		}
+		if (second != null) {
+			second.disconnect();
+		}
+		server.stop();
+	}
+
+	@Test
+	public void subscribeWithoutUserIdKeepsIt() {
+		first = newPusher();
+		Pusher.PresenceChannel channel = first.subscribe("presence-room", "token", 7);
+		assertSame(channel, first.subscribe("presence-room"));
+		assertEquals(7, channel.getMyId());
+	}
+
+	@Test(timeout = 20000)
+	public void tracksMembersJoiningAndLeaving() throws Exception {
+		first = newPusher();
+		Pusher.PresenceChannel channel = first.subscribe("presence-room", "token", 1);
+		RecordingListener members = new RecordingListener();
+		channel.addPresenceListener(members);
+		first.connect();
+		assertEquals("subscribed 1", members.next());
+		assertTrue(channel.isMember(1));
+
+		second = newPusher();
+		Pusher.PresenceChannel other = second.subscribe("presence-room", "token", 2);
+		RecordingListener otherMembers = new RecordingListener();
+		other.addPresenceListener(otherMembers);
+		second.connect();
+		assertEquals("subscribed 2", otherMembers.next());
+		assertTrue(other.isMember(1));
+		assertEquals("added 2", members.next());
+		assertEquals(2, channel.getMemberCount());
+
+		second.unsubscribe("presence-room");
+		assertEquals("removed 2", members.next());
+		assertFalse(channel.isMember(2));
+		assertEquals(1, channel.getMyId());
+	}
+
+	private Pusher newPusher() {
+		Pusher pusher = new Pusher("test", "ws", "127.0.0.1", server.getPort());
+		pusher.setPusherListener(new PusherListener() {
+			public void onConnect(String socketId) {
+			}
+
+			public void onMessage(String message) {
+			}
+
+			public void onDisconnect() {
+			}
+		});
+		return pusher;
+	}
+
+	private static class RecordingListener implements PresenceListener {
+		private final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+
+		public void onSubscribed(int memberCount) {
+			changes.add("subscribed " + memberCount);
+		}
+
+		public void onMemberAdded(int userId, String userInfo) {
+			changes.add("added " + userId);
+		}
+
+		public void onMemberRemoved(int userId) {
+			changes.add("removed " + userId);
+		}
+
+		String next() throws InterruptedException {
+			return changes.poll(10, TimeUnit.SECONDS);
+		}
+	}
+}
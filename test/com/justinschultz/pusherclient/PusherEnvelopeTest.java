@@ -0,0 +1,130 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+public class PusherEnvelopeTest {
+	@Test
+	public void unescapesQuotesAndBackslashesInData() throws Exception {
+		PusherEnvelope envelope = parse("{\"event\":\"update\",\"channel\":\"notes\","
+				+ "\"data\":\"{\\\"text\\\":\\\"say \\\\\\\"hi\\\\\\\" to c:\\\\\\\\dir\\\"}\"}");
+
+		String data = "{\"text\":\"say \\\"hi\\\" to c:\\\\dir\"}";
+		assertEquals(data, envelope.getData());
+		assertEquals(data, decode(envelope));
+		assertEquals("say \"hi\" to c:\\dir", envelope.getDataObject().getString("text"));
+	}
+
+	@Test
+	public void unescapesUnicodeEscapes() throws Exception {
+		PusherEnvelope envelope = parse("{\"event\":\"client-\\u0041\",\"channel\":\"caf\\u00e9\","
+				+ "\"data\":\"caf\\u00e9 \\u20ac \\ud83d\\ude00\"}");
+
+		assertEquals("client-A", envelope.getEvent());
+		assertEquals("caf\u00e9", envelope.getChannel());
+		assertEquals("caf\u00e9 \u20ac \ud83d\ude00", envelope.getData());
+		assertEquals("caf\u00e9 \u20ac \ud83d\ude00", decode(envelope));
+	}
+
+	@Test(expected = JSONException.class)
+	public void rejectsShortUnicodeEscape() throws Exception {
+		parse("{\"event\":\"\\u00e\"}");
+	}
+
+	@Test
+	public void dataAsStringOrObjectReadsTheSame() throws Exception {
+		PusherEnvelope string = parse("{\"event\":\"update\",\"data\":\"{\\\"price\\\":10}\"}");
+		PusherEnvelope object = parse("{\"event\":\"update\",\"data\":{\"price\":10}}");
+
+		assertEquals("{\"price\":10}", string.getData());
+		assertEquals("{\"price\":10}", object.getData());
+		assertEquals("{\"price\":10}", decode(string));
+		assertEquals("{\"price\":10}", decode(object));
+		assertEquals(10, string.getDataObject().getInt("price"));
+		assertEquals(10, object.getDataObject().getInt("price"));
+	}
+
+	@Test
+	public void missingFieldsAreNull() throws Exception {
+		PusherEnvelope envelope = parse("{\"event\":\"pusher:connection_established\",\"data\":\"{}\"}");
+		assertEquals("pusher:connection_established", envelope.getEvent());
+		assertNull(envelope.getChannel());
+		assertTrue(envelope.hasData());
+
+		envelope = parse("{\"event\":\"pusher:pong\"}");
+		assertFalse(envelope.hasData());
+		assertNull(envelope.getData());
+		assertNull(envelope.getDataObject());
+		assertNull(decode(envelope));
+	}
+
+	@Test
+	public void keysMayComeInAnyOrder() throws Exception {
+		PusherEnvelope envelope = parse(" { \"data\" : \"x\" , \"user_id\" : 7 , \"channel\" : \"notes\" ,"
+				+ " \"tags\" : [1, [2], {\"event\":\"inner\"}] , \"event\" : \"update\" } ");
+
+		assertEquals("update", envelope.getEvent());
+		assertEquals("notes", envelope.getChannel());
+		assertEquals("x", envelope.getData());
+	}
+
+	@Test
+	public void bracesInsideStringsDoNotEndValues() throws Exception {
+		PusherEnvelope envelope = parse("{\"extra\":{\"s\":\"}]\\\"{\"},\"data\":{\"text\":\"} { ] \\\"}\"},"
+				+ "\"channel\":\"notes\",\"event\":\"update\"}");
+
+		assertEquals("update", envelope.getEvent());
+		assertEquals("notes", envelope.getChannel());
+		assertEquals("{\"text\":\"} { ] \\\"}\"}", envelope.getData());
+		assertEquals("} { ] \"}", envelope.getDataObject().getString("text"));
+	}
+
+	@Test(expected = JSONException.class)
+	public void rejectsUnterminatedData() throws Exception {
+		parse("{\"event\":\"update\",\"data\":{\"text\":\"}\"}");
+	}
+
+	/**
+	 * Parses the message from the middle of a larger array, as messages
+	 * are handed over from the receive buffer.
+	 */
+	private static PusherEnvelope parse(String message) throws Exception {
+		byte[] utf8 = message.getBytes("UTF-8");
+		byte[] buffer = new byte[utf8.length + 8];
+		System.arraycopy(utf8, 0, buffer, 4, utf8.length);
+		return PusherEnvelope.parse(buffer, 4, utf8.length);
+	}
+
+	private static String decode(PusherEnvelope envelope) throws Exception {
+		return envelope.decodeData(new Decoder<String>() {
+			public String decode(byte[] data, int offset, int length) throws Exception {
+				return new String(data, offset, length, "UTF-8");
+			}
+		});
+	}
+}
@@ -0,0 +1,239 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.justinschultz.pusherserver.PusherTestServer;
+import com.justinschultz.websocket.WebSocket;
+import com.justinschultz.websocket.WebSocketConnection;
+import com.justinschultz.websocket.WebSocketEventHandler;
+import com.justinschultz.websocket.WebSocketException;
+import com.justinschultz.websocket.WebSocketFactory;
+import com.justinschultz.websocket.WebSocketSendFuture;
+
+/**
+ * Drops connections on the stand-in server and watches the clients come
+ * back: the delays between attempts, how many attempts run at once and
+ * whether channels are subscribed again.
+ */
+public class ReconnectTest {
+	private PusherTestServer server;
+	private final List<Pusher> clients = new ArrayList<Pusher>();
+	private final int defaultMaxConcurrentAttempts = ReconnectPolicy.getMaxConcurrentAttempts();
+
+	private final List<Long> attemptTimes = new ArrayList<Long>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private volatile long connectDelayMillis = 0;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PusherTestServer(0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		for (Pusher pusher : clients) {
+			pusher.disconnect();
+		}
+		server.stop();
+		ReconnectPolicy.setMaxConcurrentAttempts(defaultMaxConcurrentAttempts);
+	}
+
+	@Test
+	public void backsOffAndResubscribes() throws Exception {
+		Pusher pusher = newClient(new ReconnectPolicy(100, 400, 2.0, 0.0, 50));
+		final CountDownLatch received = new CountDownLatch(1);
+		pusher.subscribe("orders").bind("created", new ChannelListener() {
+			public void onMessage(String message) {
+				received.countDown();
+			}
+		});
+		pusher.connect();
+		awaitSubscribers("orders", 1);
+
+		// refuse connections so the attempts fail and back off
+		int port = server.getPort();
+		synchronized (attemptTimes) {
+			attemptTimes.clear();
+		}
+		server.stop();
+		awaitAttempts(5);
+
+		long[] expected = { 200, 400, 400, 400 };
+		synchronized (attemptTimes) {
+			for (int i = 0; i < expected.length; i++) {
+				long gap = attemptTimes.get(i + 1) - attemptTimes.get(i);
+				assertTrue("gap " + i + " was " + gap + " ms", gap >= expected[i] - 20);
+			}
+		}
+
+		server = new PusherTestServer(port);
+		server.start();
+		awaitSubscribers("orders", 1);
+		server.trigger("orders", "created", "{}");
+		assertTrue(received.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void capsConcurrentAttempts() throws Exception {
+		int clientCount = 40;
+		int cap = 3;
+		ReconnectPolicy.setMaxConcurrentAttempts(cap);
+
+		for (int i = 0; i < clientCount; i++) {
+			Pusher pusher = newClient(new ReconnectPolicy(10, 100, 2.0, 0.5, Integer.MAX_VALUE));
+			pusher.subscribe("load");
+			pusher.connect();
+		}
+		awaitSubscribers("load", clientCount);
+
+		synchronized (attemptTimes) {
+			attemptTimes.clear();
+		}
+		maxInFlight.set(0);
+		connectDelayMillis = 20;
+		server.dropConnections();
+		awaitSubscribers("load", clientCount);
+
+		synchronized (attemptTimes) {
+			assertTrue(attemptTimes.size() >= clientCount);
+		}
+		assertTrue("max in flight was " + maxInFlight.get(), maxInFlight.get() <= cap);
+		assertTrue(maxInFlight.get() > 1);
+		assertEquals(clientCount, server.getConnectionCount());
+	}
+
+	private Pusher newClient(ReconnectPolicy policy) {
+		Pusher pusher = new Pusher("test", "ws", "127.0.0.1", server.getPort());
+		pusher.setReconnectPolicy(policy);
+		pusher.setPusherListener(new PusherListener() {
+			public void onConnect(String socketId) {
+			}
+
+			public void onMessage(String message) {
+			}
+
+			public void onDisconnect() {
+			}
+		});
+		pusher.setWebSocketFactory(new WebSocketFactory() {
+			public WebSocket createWebSocket(URI url) throws WebSocketException {
+				return new CountingWebSocket(new WebSocketConnection(url));
+			}
+		});
+		clients.add(pusher);
+		return pusher;
+	}
+
+	private void awaitSubscribers(String channel, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20000;
+		while (server.getSubscriberCount(channel) < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, server.getSubscriberCount(channel));
+	}
+
+	private void awaitAttempts(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20000;
+		while (System.currentTimeMillis() < deadline) {
+			synchronized (attemptTimes) {
+				if (attemptTimes.size() >= count) {
+					return;
+				}
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("fewer than " + count + " reconnect attempts");
+	}
+
+	/**
+	 * Records when each connect starts and how many overlap, holding each
+	 * one open a little to make overlaps visible.
+	 */
+	private class CountingWebSocket implements WebSocket {
+		private final WebSocket websocket;
+
+		CountingWebSocket(WebSocket websocket) {
+			this.websocket = websocket;
+		}
+
+		public void setEventHandler(WebSocketEventHandler eventHandler) {
+			websocket.setEventHandler(eventHandler);
+		}
+
+		public WebSocketEventHandler getEventHandler() {
+			return websocket.getEventHandler();
+		}
+
+		public void connect() throws WebSocketException {
+			synchronized (attemptTimes) {
+				attemptTimes.add(System.currentTimeMillis());
+			}
+			int current = inFlight.incrementAndGet();
+			while (true) {
+				int max = maxInFlight.get();
+				if (current <= max || maxInFlight.compareAndSet(max, current)) {
+					break;
+				}
+			}
+			try {
+				Thread.sleep(connectDelayMillis);
+				websocket.connect();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new WebSocketException("interrupted", ie);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+		public void send(String data) throws WebSocketException {
+			websocket.send(data);
+		}
+
+		public WebSocketSendFuture sendAsync(String data) throws WebSocketException {
+			return websocket.sendAsync(data);
+		}
+
+		public void close() throws WebSocketException {
+			websocket.close();
+		}
+
+		public boolean isConnected() {
+			return websocket.isConnected();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.justinschultz.pusherserver.PusherTestServer;
+
+/**
+ * Rebalancing a ShardedPusher against the stand-in server as its shards
+ * drop and come back.
+ */
+public class ShardedPusherTest {
+	private PusherTestServer server;
+	private ShardedPusher pusher;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PusherTestServer(0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (pusher != null) {
+			pusher.disconnect();
+		}
+		server.stop();
+	}
+
+	@Test(timeout = 20000)
+	public void rebalanceSkipsChannelsSubscribedOnShard() throws Exception {
+		pusher = newPusher(2, ShardPlacement.LEAST_LOADED);
+		for (int i = 0; i < 6; i++) {
+			pusher.getShard(0).subscribe("direct-" + i);
+		}
+		pusher.connect();
+		awaitConnected(true);
+
+		pusher.subscribe("placed");
+		assertNotNull(pusher.getShardFor("placed"));
+		for (int i = 0; i < 6; i++) {
+			awaitSubscribers("direct-" + i);
+			assertEquals(null, pusher.getShardFor("direct-" + i));
+		}
+		awaitSubscribers("placed");
+	}
+
+	@Test(timeout = 60000)
+	public void channelsSurviveAllShardsDropping() throws Exception {
+		pusher = newPusher(4, ShardPlacement.CONSISTENT_HASH);
+		for (int i = 0; i < 20; i++) {
+			pusher.subscribe("market-" + i);
+		}
+		pusher.connect();
+		for (int i = 0; i < 20; i++) {
+			awaitSubscribers("market-" + i);
+		}
+
+		PrintStream err = System.err;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(captured, true));
+		try {
+			int port = server.getPort();
+			server.stop();
+			awaitConnected(false);
+			for (int i = 0; i < 20; i++) {
+				Pusher owner = pusher.getShardFor("market-" + i);
+				assertTrue(owner.getChannelNames().contains("market-" + i));
+			}
+
+			server = new PusherTestServer(port);
+			server.start();
+			awaitConnected(true);
+			for (int i = 0; i < 20; i++) {
+				awaitSubscribers("market-" + i);
+			}
+		} finally {
+			System.setErr(err);
+		}
+		assertFalse(captured.toString("UTF-8"), captured.toString("UTF-8").contains("Broken pipe"));
+	}
+
+	private ShardedPusher newPusher(int shards, ShardPlacement placement) {
+		ShardedPusher sharded = new ShardedPusher("test", shards, placement, "ws", "127.0.0.1", server.getPort());
+		sharded.setReconnectPolicy(new ReconnectPolicy(50, 200, 2.0, 0.5, Integer.MAX_VALUE));
+		return sharded;
+	}
+
+	private void awaitConnected(boolean connected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20000;
+		while (System.currentTimeMillis() < deadline) {
+			boolean all = true;
+			for (int i = 0; i < pusher.getShardCount(); i++) {
+				all &= pusher.getShard(i).isConnected() == connected;
+			}
+			if (all) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("shards did not become " + (connected ? "connected" : "disconnected"));
+	}
+
+	private void awaitSubscribers(String channel) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20000;
+		while (server.getSubscriberCount(channel) != 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(channel, server.getSubscriberCount(channel) == 1);
+	}
+}
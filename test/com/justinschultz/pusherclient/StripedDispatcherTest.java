@@ -0,0 +1,188 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StripedDispatcherTest {
+	private final List<String> ran = new ArrayList<String>();
+	private final ManualExecutor executor = new ManualExecutor();
+
+	@Test(timeout = 20000)
+	public void keepsEachChannelInOrder() throws Exception {
+		final int channels = 50;
+		final int events = 200;
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			StripedDispatcher dispatcher = new StripedDispatcher(pool, 8, 1024, DispatchOverflowPolicy.BLOCK);
+			final ConcurrentHashMap<String, List<Integer>> seen = new ConcurrentHashMap<String, List<Integer>>();
+			final CountDownLatch done = new CountDownLatch(channels * events);
+			for (int i = 0; i < events; i++) {
+				for (int c = 0; c < channels; c++) {
+					final String channel = "channel-" + c;
+					final int sequence = i;
+					dispatcher.dispatch(channel, new Runnable() {
+						public void run() {
+							List<Integer> list = seen.get(channel);
+							if (list == null) {
+								seen.putIfAbsent(channel, new ArrayList<Integer>());
+								list = seen.get(channel);
+							}
+							// tasks of one channel never run concurrently
+							list.add(sequence);
+							done.countDown();
+						}
+					});
+				}
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+
+			for (List<Integer> list : seen.values()) {
+				assertEquals(events, list.size());
+				for (int i = 0; i < events; i++) {
+					assertEquals(i, list.get(i).intValue());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void dropNewestDiscardsEventThatDoesNotFit() {
+		StripedDispatcher dispatcher = new StripedDispatcher(executor, 1, 2, DispatchOverflowPolicy.DROP_NEWEST);
+		dispatch(dispatcher, "a", "b", "c");
+		executor.runAll();
+		assertEquals(Arrays.asList("a", "b"), ran);
+	}
+
+	@Test
+	public void dropOldestDiscardsOldestEvent() {
+		StripedDispatcher dispatcher = new StripedDispatcher(executor, 1, 2, DispatchOverflowPolicy.DROP_OLDEST);
+		dispatch(dispatcher, "a", "b", "c");
+		executor.runAll();
+		assertEquals(Arrays.asList("b", "c"), ran);
+	}
+
+	@Test
+	public void lifecycleTasksAreNeverDropped() {
+		for (DispatchOverflowPolicy policy : new DispatchOverflowPolicy[] { DispatchOverflowPolicy.DROP_NEWEST,
+				DispatchOverflowPolicy.DROP_OLDEST }) {
+			ran.clear();
+			StripedDispatcher dispatcher = new StripedDispatcher(executor, 1, 2, policy);
+			dispatcher.dispatch(null, lifecycle("connect"));
+			dispatch(dispatcher, "a", "b");
+			dispatcher.dispatch(null, lifecycle("disconnect"));
+			executor.runAll();
+			assertEquals(policy.toString(), Arrays.asList("connect", "disconnect"), ran);
+		}
+	}
+
+	@Test
+	public void dropOldestKeepsQueuedLifecycleTasks() {
+		StripedDispatcher dispatcher = new StripedDispatcher(executor, 1, 2, DispatchOverflowPolicy.DROP_OLDEST);
+		dispatcher.dispatch(null, lifecycle("connect"));
+		dispatch(dispatcher, "a", "b");
+		executor.runAll();
+		assertEquals(Arrays.asList("connect", "b"), ran);
+	}
+
+	@Test
+	public void rejectedExecutionDoesNotStallStripe() {
+		StripedDispatcher dispatcher = new StripedDispatcher(executor, 1, 16, DispatchOverflowPolicy.BLOCK);
+		executor.rejectNext = true;
+		dispatch(dispatcher, "a");
+		executor.runAll();
+		assertEquals(0, ran.size());
+
+		dispatch(dispatcher, "b");
+		executor.runAll();
+		assertEquals(Arrays.asList("a", "b"), ran);
+	}
+
+	@Test
+	public void errorInListenerDoesNotStallStripe() {
+		StripedDispatcher dispatcher = new StripedDispatcher(executor, 1, 16, DispatchOverflowPolicy.BLOCK);
+		dispatcher.dispatch(null, new Runnable() {
+			public void run() {
+				throw new AssertionError("listener failed");
+			}
+		});
+		dispatch(dispatcher, "a");
+		try {
+			executor.runAll();
+		} catch (AssertionError expected) {
+		}
+		executor.runAll();
+		assertEquals(Arrays.asList("a"), ran);
+	}
+
+	private void dispatch(StripedDispatcher dispatcher, String... names) {
+		for (final String name : names) {
+			dispatcher.dispatch(null, new Runnable() {
+				public void run() {
+					ran.add(name);
+				}
+			});
+		}
+	}
+
+	private PusherDispatcher.LifecycleTask lifecycle(final String name) {
+		return new PusherDispatcher.LifecycleTask() {
+			public void run() {
+				ran.add(name);
+			}
+		};
+	}
+
+	private static class ManualExecutor implements Executor {
+		private final List<Runnable> tasks = new ArrayList<Runnable>();
+		private boolean rejectNext = false;
+
+		public void execute(Runnable task) {
+			if (rejectNext) {
+				rejectNext = false;
+				throw new RejectedExecutionException("rejected for the test");
+			}
+			tasks.add(task);
+		}
+
+		void runAll() {
+			while (!tasks.isEmpty()) {
+				tasks.remove(0).run();
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.justinschultz.pusherclient;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+	private static final long TICK_MILLIS = 10;
+	private static final int WHEEL_SIZE = 8;
+	// a busy machine may wake the wheel thread late
+	private static final long SLACK_MILLIS = 150;
+
+	private static final TimerWheel wheel = new TimerWheel(TICK_MILLIS, WHEEL_SIZE, "TestTimerWheel");
+
+	@Test
+	public void firesOnTimeAcrossRotations() throws Exception {
+		// one rotation of the wheel is 80ms
+		final long[] delays = { 5, 35, 79, 80, 81, 170, 410 };
+		final long[] fired = new long[delays.length];
+		final CountDownLatch done = new CountDownLatch(delays.length);
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++) {
+			final int index = i;
+			wheel.schedule(new Runnable() {
+				public void run() {
+					fired[index] = System.nanoTime();
+					done.countDown();
+				}
+			}, delays[i]);
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		for (int i = 0; i < delays.length; i++) {
+			long elapsed = (fired[i] - start) / 1000000L;
+			assertTrue("fired after " + elapsed + "ms, delay " + delays[i] + "ms", elapsed >= delays[i]);
+			assertTrue("fired after " + elapsed + "ms, delay " + delays[i] + "ms",
+					elapsed <= delays[i] + TICK_MILLIS + SLACK_MILLIS);
+		}
+	}
+
+	@Test
+	public void cancelledTimeoutsDoNotRun() throws Exception {
+		final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(1);
+
+		wheel.schedule(record(ran, "a"), 50);
+		wheel.schedule(record(ran, "b"), 50).cancel();
+		wheel.schedule(record(ran, "c"), 170).cancel();
+		wheel.schedule(new Runnable() {
+			public void run() {
+				ran.add("d");
+				done.countDown();
+			}
+		}, 250);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("a", "d"), ran);
+	}
+
+	@Test
+	public void failingTaskDoesNotStopTheWheel() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		wheel.schedule(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("failed for the test");
+			}
+		}, 20);
+		wheel.schedule(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		}, 40);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	private static Runnable record(final List<String> ran, final String name) {
+		return new Runnable() {
+			public void run() {
+				ran.add(name);
+			}
+		};
+	}
+}
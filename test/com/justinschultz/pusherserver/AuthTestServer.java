@@ -0,0 +1,142 @@
+package com.justinschultz.pusherserver;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.justinschultz.pusherclient.HmacChannelAuthorizer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for an application's batch auth endpoint, as
+ * used by BatchingChannelAuthorizer. It listens on loopback, signs every
+ * private and presence channel in a request with the app secret and
+ * refuses other channels. It counts requests and channels so that tests
+ * can check how auth was batched.
+ */
+public class AuthTestServer {
+	private final int requestedPort;
+	private final HmacChannelAuthorizer signer;
+	private HttpServer server = null;
+
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicInteger channelCount = new AtomicInteger();
+
+	/**
+	 * @param port
+	 *            the port to listen on, or 0 for any free port
+	 */
+	public AuthTestServer(int port, String key, String secret) {
+		this.requestedPort = port;
+		this.signer = new HmacChannelAuthorizer(key, secret);
+	}
+
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("already started");
+		}
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), requestedPort), 128);
+		server.createContext("/pusher/auth", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+	}
+
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public URL getURL() throws IOException {
+		return new URL("http://127.0.0.1:" + getPort() + "/pusher/auth");
+	}
+
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+
+	public int getChannelCount() {
+		return channelCount.get();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+		int status = 200;
+		byte[] body;
+		try {
+			JSONArray requests = new JSONObject(read(exchange.getRequestBody())).getJSONArray("requests");
+			JSONArray responses = new JSONArray();
+			for (int i = 0; i < requests.length(); i++) {
+				JSONObject request = requests.getJSONObject(i);
+				String channel = request.getString("channel_name");
+				String channelData = request.optString("channel_data", null);
+				JSONObject response = new JSONObject();
+				if (channel.startsWith("private-") || channel.startsWith("presence-")) {
+					response.put("auth", signer.sign(request.getString("socket_id"), channel, channelData));
+					channelCount.incrementAndGet();
+				} else {
+					response.put("error", "not a private or presence channel");
+				}
+				responses.put(response);
+			}
+			body = new JSONObject().put("responses", responses).toString().getBytes(PusherTestServer.UTF8);
+		} catch (Exception e) {
+			status = 400;
+			body = String.valueOf(e.getMessage()).getBytes(PusherTestServer.UTF8);
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream output = exchange.getResponseBody();
+		output.write(body);
+		output.close();
+	}
+
+	private static String read(InputStream input) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = input.read(buffer)) != -1) {
+			bytes.write(buffer, 0, n);
+		}
+		return new String(bytes.toByteArray(), PusherTestServer.UTF8);
+	}
+}
@@ -0,0 +1,98 @@
+package com.justinschultz.pusherserver;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes events from a PusherTestServer to one channel at a fixed rate.
+ * The pace is kept against the clock rather than by sleeping a fixed
+ * interval per event, so rates above 1000/s are reached by sending the
+ * events that are due in bursts every millisecond.
+ */
+public class EventPublisher implements Runnable {
+	private final PusherTestServer server;
+	private final String channel;
+	private final String event;
+	private final int payloadSize;
+	private final int eventsPerSecond;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private volatile boolean stop = false;
+
+	EventPublisher(PusherTestServer server, String channel, String event, int payloadSize, int eventsPerSecond) {
+		this.server = server;
+		this.channel = channel;
+		this.event = event;
+		this.payloadSize = payloadSize;
+		this.eventsPerSecond = eventsPerSecond;
+	}
+
+	public void stop() {
+		stop = true;
+	}
+
+	/**
+	 * The number of events published so far.
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * The number of frames written, i.e. events times subscribers.
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	public void run() {
+		String padding = padding(payloadSize);
+		long start = System.nanoTime();
+
+		while (!stop) {
+			long due = (System.nanoTime() - start) * eventsPerSecond / 1000000000L;
+			while (sent.get() < due && !stop) {
+				long sequence = sent.incrementAndGet();
+				String data = "{\"sequence\":" + sequence + ",\"sent_at\":" + System.nanoTime() + ",\"padding\":\""
+						+ padding + "\"}";
+				delivered.addAndGet(server.trigger(channel, event, data));
+			}
+
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException ie) {
+				return;
+			}
+		}
+	}
+
+	private String padding(int size) {
+		// event, channel and the fixed fields take about 120 bytes
+		int length = Math.max(0, size - 120 - event.length() - channel.length());
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+		return text.toString();
+	}
+}
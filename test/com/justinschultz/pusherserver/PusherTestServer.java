@@ -0,0 +1,356 @@
+package com.justinschultz.pusherserver;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.justinschultz.websocket.WebSocketFrame;
+
+/**
+ * An in-process stand-in for the Pusher service, for load and latency tests
+ * that must not touch the network. It accepts WebSocket connections on
+ * loopback, sends pusher:connection_established, handles subscribe,
+ * unsubscribe and pusher:ping, relays client events to the other
+ * subscribers of a channel, and can push server events at a fixed rate.
+ * Presence channels report their members, taken from the channel_data of
+ * each subscribe, and announce members joining and leaving.
+ *
+ * Connect a client with new Pusher(key, "ws", "127.0.0.1", server.getPort()),
+ * or with "wss" when the server was given an SSLContext, e.g. one loaded
+ * with loadSSLContext() from a key store holding a self-signed certificate.
+ * Each connection is served by its own daemon thread; events are encoded
+ * once and the same frame is written to every subscriber.
+ */
+public class PusherTestServer {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int requestedPort;
+	private final SSLContext sslContext;
+	private ServerSocket serverSocket = null;
+	private Thread acceptThread = null;
+	private volatile boolean stop = false;
+
+	private final Set<ServerConnection> connections = new CopyOnWriteArraySet<ServerConnection>();
+	private final ConcurrentHashMap<String, Set<ServerConnection>> subscribers = new ConcurrentHashMap<String, Set<ServerConnection>>();
+	private final AtomicInteger nextSocketId = new AtomicInteger();
+
+	/**
+	 * @param port
+	 *            the port to listen on, or 0 for any free port
+	 */
+	public PusherTestServer(int port) {
+		this(port, null);
+	}
+
+	/**
+	 * Serves wss with the given context instead of plain ws.
+	 */
+	public PusherTestServer(int port, SSLContext sslContext) {
+		this.requestedPort = port;
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Loads a server SSLContext from a key store file, such as one made
+	 * with: keytool -genkeypair -keyalg RSA -alias server -dname CN=localhost
+	 * -validity 365 -keystore server.jks
+	 */
+	public static SSLContext loadSSLContext(String keyStorePath, char[] password)
+			throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		FileInputStream input = new FileInputStream(keyStorePath);
+		try {
+			keyStore.load(input, password);
+		} finally {
+			input.close();
+		}
+
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+		return context;
+	}
+
+	public synchronized void start() throws IOException {
+		if (serverSocket != null) {
+			throw new IllegalStateException("already started");
+		}
+		stop = false;
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		if (sslContext != null) {
+			serverSocket = sslContext.getServerSocketFactory().createServerSocket(requestedPort, 1024, loopback);
+		} else {
+			serverSocket = new ServerSocket(requestedPort, 1024, loopback);
+		}
+
+		acceptThread = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "PusherTestServer-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Closes the listening socket and every open connection.
+	 */
+	public synchronized void stop() {
+		stop = true;
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+		serverSocket = null;
+
+		for (ServerConnection connection : connections) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Drops every connection without a close handshake, as a network
+	 * failure would, while continuing to accept new ones.
+	 */
+	public void dropConnections() {
+		for (ServerConnection connection : connections) {
+			connection.close();
+		}
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	public int getSubscriberCount(String channel) {
+		Set<ServerConnection> set = subscribers.get(channel);
+		return set == null ? 0 : set.size();
+	}
+
+	/**
+	 * Sends an event to every subscriber of the channel. The data is sent
+	 * as a JSON string, the way Pusher delivers it.
+	 *
+	 * @return the number of connections the event was written to
+	 */
+	public int trigger(String channel, String event, String data) {
+		return broadcast(channel, encodeEvent(channel, event, data), null);
+	}
+
+	/**
+	 * Starts pushing events of roughly payloadSize bytes to the channel at
+	 * the given rate until the returned publisher is stopped. Each event's
+	 * data carries "sent_at", the System.nanoTime() at which it was sent,
+	 * so that a client in the same JVM can compute delivery latency.
+	 */
+	public EventPublisher startPublishing(String channel, String event, int payloadSize, int eventsPerSecond) {
+		EventPublisher publisher = new EventPublisher(this, channel, event, payloadSize, eventsPerSecond);
+		Thread thread = new Thread(publisher, "PusherTestServer-publisher-" + channel);
+		thread.setDaemon(true);
+		thread.start();
+		return publisher;
+	}
+
+	static byte[] encodeEvent(String channel, String event, String data) {
+		JSONObject message = new JSONObject();
+		try {
+			message.put("event", event);
+			if (channel != null) {
+				message.put("channel", channel);
+			}
+			message.put("data", data);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		byte[] payload = message.toString().getBytes(UTF8);
+		return WebSocketFrame.encode(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_TEXT, payload, 0, payload.length,
+				false, 0);
+	}
+
+	int broadcast(String channel, byte[] frame, ServerConnection except) {
+		Set<ServerConnection> set = subscribers.get(channel);
+		if (set == null) {
+			return 0;
+		}
+
+		int count = 0;
+		for (ServerConnection connection : set) {
+			if (connection != except && connection.write(frame)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Adds a subscriber. A connection joining a presence channel as a user
+	 * no other subscriber is announces pusher_internal:member_added to the
+	 * others.
+	 */
+	void subscribe(String channel, ServerConnection connection) {
+		Set<ServerConnection> set = subscribers.get(channel);
+		if (set == null) {
+			set = new CopyOnWriteArraySet<ServerConnection>();
+			Set<ServerConnection> existing = subscribers.putIfAbsent(channel, set);
+			if (existing != null) {
+				set = existing;
+			}
+		}
+
+		JSONObject member = connection.getMember(channel);
+		boolean joined = member != null && !hasMember(set, channel, member.optString("user_id"), connection);
+		if (set.add(connection) && joined) {
+			broadcast(channel, encodeEvent(channel, "pusher_internal:member_added", member.toString()), connection);
+		}
+	}
+
+	/**
+	 * Removes a subscriber, announcing pusher_internal:member_removed when
+	 * it was the last connection of its user on a presence channel.
+	 */
+	void unsubscribe(String channel, ServerConnection connection) {
+		Set<ServerConnection> set = subscribers.get(channel);
+		if (set == null || !set.remove(connection)) {
+			return;
+		}
+
+		JSONObject member = connection.getMember(channel);
+		if (member != null && !hasMember(set, channel, member.optString("user_id"), connection)) {
+			JSONObject removed = new JSONObject();
+			try {
+				removed.put("user_id", member.optString("user_id"));
+			} catch (Exception e) {
+				throw new IllegalArgumentException(e);
+			}
+			broadcast(channel, encodeEvent(channel, "pusher_internal:member_removed", removed.toString()), connection);
+		}
+	}
+
+	/**
+	 * The data of a presence channel's subscription_succeeded: the ids,
+	 * user_info by id and count of its members.
+	 */
+	String getPresenceData(String channel) {
+		JSONArray ids = new JSONArray();
+		JSONObject hash = new JSONObject();
+		Set<ServerConnection> set = subscribers.get(channel);
+		try {
+			if (set != null) {
+				for (ServerConnection connection : set) {
+					JSONObject member = connection.getMember(channel);
+					if (member != null && !hash.has(member.getString("user_id"))) {
+						ids.put(member.getString("user_id"));
+						hash.put(member.getString("user_id"), member.has("user_info") ? member.get("user_info") : JSONObject.NULL);
+					}
+				}
+			}
+
+			JSONObject presence = new JSONObject();
+			presence.put("ids", ids);
+			presence.put("hash", hash);
+			presence.put("count", ids.length());
+			return new JSONObject().put("presence", presence).toString();
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static boolean hasMember(Set<ServerConnection> set, String channel, String userId, ServerConnection except) {
+		for (ServerConnection connection : set) {
+			JSONObject member = connection.getMember(channel);
+			if (connection != except && member != null && userId.equals(member.optString("user_id"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void closed(ServerConnection connection) {
+		connections.remove(connection);
+		for (String channel : connection.getChannels()) {
+			unsubscribe(channel, connection);
+		}
+	}
+
+	private void acceptLoop() {
+		while (!stop) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+
+				String socketId = nextSocketId.incrementAndGet() + "." + System.identityHashCode(socket);
+				ServerConnection connection = new ServerConnection(this, socket, socketId);
+				connections.add(connection);
+
+				Thread thread = new Thread(connection, "PusherTestServer-" + socketId);
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException ioe) {
+				if (!stop) {
+					ioe.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a server until the process is killed, optionally publishing to
+	 * one channel: PusherTestServer port [channel eventsPerSecond payloadSize]
+	 */
+	public static void main(String[] args) throws Exception {
+		PusherTestServer server = new PusherTestServer(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+		server.start();
+		System.out.println("Pusher test server listening on 127.0.0.1:" + server.getPort());
+
+		if (args.length > 1) {
+			int rate = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+			int size = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+			server.startPublishing(args[1], "test-event", size, rate);
+		}
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
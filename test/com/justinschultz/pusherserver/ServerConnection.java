@@ -0,0 +1,259 @@
+package com.justinschultz.pusherserver;
+
+/*
+ *  Copyright (C) 2012 Justin Schultz
+ *  JavaPusherClient, a Pusher (http://pusherapp.com) client for Java
+ *
+ *  http://justinschultz.com/
+ *  http://publicstaticdroidmain.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.justinschultz.websocket.WebSocketException;
+import com.justinschultz.websocket.WebSocketFrame;
+import com.justinschultz.websocket.WebSocketFrameDecoder;
+import com.justinschultz.websocket.WebSocketHandshake;
+
+/**
+ * One client of a PusherTestServer: performs the server side of the
+ * handshake, then reads frames on its own thread and answers the Pusher
+ * protocol messages. Writes from other threads are serialized on the
+ * output stream.
+ */
+class ServerConnection implements Runnable {
+	private static final int MAX_REQUEST_SIZE = 16 * 1024;
+
+	private final PusherTestServer server;
+	private final Socket socket;
+	private final String socketId;
+	private final Set<String> channels = new CopyOnWriteArraySet<String>();
+	private final ConcurrentHashMap<String, JSONObject> members = new ConcurrentHashMap<String, JSONObject>();
+
+	private OutputStream output;
+	private volatile boolean closed = false;
+
+	ServerConnection(PusherTestServer server, Socket socket, String socketId) {
+		this.server = server;
+		this.socket = socket;
+		this.socketId = socketId;
+	}
+
+	Set<String> getChannels() {
+		return channels;
+	}
+
+	/**
+	 * The user_id and user_info this connection joined a presence channel
+	 * with, or null.
+	 */
+	JSONObject getMember(String channel) {
+		return members.get(channel);
+	}
+
+	public void run() {
+		try {
+			InputStream input = socket.getInputStream();
+			output = socket.getOutputStream();
+			if (!handshake(input)) {
+				return;
+			}
+
+			write(PusherTestServer.encodeEvent(null, "pusher:connection_established", "{\"socket_id\":\"" + socketId
+					+ "\",\"activity_timeout\":120}"));
+
+			WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(new FrameHandler());
+			while (!closed && decoder.read(input) != -1) {
+			}
+		} catch (IOException ioe) {
+			// the client went away
+		} catch (WebSocketException wse) {
+			if (!closed) {
+				wse.printStackTrace();
+			}
+		} finally {
+			close();
+		}
+	}
+
+	boolean write(byte[] frame) {
+		if (closed) {
+			return false;
+		}
+		try {
+			synchronized (this) {
+				output.write(frame);
+				output.flush();
+			}
+			return true;
+		} catch (IOException ioe) {
+			close();
+			return false;
+		}
+	}
+
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+		server.closed(this);
+	}
+
+	private boolean handshake(InputStream input) throws IOException {
+		StringBuilder request = new StringBuilder();
+		while (request.length() < 4 || request.lastIndexOf("\r\n\r\n") != request.length() - 4) {
+			int b = input.read();
+			if (b == -1) {
+				return false;
+			}
+			if (request.length() == MAX_REQUEST_SIZE) {
+				reject("431 Request Header Fields Too Large");
+				return false;
+			}
+			request.append((char) b);
+		}
+
+		String[] lines = request.toString().split("\r\n");
+		HashMap<String, String> headers = new HashMap<String, String>();
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon > 0) {
+				headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+			}
+		}
+
+		String key = headers.get("sec-websocket-key");
+		if (!lines[0].startsWith("GET ") || key == null || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+			reject("400 Bad Request");
+			return false;
+		}
+
+		output.write(("HTTP/1.1 101 Switching Protocols\r\n" + "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + WebSocketHandshake.acceptKey(key) + "\r\n\r\n").getBytes(PusherTestServer.UTF8));
+		output.flush();
+		return true;
+	}
+
+	private void reject(String status) throws IOException {
+		output.write(("HTTP/1.1 " + status + "\r\nConnection: close\r\n\r\n").getBytes(PusherTestServer.UTF8));
+		output.flush();
+	}
+
+	private void onMessage(String text) throws Exception {
+		JSONObject message = new JSONObject(text);
+		String event = message.optString("event");
+		JSONObject data = message.optJSONObject("data");
+		if (data == null && message.has("data")) {
+			String raw = message.optString("data");
+			data = raw.startsWith("{") ? new JSONObject(raw) : new JSONObject();
+		}
+		if (data == null) {
+			data = new JSONObject();
+		}
+
+		// this client sends the channel inside data; Pusher puts it at the
+		// top level, so accept either
+		String channel = message.optString("channel", null);
+		if (channel == null) {
+			channel = data.optString("channel", null);
+		}
+
+		if (event.equals("pusher:subscribe") && channel != null) {
+			JSONObject member = channel.startsWith("presence-") ? member(data) : null;
+			if (member != null) {
+				members.put(channel, member);
+			}
+			channels.add(channel);
+			server.subscribe(channel, this);
+			if (closed) {
+				// lost a race with close(), which has already unsubscribed
+				server.unsubscribe(channel, this);
+				return;
+			}
+			write(PusherTestServer.encodeEvent(channel, "pusher_internal:subscription_succeeded",
+					member != null ? server.getPresenceData(channel) : "{}"));
+		} else if (event.equals("pusher:unsubscribe") && channel != null) {
+			channels.remove(channel);
+			server.unsubscribe(channel, this);
+			members.remove(channel);
+		} else if (event.equals("pusher:ping")) {
+			write(PusherTestServer.encodeEvent(null, "pusher:pong", "{}"));
+		} else if (event.startsWith("client-") && channel != null && channels.contains(channel)) {
+			server.broadcast(channel, PusherTestServer.encodeEvent(channel, event, data.toString()), this);
+		}
+	}
+
+	/**
+	 * Reads the member from channel_data, which the client sends either as
+	 * an object or, as Pusher expects, as a JSON string.
+	 */
+	private static JSONObject member(JSONObject data) throws JSONException {
+		Object channelData = data.opt("channel_data");
+		if (channelData instanceof String) {
+			channelData = new JSONObject((String) channelData);
+		}
+		if (!(channelData instanceof JSONObject) || !((JSONObject) channelData).has("user_id")) {
+			return null;
+		}
+
+		JSONObject member = new JSONObject();
+		member.put("user_id", String.valueOf(((JSONObject) channelData).get("user_id")));
+		Object info = ((JSONObject) channelData).opt("user_info");
+		if (info != null) {
+			member.put("user_info", info);
+		}
+		return member;
+	}
+
+	private class FrameHandler implements WebSocketFrameDecoder.FrameHandler {
+		public void onMessage(int opcode, byte[] data, int offset, int length) throws WebSocketException {
+			if (opcode != WebSocketFrame.OPCODE_TEXT) {
+				return;
+			}
+			try {
+				ServerConnection.this.onMessage(new String(data, offset, length, PusherTestServer.UTF8));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		public void onControlFrame(int opcode, byte[] data, int offset, int length) {
+			if (opcode == WebSocketFrame.OPCODE_PING) {
+				write(WebSocketFrame.encode(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_PONG, data, offset, length,
+						false, 0));
+			} else if (opcode == WebSocketFrame.OPCODE_CLOSE) {
+				write(WebSocketFrame.encode(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_CLOSE, data, offset, length,
+						false, 0));
+				close();
+			}
+		}
+	}
+}
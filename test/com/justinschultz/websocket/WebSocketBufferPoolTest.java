@@ -0,0 +1,85 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.justinschultz.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+
+public class WebSocketBufferPoolTest
+{
+	private final WebSocketBufferPool pool = new WebSocketBufferPool();
+
+
+	@Test
+	public void acquireRoundsUpToSizeClass()
+	{
+		assertEquals(256, pool.acquire(1).length);
+		assertEquals(256, pool.acquire(256).length);
+		assertEquals(512, pool.acquire(257).length);
+		assertEquals(WebSocketBufferPool.MAX_POOLED_SIZE, pool.acquire(WebSocketBufferPool.MAX_POOLED_SIZE).length);
+		assertEquals(WebSocketBufferPool.MAX_POOLED_SIZE + 1, pool.acquire(WebSocketBufferPool.MAX_POOLED_SIZE + 1).length);
+	}
+
+
+	@Test
+	public void releasedArrayIsReused()
+	{
+		byte[] buffer = pool.acquire(1000);
+		pool.release(buffer);
+		assertSame(buffer, pool.acquire(600));
+
+		ByteBuffer direct = pool.acquireDirect(1000);
+		pool.releaseDirect(direct);
+		assertSame(direct, pool.acquireDirect(600));
+	}
+
+
+	@Test
+	public void oversizedArrayIsDropped()
+	{
+		byte[] buffer = pool.acquire(WebSocketBufferPool.MAX_POOLED_SIZE + 1);
+		pool.release(buffer);
+		assertEquals(WebSocketBufferPool.MAX_POOLED_SIZE + 1, pool.acquire(WebSocketBufferPool.MAX_POOLED_SIZE + 1).length);
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void releaseRejectsArrayOutsideSizeClasses()
+	{
+		pool.release(new byte[1000]);
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void releaseRejectsArrayBelowSmallestClass()
+	{
+		pool.release(new byte[128]);
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void releaseDirectRejectsHeapBuffer()
+	{
+		pool.releaseDirect(ByteBuffer.allocate(1024));
+	}
+}
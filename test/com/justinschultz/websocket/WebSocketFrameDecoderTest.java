@@ -0,0 +1,411 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class WebSocketFrameDecoderTest
+{
+	private static final int FIN = WebSocketFrame.FLAG_FIN;
+	private static final int TEXT = WebSocketFrame.OPCODE_TEXT;
+	private static final int BINARY = WebSocketFrame.OPCODE_BINARY;
+	private static final int CONTINUATION = WebSocketFrame.OPCODE_CONTINUATION;
+	private static final int PING = WebSocketFrame.OPCODE_PING;
+	private static final int PONG = WebSocketFrame.OPCODE_PONG;
+	private static final int CLOSE = WebSocketFrame.OPCODE_CLOSE;
+
+
+	@Test
+	public void decodesAtEveryChunkBoundary()
+		throws Exception
+	{
+		Stream stream = new Stream();
+		stream.message(TEXT, bytes("hello"), 1, false);
+		stream.message(TEXT, bytes("masked"), 1, true);
+		stream.message(BINARY, new byte[0], 1, true);
+		stream.message(BINARY, payload(200), 1, true);
+		stream.message(BINARY, payload(70000), 1, true);
+		stream.message(TEXT, payload(5000), 4, true);
+		stream.control(PING, bytes("ping"), true);
+		stream.control(CLOSE, new byte[] { 0x03, (byte) 0xe8 }, false);
+
+		for (int chunk = 1; chunk <= 64; chunk++) {
+			assertDecoded(stream, fixedChunks(stream.length(), chunk));
+		}
+		assertDecoded(stream, fixedChunks(stream.length(), 8192));
+		assertDecoded(stream, fixedChunks(stream.length(), stream.length()));
+	}
+
+
+	@Test
+	public void decodesAtRandomChunkBoundaries()
+		throws Exception
+	{
+		Random random = new Random(42);
+
+		for (int run = 0; run < 200; run++) {
+			Stream stream = new Stream();
+			for (int i = 0; i < 20; i++) {
+				int size = random.nextInt(4) == 0 ? random.nextInt(70000) : random.nextInt(300);
+				int fragments = 1 + random.nextInt(4);
+				stream.message(random.nextBoolean() ? TEXT : BINARY, randomBytes(random, size), fragments,
+						random.nextBoolean());
+				if (random.nextInt(3) == 0) {
+					stream.control(random.nextBoolean() ? PING : PONG, randomBytes(random, random.nextInt(126)),
+							random.nextBoolean());
+				}
+			}
+			assertDecoded(stream, randomChunks(random, stream.length()));
+		}
+	}
+
+
+	@Test
+	public void deliversControlFramesBetweenFragments()
+		throws Exception
+	{
+		Stream stream = new Stream();
+		stream.frame(TEXT, bytes("frag"), false, true);
+		stream.control(PING, bytes("a"), true);
+		stream.frame(CONTINUATION, bytes("men"), false, true);
+		stream.control(PONG, bytes("b"), false);
+		stream.frame(FIN | CONTINUATION, bytes("ted"), false, true);
+		stream.expectMessage(TEXT, bytes("fragmented"));
+
+		for (int chunk = 1; chunk <= stream.length(); chunk++) {
+			assertDecoded(stream, fixedChunks(stream.length(), chunk));
+		}
+	}
+
+
+	@Test
+	public void readsFromStreamInPieces()
+		throws Exception
+	{
+		Stream stream = new Stream();
+		stream.message(TEXT, payload(20000), 3, true);
+		stream.control(PING, bytes("x"), true);
+		stream.message(BINARY, payload(10), 1, false);
+
+		Recorder recorder = new Recorder();
+		WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(recorder, 16);
+		InputStream input = new TrickleInputStream(stream.toByteArray(), 7);
+		while (decoder.read(input) != -1) {
+		}
+		stream.assertRecorded(recorder);
+	}
+
+
+	@Test
+	public void rejectsOversizedMessage()
+		throws Exception
+	{
+		Stream stream = new Stream();
+		stream.message(TEXT, payload(101), 1, true);
+		assertRejected(stream, 100);
+
+		stream = new Stream();
+		stream.message(TEXT, payload(100), 1, true);
+		assertDecoded(stream, fixedChunks(stream.length(), 3), 100);
+	}
+
+
+	@Test
+	public void rejectsOversizedFragmentedMessage()
+		throws Exception
+	{
+		Stream stream = new Stream();
+		stream.message(BINARY, payload(150), 3, true);
+		assertRejected(stream, 100);
+
+		stream = new Stream();
+		stream.message(BINARY, payload(100), 4, true);
+		assertDecoded(stream, fixedChunks(stream.length(), 5), 100);
+	}
+
+
+	@Test
+	public void rejectsProtocolErrors()
+		throws Exception
+	{
+		Stream continuation = new Stream();
+		continuation.frame(FIN | CONTINUATION, bytes("x"), false, false);
+		assertRejected(continuation, 100);
+
+		Stream interleaved = new Stream();
+		interleaved.frame(TEXT, bytes("x"), false, false);
+		interleaved.frame(FIN | TEXT, bytes("y"), false, false);
+		assertRejected(interleaved, 100);
+
+		Stream fragmentedControl = new Stream();
+		fragmentedControl.frame(PING, bytes("x"), false, false);
+		assertRejected(fragmentedControl, 100);
+
+		Stream reserved = new Stream();
+		reserved.frame(FIN | WebSocketFrame.FLAG_RSV1 | TEXT, bytes("x"), false, false);
+		assertRejected(reserved, 100);
+	}
+
+
+	private static void assertDecoded(Stream stream, int[] chunks)
+		throws WebSocketException
+	{
+		assertDecoded(stream, chunks, 16 * 1024 * 1024);
+	}
+
+
+	private static void assertDecoded(Stream stream, int[] chunks, int maxMessageSize)
+		throws WebSocketException
+	{
+		Recorder recorder = new Recorder();
+		WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(recorder, 64);
+		decoder.setMaxMessageSize(maxMessageSize);
+
+		// the decoder unmasks in place, so every run gets a fresh copy
+		byte[] data = stream.toByteArray();
+		int pos = 0;
+		for (int chunk : chunks) {
+			byte[] piece = Arrays.copyOfRange(data, pos, pos + chunk);
+			decoder.decode(piece, 0, piece.length);
+			pos += chunk;
+		}
+		assertEquals(data.length, pos);
+		stream.assertRecorded(recorder);
+	}
+
+
+	private static void assertRejected(Stream stream, int maxMessageSize)
+	{
+		WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(new Recorder());
+		decoder.setMaxMessageSize(maxMessageSize);
+		byte[] data = stream.toByteArray();
+		try {
+			for (int pos = 0; pos < data.length; pos++) {
+				decoder.decode(data, pos, 1);
+			}
+			fail("expected a WebSocketException");
+		}
+		catch (WebSocketException expected) {
+		}
+	}
+
+
+	private static int[] fixedChunks(int length, int chunk)
+	{
+		int[] chunks = new int[(length + chunk - 1) / chunk];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = Math.min(chunk, length - i * chunk);
+		}
+		return chunks;
+	}
+
+
+	private static int[] randomChunks(Random random, int length)
+	{
+		List<Integer> chunks = new ArrayList<Integer>();
+		int remaining = length;
+		while (remaining > 0) {
+			int bound = random.nextBoolean() ? 16 : 20000;
+			int chunk = Math.min(remaining, 1 + random.nextInt(bound));
+			chunks.add(chunk);
+			remaining -= chunk;
+		}
+		int[] result = new int[chunks.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = chunks.get(i);
+		}
+		return result;
+	}
+
+
+	private static byte[] bytes(String text)
+	{
+		try {
+			return text.getBytes("UTF-8");
+		}
+		catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+
+	private static byte[] payload(int length)
+	{
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) ('a' + i % 26);
+		}
+		return payload;
+	}
+
+
+	private static byte[] randomBytes(Random random, int length)
+	{
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+
+
+	/**
+	 * A sequence of encoded frames together with the callbacks they should
+	 * produce.
+	 */
+	private static class Stream
+	{
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final List<String> kinds = new ArrayList<String>();
+		private final List<byte[]> payloads = new ArrayList<byte[]>();
+		private int nextMaskKey = 0x12345678;
+
+
+		void message(int opcode, byte[] payload, int fragments, boolean masked)
+		{
+			int step = Math.max(1, (payload.length + fragments - 1) / fragments);
+			int pos = 0;
+			int type = opcode;
+			do {
+				int length = Math.min(step, payload.length - pos);
+				boolean last = pos + length >= payload.length;
+				frameAt(type | (last ? FIN : 0), payload, pos, length, masked);
+				type = CONTINUATION;
+				pos += length;
+			}
+			while (pos < payload.length);
+			expectMessage(opcode, payload);
+		}
+
+
+		void control(int opcode, byte[] payload, boolean masked)
+		{
+			frame(FIN | opcode, payload, masked, true);
+		}
+
+
+		void frame(int flagsAndOpcode, byte[] payload, boolean masked, boolean expected)
+		{
+			frameAt(flagsAndOpcode, payload, 0, payload.length, masked);
+			int opcode = flagsAndOpcode & 0x0f;
+			if (expected && WebSocketFrame.isControl(opcode)) {
+				expectControl(opcode, payload);
+			}
+		}
+
+
+		void expectMessage(int opcode, byte[] payload)
+		{
+			kinds.add("message " + opcode);
+			payloads.add(payload);
+		}
+
+
+		void expectControl(int opcode, byte[] payload)
+		{
+			kinds.add("control " + opcode);
+			payloads.add(payload);
+		}
+
+
+		int length()
+		{
+			return bytes.size();
+		}
+
+
+		byte[] toByteArray()
+		{
+			return bytes.toByteArray();
+		}
+
+
+		void assertRecorded(Recorder recorder)
+		{
+			assertEquals(kinds, recorder.kinds);
+			for (int i = 0; i < payloads.size(); i++) {
+				assertArrayEquals(kinds.get(i), payloads.get(i), recorder.payloads.get(i));
+			}
+		}
+
+
+		private void frameAt(int flagsAndOpcode, byte[] payload, int offset, int length, boolean masked)
+		{
+			nextMaskKey = nextMaskKey * 31 + 17;
+			byte[] frame = WebSocketFrame.encode(flagsAndOpcode, payload, offset, length, masked, nextMaskKey);
+			bytes.write(frame, 0, frame.length);
+		}
+	}
+
+
+	private static class Recorder
+			implements WebSocketFrameDecoder.FrameHandler
+	{
+		final List<String> kinds = new ArrayList<String>();
+		final List<byte[]> payloads = new ArrayList<byte[]>();
+
+
+		public void onMessage(int opcode, byte[] data, int offset, int length)
+		{
+			kinds.add("message " + opcode);
+			payloads.add(Arrays.copyOfRange(data, offset, offset + length));
+		}
+
+
+		public void onControlFrame(int opcode, byte[] data, int offset, int length)
+		{
+			kinds.add("control " + opcode);
+			payloads.add(Arrays.copyOfRange(data, offset, offset + length));
+		}
+	}
+
+
+	/**
+	 * Returns at most a few bytes per read, like a slow socket.
+	 */
+	private static class TrickleInputStream
+			extends ByteArrayInputStream
+	{
+		private final int maxRead;
+
+
+		TrickleInputStream(byte[] data, int maxRead)
+		{
+			super(data);
+			this.maxRead = maxRead;
+		}
+
+
+		@Override
+		public synchronized int read(byte[] buffer, int offset, int length)
+		{
+			return super.read(buffer, offset, Math.min(length, maxRead));
+		}
+	}
+}
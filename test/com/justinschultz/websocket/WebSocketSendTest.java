@@ -0,0 +1,407 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.justinschultz.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class WebSocketSendTest
+{
+	private LoopbackServer server;
+
+
+	@After
+	public void tearDown()
+		throws IOException
+	{
+		if (server != null) {
+			server.close();
+		}
+	}
+
+
+	@Test
+	public void sendThrowsWhenDropped()
+		throws Exception
+	{
+		server = new LoopbackServer(false);
+		WebSocketConnection websocket = new WebSocketConnection(server.getURI());
+		websocket.setEventHandler(new IgnoringHandler());
+		websocket.setSendQueue(1, WebSocketSendPolicy.DROP);
+		websocket.connect();
+
+		assertDropped(websocket);
+		// closing the stalled server first unblocks the sender thread, so
+		// the close handshake may find the connection already reset
+		server.close();
+		try {
+			websocket.close();
+		}
+		catch (WebSocketException wse) {
+		}
+	}
+
+
+	@Test
+	public void channelSendThrowsWhenDropped()
+		throws Exception
+	{
+		server = new LoopbackServer(false);
+		WebSocketChannelConnection websocket = new WebSocketChannelConnection(server.getURI());
+		websocket.setEventHandler(new IgnoringHandler());
+		websocket.setSendQueue(1, WebSocketSendPolicy.DROP);
+		websocket.connect();
+
+		assertDropped(websocket);
+		websocket.close();
+	}
+
+
+	@Test
+	public void channelSendQueueIsBoundedByDefault()
+		throws Exception
+	{
+		server = new LoopbackServer(false);
+		final WebSocketChannelConnection websocket = new WebSocketChannelConnection(server.getURI());
+		websocket.setEventHandler(new IgnoringHandler());
+		websocket.connect();
+
+		final String message = payload(64 * 1024);
+		Thread sender = new Thread(new Runnable() {
+			public void run()
+			{
+				try {
+					for (int i = 0; i < 4 * WebSocketConnection.DEFAULT_SEND_QUEUE_CAPACITY; i++) {
+						websocket.sendAsync(message);
+					}
+				}
+				catch (WebSocketException wse) {
+					// closed below
+				}
+			}
+		});
+		sender.setDaemon(true);
+		sender.start();
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (websocket.getSendQueueDepth() < WebSocketConnection.DEFAULT_SEND_QUEUE_CAPACITY
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		sender.join(200);
+		assertTrue("sender should block on a full queue", sender.isAlive());
+		assertEquals(WebSocketConnection.DEFAULT_SEND_QUEUE_CAPACITY, websocket.getSendQueueDepth());
+
+		websocket.close();
+		sender.join(5000);
+		assertTrue(!sender.isAlive());
+	}
+
+
+	@Test
+	public void closeIsQuiet()
+		throws Exception
+	{
+		PrintStream err = System.err;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(captured, true));
+		try {
+			server = new LoopbackServer(true);
+			WebSocketConnection websocket = new WebSocketConnection(server.getURI());
+			websocket.setEventHandler(new IgnoringHandler());
+			websocket.setSendQueue(16, WebSocketSendPolicy.BLOCK);
+			websocket.connect();
+			for (int i = 0; i < 1000; i++) {
+				websocket.sendAsync(payload(1024));
+			}
+			websocket.close();
+
+			server.close();
+			server.join();
+			Thread.sleep(200);
+		}
+		finally {
+			System.setErr(err);
+		}
+		assertEquals("", captured.toString("UTF-8"));
+	}
+
+
+	@Test
+	public void closeFlushesQueuedFrames()
+		throws Exception
+	{
+		server = new LoopbackServer(true);
+		server.setReadDelay(500);
+		WebSocketConnection websocket = new WebSocketConnection(server.getURI());
+		websocket.setEventHandler(new IgnoringHandler());
+		websocket.setSendQueue(WebSocketConnection.DEFAULT_SEND_QUEUE_CAPACITY, WebSocketSendPolicy.BLOCK);
+		websocket.connect();
+
+		assertFlushedOnClose(websocket);
+	}
+
+
+	@Test
+	public void channelCloseFlushesQueuedFrames()
+		throws Exception
+	{
+		server = new LoopbackServer(true);
+		server.setReadDelay(500);
+		WebSocketChannelConnection websocket = new WebSocketChannelConnection(server.getURI());
+		websocket.setEventHandler(new IgnoringHandler());
+		websocket.connect();
+
+		assertFlushedOnClose(websocket);
+	}
+
+
+	private void assertFlushedOnClose(WebSocket websocket)
+		throws Exception
+	{
+		String message = payload(16 * 1024);
+		List<WebSocketSendFuture> futures = new ArrayList<WebSocketSendFuture>();
+		for (int i = 0; i < 1000; i++) {
+			futures.add(websocket.sendAsync(message));
+		}
+		websocket.close();
+
+		for (WebSocketSendFuture future : futures) {
+			future.get(5, TimeUnit.SECONDS);
+		}
+		server.join();
+		assertEquals(1000, server.getMessages());
+		assertFalse("frame written after the close frame", server.isFrameAfterClose());
+	}
+
+
+	private static void assertDropped(WebSocket websocket)
+	{
+		String message = payload(256 * 1024);
+		try {
+			for (int i = 0; i < 1000; i++) {
+				websocket.send(message);
+			}
+			fail("expected a dropped frame");
+		}
+		catch (WebSocketException expected) {
+		}
+	}
+
+
+	private static String payload(int length)
+	{
+		StringBuilder payload = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			payload.append((char) ('a' + i % 26));
+		}
+		return payload.toString();
+	}
+
+
+	private static class IgnoringHandler
+			implements WebSocketEventHandler
+	{
+		public void onOpen()
+		{
+		}
+
+
+		public void onMessage(WebSocketMessage message)
+		{
+		}
+
+
+		public void onClose()
+		{
+		}
+	}
+
+
+	/**
+	 * Accepts one connection and completes the handshake. Then it either
+	 * reads and discards frames, answering the closing handshake, or
+	 * stops reading so the client's writes back up.
+	 */
+	private static class LoopbackServer
+			implements Runnable
+	{
+		private final ServerSocket serverSocket;
+		private final boolean read;
+		private final Thread thread;
+		private volatile Socket socket;
+		private volatile int messages = 0;
+		private volatile boolean frameAfterClose = false;
+		private volatile long readDelay = 0;
+
+
+		LoopbackServer(boolean read)
+			throws IOException
+		{
+			this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+			this.read = read;
+			this.thread = new Thread(this, "LoopbackServer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+
+		/**
+		 * Waits this long after the handshake before reading, so the
+		 * client's frames back up in its send queue.
+		 */
+		void setReadDelay(long readDelay)
+		{
+			this.readDelay = readDelay;
+		}
+
+
+		int getMessages()
+		{
+			return messages;
+		}
+
+
+		boolean isFrameAfterClose()
+		{
+			return frameAfterClose;
+		}
+
+
+		URI getURI()
+		{
+			return URI.create("ws://127.0.0.1:" + serverSocket.getLocalPort() + "/app/test");
+		}
+
+
+		public void run()
+		{
+			try {
+				socket = serverSocket.accept();
+				final OutputStream output = socket.getOutputStream();
+				InputStream input = socket.getInputStream();
+				handshake(input, output);
+				if (!read) {
+					return;
+				}
+				if (readDelay > 0) {
+					Thread.sleep(readDelay);
+				}
+
+				final boolean[] closed = new boolean[1];
+				WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(new WebSocketFrameDecoder.FrameHandler() {
+					public void onMessage(int opcode, byte[] data, int offset, int length)
+					{
+						if (closed[0]) {
+							frameAfterClose = true;
+						}
+						messages++;
+					}
+
+
+					public void onControlFrame(int opcode, byte[] data, int offset, int length)
+					{
+						if (opcode != WebSocketFrame.OPCODE_CLOSE || closed[0]) {
+							return;
+						}
+						closed[0] = true;
+						try {
+							output.write(WebSocketFrame.encode(WebSocketFrame.FLAG_FIN | WebSocketFrame.OPCODE_CLOSE,
+									data, offset, length, false, 0));
+						}
+						catch (IOException ioe) {
+							// the client does not wait for the reply
+						}
+					}
+				});
+				// reads on after the close frame to catch frames that follow it
+				while (decoder.read(input) != -1) {
+				}
+				socket.close();
+			}
+			catch (IOException ioe) {
+				// closed by the test
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			catch (WebSocketException wse) {
+				throw new AssertionError(wse);
+			}
+		}
+
+
+		void join()
+			throws InterruptedException
+		{
+			thread.join(5000);
+		}
+
+
+		void close()
+			throws IOException
+		{
+			serverSocket.close();
+			if (socket != null) {
+				socket.close();
+			}
+		}
+
+
+		private static void handshake(InputStream input, OutputStream output)
+			throws IOException
+		{
+			StringBuilder request = new StringBuilder();
+			while (request.indexOf("\r\n\r\n") == -1) {
+				int b = input.read();
+				if (b == -1) {
+					throw new IOException("end of stream in handshake");
+				}
+				request.append((char) b);
+			}
+
+			String key = null;
+			for (String line : request.toString().split("\r\n")) {
+				if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+					key = line.substring(line.indexOf(':') + 1).trim();
+				}
+			}
+			output.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+					+ "Sec-WebSocket-Accept: " + WebSocketHandshake.acceptKey(key) + "\r\n\r\n").getBytes("US-ASCII"));
+			output.flush();
+		}
+	}
+}
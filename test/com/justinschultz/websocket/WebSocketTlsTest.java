@@ -0,0 +1,218 @@
+/*
+ *  Copyright (C) 2011 Roderick Baier
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.justinschultz.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URI;
+import java.security.KeyStore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.justinschultz.pusherserver.PusherTestServer;
+
+
+/**
+ * Runs both connection types over wss against the stand-in server, which
+ * uses the self-signed certificate in server.jks. Events larger than a TLS
+ * record make the SSLEngine wrap and unwrap across several records. The
+ * certificate in wronghost.jks is trusted but issued for example.com.
+ */
+public class WebSocketTlsTest
+{
+	private static final char[] PASSWORD = "password".toCharArray();
+
+	private PusherTestServer server;
+	private WebSocketTlsContext tlsContext;
+
+
+	@Before
+	public void setUp()
+		throws Exception
+	{
+		start("server.jks");
+	}
+
+
+	private void start(String keyStore)
+		throws Exception
+	{
+		String keyStorePath = new File(getClass().getResource(keyStore).toURI()).getPath();
+		server = new PusherTestServer(0, PusherTestServer.loadSSLContext(keyStorePath, PASSWORD));
+		server.start();
+
+		KeyStore trustStore = KeyStore.getInstance("JKS");
+		FileInputStream input = new FileInputStream(keyStorePath);
+		try {
+			trustStore.load(input, PASSWORD);
+		}
+		finally {
+			input.close();
+		}
+		tlsContext = WebSocketTlsContext.trusting(trustStore);
+	}
+
+
+	@After
+	public void tearDown()
+	{
+		server.stop();
+	}
+
+
+	@Test(timeout = 20000)
+	public void blockingConnection()
+		throws Exception
+	{
+		WebSocketConnection websocket = new WebSocketConnection(uri());
+		websocket.setTlsContext(tlsContext);
+		exchange(websocket);
+	}
+
+
+	@Test(timeout = 20000)
+	public void channelConnection()
+		throws Exception
+	{
+		WebSocketChannelConnection websocket = new WebSocketChannelConnection(uri());
+		websocket.setTlsContext(tlsContext);
+		exchange(websocket);
+	}
+
+
+	@Test(timeout = 20000, expected = WebSocketException.class)
+	public void untrustedCertificateFailsHandshake()
+		throws Exception
+	{
+		WebSocketChannelConnection websocket = new WebSocketChannelConnection(uri());
+		websocket.setTlsContext(new WebSocketTlsContext(SSLContext.getDefault()));
+		websocket.setEventHandler(new Recorder());
+		websocket.connect();
+	}
+
+
+	@Test(timeout = 20000, expected = WebSocketException.class)
+	public void wrongHostFailsHandshake()
+		throws Exception
+	{
+		server.stop();
+		start("wronghost.jks");
+		WebSocketConnection websocket = new WebSocketConnection(uri());
+		websocket.setTlsContext(tlsContext);
+		websocket.setEventHandler(new Recorder());
+		websocket.connect();
+	}
+
+
+	@Test(timeout = 20000, expected = WebSocketException.class)
+	public void channelWrongHostFailsHandshake()
+		throws Exception
+	{
+		server.stop();
+		start("wronghost.jks");
+		WebSocketChannelConnection websocket = new WebSocketChannelConnection(uri());
+		websocket.setTlsContext(tlsContext);
+		websocket.setEventHandler(new Recorder());
+		websocket.connect();
+	}
+
+
+	private void exchange(WebSocket websocket)
+		throws Exception
+	{
+		Recorder recorder = new Recorder();
+		websocket.setEventHandler(recorder);
+		websocket.connect();
+		try {
+			assertEquals("pusher:connection_established", recorder.next().getString("event"));
+
+			websocket.send("{\"event\":\"pusher:subscribe\",\"data\":{\"channel\":\"secure\"}}");
+			assertEquals("pusher_internal:subscription_succeeded", recorder.next().getString("event"));
+
+			StringBuilder large = new StringBuilder();
+			while (large.length() < 64 * 1024) {
+				large.append("0123456789abcdef");
+			}
+			String[] payloads = new String[] { "small", large.toString() };
+			for (String payload : payloads) {
+				assertEquals(1, server.trigger("secure", "update", payload));
+				JSONObject event = recorder.next();
+				assertEquals("update", event.getString("event"));
+				assertEquals(payload, event.getString("data"));
+			}
+		}
+		finally {
+			websocket.close();
+		}
+		assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+	}
+
+
+	private URI uri()
+		throws Exception
+	{
+		return new URI("wss://127.0.0.1:" + server.getPort() + "/app/test");
+	}
+
+
+	private static class Recorder
+			implements WebSocketEventHandler
+	{
+		private final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+		private final CountDownLatch closed = new CountDownLatch(1);
+
+
+		public void onOpen()
+		{
+		}
+
+
+		public void onMessage(WebSocketMessage message)
+		{
+			messages.add(message.getText());
+		}
+
+
+		public void onClose()
+		{
+			closed.countDown();
+		}
+
+
+		JSONObject next()
+			throws Exception
+		{
+			String text = messages.poll(10, TimeUnit.SECONDS);
+			assertNotNull("no message", text);
+			return new JSONObject(text);
+		}
+	}
+}